@@ -2,21 +2,38 @@ package com.alipay.zixiao;
 
 import com.alipay.zixiao.cache.Cache;
 import com.alipay.zixiao.cache.CacheElement;
+import com.alipay.zixiao.cache.CacheImpl;
+import com.alipay.zixiao.cache.CacheSnapshot;
+import com.alipay.zixiao.protocol.WriteCoalescingHandler;
 import com.alipay.zixiao.protocol.binary.MemcachedBinaryPipelineFactory;
 import com.alipay.zixiao.protocol.text.MemcachedPipelineFactory;
+import com.alipay.zixiao.protocol.udp.MemcachedUdpPipelineFactory;
+import com.alipay.zixiao.protocol.unix.UnixDomainSocketListener;
+import com.alipay.zixiao.util.NamedThreadFactory;
+import com.alipay.zixiao.util.ReusePort;
+import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.FixedReceiveBufferSizePredictorFactory;
 import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.DatagramChannelFactory;
 import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.util.ThreadNameDeterminer;
+import org.jboss.netty.util.ThreadRenamingRunnable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * 服务端实现
@@ -32,13 +49,44 @@ public class MemCacheServer <CACHE_ELEMENT extends CacheElement>
     private int frameSize = 32768 * 1024;
 
     private boolean binary = false;
+    private boolean singlePassParser = false;
+    private int coalesceMaxWrites = WriteCoalescingHandler.DEFAULT_MAX_WRITES;
+    private int coalesceMaxBytes = WriteCoalescingHandler.DEFAULT_MAX_BYTES;
+
+    public static final int DEFAULT_BACKLOG = 1024;
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+    public static final long DEFAULT_SNAPSHOT_PERIOD_MILLIS = 15 * 60 * 1000;
+
+    // 线程模型
+    private int           workerCount = Runtime.getRuntime().availableProcessors();
+    private Executor      bossExecutor;
+    private Executor      workerExecutor;
+    private ThreadFactory workerThreadFactory;
+    private boolean       keepThreadNames;
+
+    private int           acceptorCount = 1;
+
+    // socket参数
+    private boolean tcpNoDelay = true;
+    private boolean reuseAddress = true;
+    private int     backlog = DEFAULT_BACKLOG;
+    private int     sendBufferSize = DEFAULT_BUFFER_SIZE;
+    private int     receiveBufferSize = DEFAULT_BUFFER_SIZE;
     private boolean              verbose;
     private int                  idleTime;
     private InetSocketAddress    addr;
+    private InetSocketAddress    udpAddr;
+    private File                 unixSocketPath;
+    private String               unixSocketPermissions = UnixDomainSocketListener.DEFAULT_PERMISSIONS;
+    private File                 snapshotDirectory;
+    private long                 snapshotPeriodMillis = DEFAULT_SNAPSHOT_PERIOD_MILLIS;
     private Cache<CACHE_ELEMENT> cache;
 
     private boolean running = false;
     private ServerSocketChannelFactory channelFactory;
+    private DatagramChannelFactory     udpChannelFactory;
+    private UnixDomainSocketListener   unixListener;
+    private CacheSnapshot              snapshot;
     private DefaultChannelGroup        allChannels;
 
 
@@ -53,57 +101,160 @@ public class MemCacheServer <CACHE_ELEMENT extends CacheElement>
      * 开炮
      */
     public void start() {
-        // TODO provide tweakable options here for passing in custom executors.
-        channelFactory =
-                new NioServerSocketChannelFactory(
-                        Executors.newCachedThreadPool(),
-                        Executors.newCachedThreadPool());
+        // 持久化的存储在接受连接之前先恢复数据
+        try {
+            cache.open();
+        } catch (IOException e) {
+            throw new RuntimeException("failure to open the cache", e);
+        }
+        if (snapshotDirectory != null) {
+            snapshot = new CacheSnapshot(cache, snapshotDirectory, CacheSnapshot.DEFAULT_SEGMENTS);
+            // 预写日志重放出来的已经是完整的数据；快照比它旧，再加载会把快照之后删掉的key恢复出来
+            if ((cache instanceof CacheImpl) && (((CacheImpl) cache).getWriteAheadLog() != null)) {
+                log.info("Not loading the snapshot in " + snapshotDirectory + ", the write-ahead log has been replayed");
+            } else {
+                try {
+                    snapshot.load(Runtime.getRuntime().availableProcessors());
+                } catch (IOException e) {
+                    throw new RuntimeException("failure to load the snapshot in " + snapshotDirectory, e);
+                }
+            }
+            snapshot.start(snapshotPeriodMillis);
+        }
+
+        Executor boss = bossExecutor != null ? bossExecutor
+                : Executors.newCachedThreadPool(new NamedThreadFactory("memcached-boss", false));
+        // 线程名由线程工厂给出；netty的ThreadNameDeterminer是JVM全局的设置，只有要求保留线程名时才改
+        if (keepThreadNames) {
+            ThreadRenamingRunnable.setThreadNameDeterminer(ThreadNameDeterminer.CURRENT);
+        }
+        Executor workers = workerExecutor != null ? workerExecutor
+                : Executors.newCachedThreadPool(new NamedThreadFactory("memcached-io", false, workerThreadFactory));
+        channelFactory = new NioServerSocketChannelFactory(boss, workers, workerCount);
 
         allChannels = new DefaultChannelGroup("memcachedChannelGroup");
 
         ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
 
+        WriteCoalescingHandler writeCoalescing = new WriteCoalescingHandler(coalesceMaxWrites, coalesceMaxBytes);
         ChannelPipelineFactory pipelineFactory;
         if (binary)
-            pipelineFactory = createMemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
+            pipelineFactory = createMemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, writeCoalescing, allChannels);
         else
-            pipelineFactory = createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, frameSize, allChannels);
+            pipelineFactory = createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, frameSize, singlePassParser, writeCoalescing, allChannels);
 
         bootstrap.setPipelineFactory(pipelineFactory);
-        bootstrap.setOption("sendBufferSize", 65536 );
-        bootstrap.setOption("receiveBufferSize", 65536);
+        bootstrap.setOption("backlog", backlog);
+        bootstrap.setOption("reuseAddress", reuseAddress);
+        // 接收缓冲区在accept之前设置在监听socket上才能影响TCP窗口
+        bootstrap.setOption("receiveBufferSize", receiveBufferSize);
+        bootstrap.setOption("child.tcpNoDelay", tcpNoDelay);
+        bootstrap.setOption("child.sendBufferSize", sendBufferSize);
+        bootstrap.setOption("child.receiveBufferSize", receiveBufferSize);
+
+        if (addr != null) {
+            int acceptors = acceptorCount;
+            if (acceptors > 1 && !ReusePort.isSupported()) {
+                log.warn("SO_REUSEPORT is not supported, accepting connections on a single socket");
+                acceptors = 1;
+            }
+            if (acceptors > 1) {
+                bootstrap.setParentHandler(ReusePort.parentHandler());
+            }
+            // 每个监听socket有自己的boss线程，内核在它们之间分配新连接
+            SocketAddress bindAddress = addr;
+            for (int i = 0; i < acceptors; i++) {
+                Channel serverChannel = bootstrap.bind(bindAddress);
+                allChannels.add(serverChannel);
+                // 端口为0的时候后面的socket绑定到第一个socket分配到的端口
+                bindAddress = serverChannel.getLocalAddress();
+            }
+
+            log.info("Listening on " + String.valueOf(addr.getHostName()) + ":" + addr.getPort());
+        }
 
-        Channel serverChannel = bootstrap.bind(addr);
-        allChannels.add(serverChannel);
+        if (unixSocketPath != null) {
+            unixListener = new UnixDomainSocketListener(unixSocketPath, unixSocketPermissions, pipelineFactory);
+            try {
+                unixListener.start();
+            } catch (IOException e) {
+                throw new RuntimeException("failure to listen on unix domain socket " + unixSocketPath, e);
+            }
+            log.info("Listening on " + unixSocketPath);
+        }
 
-        log.info("Listening on " + String.valueOf(addr.getHostName()) + ":" + addr.getPort());
+        if (udpAddr != null) {
+            startUdp();
+        }
 
         running = true;
     }
 
+    /**
+     * UDP监听，一个I/O线程处理所有的数据报
+     */
+    private void startUdp() {
+        udpChannelFactory = new NioDatagramChannelFactory(
+                Executors.newCachedThreadPool(new NamedThreadFactory("memcached-udp", false)), 1);
+        ConnectionlessBootstrap bootstrap = new ConnectionlessBootstrap(udpChannelFactory);
+        bootstrap.setPipelineFactory(createMemcachedUdpPipelineFactory(cache, verbose, singlePassParser));
+        bootstrap.setOption("receiveBufferSize", receiveBufferSize);
+        bootstrap.setOption("sendBufferSize", sendBufferSize);
+        // 接收的数据报最大64K
+        bootstrap.setOption("receiveBufferSizePredictorFactory", new FixedReceiveBufferSizePredictorFactory(65536));
+
+        Channel udpChannel = bootstrap.bind(udpAddr);
+        allChannels.add(udpChannel);
+
+        log.info("Listening on UDP " + String.valueOf(udpAddr.getHostName()) + ":" + udpAddr.getPort());
+    }
+
+    protected ChannelPipelineFactory createMemcachedUdpPipelineFactory(Cache cache, boolean verbose, boolean singlePassParser) {
+        return new MemcachedUdpPipelineFactory(cache, verbose, singlePassParser);
+    }
+
     protected ChannelPipelineFactory createMemcachedBinaryPipelineFactory(
-            Cache cache, String memcachedVersion, boolean verbose, int idleTime, DefaultChannelGroup allChannels) {
-        return new MemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
+            Cache cache, String memcachedVersion, boolean verbose, int idleTime, WriteCoalescingHandler writeCoalescing,
+            DefaultChannelGroup allChannels) {
+        return new MemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, writeCoalescing, allChannels);
     }
 
     protected ChannelPipelineFactory createMemcachedPipelineFactory(
-            Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize, DefaultChannelGroup allChannels) {
-        return new MemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels);
+            Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize,
+            boolean singlePassParser, WriteCoalescingHandler writeCoalescing, DefaultChannelGroup allChannels) {
+        return new MemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, singlePassParser,
+                writeCoalescing, allChannels);
     }
 
     public void stop() {
+        if (unixListener != null) {
+            unixListener.stop();
+        }
 
         ChannelGroupFuture future = allChannels.close();
         future.awaitUninterruptibly();
         if (!future.isCompleteSuccess()) {
             throw new RuntimeException("failure to complete closing all network channels");
         }
+        if (snapshot != null) {
+            // 连接都关掉以后再写最后一次快照，不会漏掉停机前的写入
+            try {
+                snapshot.stop();
+                snapshot.write();
+            } catch (Exception e) {
+                log.error("Failure to write the snapshot on stop", e);
+            }
+            snapshot = null;
+        }
         try {
             cache.close();
         } catch (IOException e) {
             throw new RuntimeException("exception while closing storage", e);
         }
         channelFactory.releaseExternalResources();
+        if (udpChannelFactory != null) {
+            udpChannelFactory.releaseExternalResources();
+        }
 
         running = false;
     }
@@ -120,6 +271,58 @@ public class MemCacheServer <CACHE_ELEMENT extends CacheElement>
         this.addr = addr;
     }
 
+    public File getUnixSocketPath() {
+        return unixSocketPath;
+    }
+
+    /**
+     * 同时(或者在addr为null的时候只)在这个unix domain socket上提供服务，需要Java 16以上
+     */
+    public void setUnixSocketPath(File unixSocketPath) {
+        this.unixSocketPath = unixSocketPath;
+    }
+
+    public String getUnixSocketPermissions() {
+        return unixSocketPermissions;
+    }
+
+    /**
+     * @param permissions the permissions of the socket file, e.g. "rw-rw----"; null keeps the umask default
+     */
+    public void setUnixSocketPermissions(String permissions) {
+        this.unixSocketPermissions = permissions;
+    }
+
+    public File getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    /**
+     * 启动时从这个目录加载最新的快照，运行期间定期、停止时再写一次。缓存有预写日志的时候启动时只重放日志，不加载快照
+     */
+    public void setSnapshotDirectory(File snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    public long getSnapshotPeriodMillis() {
+        return snapshotPeriodMillis;
+    }
+
+    public void setSnapshotPeriodMillis(long snapshotPeriodMillis) {
+        this.snapshotPeriodMillis = snapshotPeriodMillis;
+    }
+
+    public InetSocketAddress getUdpAddr() {
+        return udpAddr;
+    }
+
+    /**
+     * 同时在这个地址上监听UDP，默认不监听
+     */
+    public void setUdpAddr(InetSocketAddress udpAddr) {
+        this.udpAddr = udpAddr;
+    }
+
     public Cache<CACHE_ELEMENT> getCache() {
         return cache;
     }
@@ -140,4 +343,140 @@ public class MemCacheServer <CACHE_ELEMENT extends CacheElement>
         this.binary = binary;
     }
 
+    public boolean isSinglePassParser() {
+        return singlePassParser;
+    }
+
+    /**
+     * 文本协议使用单遍扫描、不产生中间对象的命令解析器
+     */
+    public void setSinglePassParser(boolean singlePassParser) {
+        this.singlePassParser = singlePassParser;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * I/O线程数，默认等于CPU核数
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("workerCount must be positive");
+        }
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * 接受连接的线程池，netty每个监听socket用一个boss线程；停止服务的时候会被关闭
+     */
+    public void setBossExecutor(Executor bossExecutor) {
+        this.bossExecutor = bossExecutor;
+    }
+
+    /**
+     * I/O线程池，至少要能同时运行workerCount个线程；停止服务的时候会被关闭
+     */
+    public void setWorkerExecutor(Executor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
+    /**
+     * 创建默认I/O线程的ThreadFactory，比如把线程绑定到CPU核上；线程名仍然是memcached-io-N。
+     * 设置了workerExecutor时不使用。netty在I/O循环运行期间按ThreadRenamingRunnable的ThreadNameDeterminer给线程改名，
+     * 要在jstack里看到memcached-io-N，见{@link #setKeepThreadNames}
+     */
+    public void setWorkerThreadFactory(ThreadFactory workerThreadFactory) {
+        this.workerThreadFactory = workerThreadFactory;
+    }
+
+    /**
+     * 为true时，启动服务把netty的ThreadNameDeterminer设成CURRENT，I/O线程运行期间保留线程工厂起的名字。
+     * 这个设置是JVM全局的，同一进程里其它netty服务的线程名也会跟着变，所以默认不开
+     */
+    public void setKeepThreadNames(boolean keepThreadNames) {
+        this.keepThreadNames = keepThreadNames;
+    }
+
+    public int getAcceptorCount() {
+        return acceptorCount;
+    }
+
+    /**
+     * 监听socket的个数，大于1的时候用SO_REUSEPORT绑定同一个地址，由内核把新连接分配到各自的boss线程上。
+     * 不支持SO_REUSEPORT的时候退回到一个监听socket
+     */
+    public void setAcceptorCount(int acceptorCount) {
+        if (acceptorCount <= 0) {
+            throw new IllegalArgumentException("acceptorCount must be positive");
+        }
+        this.acceptorCount = acceptorCount;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    public void setReuseAddress(boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * 监听socket等待accept的连接队列长度(SO_BACKLOG)
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getCoalesceMaxWrites() {
+        return coalesceMaxWrites;
+    }
+
+    public int getCoalesceMaxBytes() {
+        return coalesceMaxBytes;
+    }
+
+    /**
+     * 一次网络读产生的响应合并写出，超过条数或者字节数上限的时候提前写出
+     *
+     * @param maxWrites the maximum number of responses held back, 1 writes every response on its own
+     * @param maxBytes  the maximum number of bytes held back
+     */
+    public void setWriteCoalescing(int maxWrites, int maxBytes) {
+        if (maxWrites <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("maxWrites and maxBytes must be positive");
+        }
+        this.coalesceMaxWrites = maxWrites;
+        this.coalesceMaxBytes = maxBytes;
+    }
+
 }
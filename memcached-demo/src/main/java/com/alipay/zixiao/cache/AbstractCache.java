@@ -1,12 +1,15 @@
 package com.alipay.zixiao.cache;
 
 import com.alipay.zixiao.MemCacheServer;
+import com.alipay.zixiao.util.BufferPool;
+import com.alipay.zixiao.util.Clock;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.String.valueOf;
@@ -19,21 +22,26 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
 
     protected final AtomicLong started = new AtomicLong();
 
-    protected final AtomicInteger getCmds = new AtomicInteger();
-    protected final AtomicInteger setCmds = new AtomicInteger();
-    protected final AtomicInteger getHits = new AtomicInteger();
-    protected final AtomicInteger getMisses = new AtomicInteger();
+    protected final StatsRegistry stats;
     protected final AtomicLong casCounter = new AtomicLong(1);
 
     public AbstractCache() {
+        this(new StatsRegistry());
+    }
+
+    /**
+     * @param stats the counters of the cache, e.g. a registry summing up the counters of other caches
+     */
+    protected AbstractCache(StatsRegistry stats) {
+        this.stats = stats;
         initStats();
     }
 
     /**
-     * @return the current time in seconds (from epoch), used for expiries, etc.
+     * @return the current time in milliseconds (from epoch) from the shared {@link Clock}, used for expiries, etc.
      */
-    public static int Now() {
-        return (int) (System.currentTimeMillis());
+    public static long Now() {
+        return Clock.now();
     }
 
     protected abstract Set<Key> keys();
@@ -45,20 +53,24 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
     public abstract long getCurrentBytes();
 
 
-    public final int getGetCmds() {
-        return getCmds.get();
+    public final StatsRegistry getStats() {
+        return stats;
+    }
+
+    public final long getGetCmds() {
+        return stats.get(StatsRegistry.Stat.CMD_GET);
     }
 
-    public final int getSetCmds() {
-        return setCmds.get();
+    public final long getSetCmds() {
+        return stats.get(StatsRegistry.Stat.CMD_SET);
     }
 
-    public final int getGetHits() {
-        return getHits.get();
+    public final long getGetHits() {
+        return stats.get(StatsRegistry.Stat.GET_HITS);
     }
 
-    public final int getGetMisses() {
-        return getMisses.get();
+    public final long getGetMisses() {
+        return stats.get(StatsRegistry.Stat.GET_MISSES);
     }
 
     /**
@@ -72,12 +84,8 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
 
         // stats we know
         multiSet(result, "version", MemCacheServer.memcachedVersion);
-        multiSet(result, "cmd_gets", valueOf(getGetCmds()));
-        multiSet(result, "cmd_sets", valueOf(getSetCmds()));
-        multiSet(result, "get_hits", valueOf(getGetHits()));
-        multiSet(result, "get_misses", valueOf(getGetMisses()));
-        multiSet(result, "time", valueOf(valueOf(Now())));
-        multiSet(result, "uptime", valueOf(Now() - this.started.longValue()));
+        multiSet(result, "time", valueOf(Now() / 1000));
+        multiSet(result, "uptime", valueOf((Now() - this.started.longValue()) / 1000));
         multiSet(result, "cur_items", valueOf(this.getCurrentItems()));
         multiSet(result, "limit_maxbytes", valueOf(this.getLimitMaxBytes()));
         multiSet(result, "current_bytes", valueOf(this.getCurrentBytes()));
@@ -91,13 +99,49 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
         multiSet(result, "rusage_system", "0:0");
         multiSet(result, "connection_structures", "0");
 
-        multiSet(result, "bytes_read", "0");
-        multiSet(result, "bytes_written", "0");
+        // counters are summed only here, never on the request path
+        for (Map.Entry<String, Long> counter : stats.snapshot().entrySet()) {
+            multiSet(result, counter.getKey(), valueOf(counter.getValue()));
+        }
+
+        extendedStats(result);
 
         return result;
     }
 
-    private void multiSet(Map<String, Set<String>> map, String key, String val) {
+    /**
+     * Hook for implementations to add their own statistics to the result of {@link #stat(String)}
+     *
+     * @param result the stats map to add to
+     */
+    protected void extendedStats(Map<String, Set<String>> result) {
+    }
+
+    /**
+     * 内存池的占用，多个分片共用同一个池的时候只算一次
+     *
+     * @param pools the pools of the cache
+     */
+    protected final void poolStats(Map<String, Set<String>> result, BufferPool... pools) {
+        long chunks = 0, used = 0, pooled = 0, hits = 0, misses = 0;
+        Set<BufferPool> seen = Collections.newSetFromMap(new IdentityHashMap<BufferPool, Boolean>());
+        for (BufferPool pool : pools) {
+            if (seen.add(pool)) {
+                chunks += pool.getChunksInUse();
+                used += pool.getBytesInUse();
+                pooled += pool.getBytesPooled();
+                hits += pool.getHits();
+                misses += pool.getMisses();
+            }
+        }
+        multiSet(result, "pool_chunks_in_use", valueOf(chunks));
+        multiSet(result, "pool_bytes_in_use", valueOf(used));
+        multiSet(result, "pool_bytes_free", valueOf(pooled));
+        multiSet(result, "pool_hits", valueOf(hits));
+        multiSet(result, "pool_misses", valueOf(misses));
+    }
+
+    protected final void multiSet(Map<String, Set<String>> map, String key, String val) {
         Set<String> cur = map.get(key);
         if (cur == null) {
             cur = new HashSet<String>();
@@ -110,13 +154,7 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
      * Initialize all statistic counters
      */
     protected void initStats() {
-        started.set(System.currentTimeMillis());
-//        getCmds.set(0);
-//        setCmds.set(0);
-//        getHits.set(0);
-//        getMisses.set(0);
-
-
+        started.set(Now());
     }
 
     public abstract void asyncEventPing();
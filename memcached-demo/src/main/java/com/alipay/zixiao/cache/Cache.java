@@ -80,12 +80,22 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
     StoreResponse cas(Long cas_key, CACHE_ELEMENT e);
 
     /**
-     * Increment/decremen t an (integer) element in the cache
+     * Increment/decrement an (integer) element in the cache. Values are unsigned 64 bit counters: incrementing wraps
+     * around at 2^64 and decrementing stops at 0, as in memcached
      * @param key the key to increment
-     * @param mod the amount to add to the value
-     * @return the message response
+     * @param delta the amount to add or subtract, an unsigned 64 bit number
+     * @param incr true to increment, false to decrement
+     * @return the new value as an unsigned 64 bit number, or 'null' in case of cache miss
+     */
+    Long get_add(Key key, long delta, boolean incr);
+
+    /**
+     * Update the expiration time of an element in the cache, leaving its value and cas unchanged
+     * @param key the key of the element
+     * @param expire the new expiry time in milliseconds since the epoch, or 0 for never
+     * @return the touched element, or 'null' in case of cache miss.
      */
-    Integer get_add(Key key, int mod);
+    CACHE_ELEMENT touch(Key key, long expire);
 
     /**
      * Get element(s) from the cache
@@ -107,6 +117,12 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      */
     boolean flush_all(int expire);
 
+    /**
+     * Open the cache, loading what its storage kept from before a restart. Called once before the cache is served.
+     * @throws IOException
+     */
+    void open() throws IOException;
+
     /**
      * Close the cache, freeing all resources on which it depends.
      * @throws IOException
@@ -132,22 +148,27 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
     /**
      * @return the number of get commands executed
      */
-    int getGetCmds();
+    long getGetCmds();
 
     /**
      * @return the number of set commands executed
      */
-    int getSetCmds();
+    long getSetCmds();
 
     /**
      * @return the number of get hits
      */
-    int getGetHits();
+    long getGetHits();
 
     /**
      * @return the number of stats
      */
-    int getGetMisses();
+    long getGetMisses();
+
+    /**
+     * @return the counters of the cache, which the network layer also reports traffic and connections to
+     */
+    StatsRegistry getStats();
 
     /**
      * Retrieve stats about the cache. If an argument is specified, a specific category of stats is requested.
@@ -157,8 +178,8 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
     Map<String, Set<String>> stat(String arg);
 
     /**
-     * Called periodically by the network event loop to process any pending events.
-     * (such as delete queues, etc.)
+     * Process any pending events (such as delete queues, etc.) right away. Implementations are expected
+     * to do this periodically on their own; request threads do not call this.
      */
     void asyncEventPing();
 
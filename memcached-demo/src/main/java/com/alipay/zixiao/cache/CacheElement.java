@@ -8,7 +8,6 @@ import java.io.Serializable;
 /**
  */
 public interface CacheElement extends Serializable, SizedItem {
-    public final static long THIRTY_DAYS = 2592000000L;
 
     int size();
 
@@ -38,5 +37,13 @@ public interface CacheElement extends Serializable, SizedItem {
 
     CacheElement prepend(LocalCacheElement element);
 
-    LocalCacheElement.IncrDecrResult add(int mod);
+    LocalCacheElement.IncrDecrResult add(long delta, boolean incr);
+
+    /**
+     * 释放从缓存里取出时持有的内存引用。调用以后不能再读取key和value
+     * <p/>
+     * Elements returned by {@link Cache#get} and {@link Cache#touch} pin the pooled memory of their key and value
+     * until they are released; an element which is never released just keeps its memory out of the pool.
+     */
+    void release();
 }
@@ -1,33 +1,87 @@
 
 package com.alipay.zixiao.cache;
 
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
 import com.alipay.zixiao.cache.storage.CacheStorage;
+import com.alipay.zixiao.util.BufferPool;
 import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.lang.String.valueOf;
 
 /**
  * 缓存的实现
  */
 public final class CacheImpl extends AbstractCache<LocalCacheElement> implements Cache<LocalCacheElement> {
 
+    /**
+     * 时间轮的刻度，过期和延期删除的精度
+     */
+    public static final long EXPIRY_TICK_MILLIS = 100;
+
+    private static final int KEY_LOCKS = 64;
+
     final         CacheStorage<Key, LocalCacheElement> storage;
-    final         DelayQueue<DelayedMCElement>         deleteQueue;
-    private final ScheduledExecutorService             scavenger;
+    final         TimingWheel<Expiry>                  expiryWheel;
+    private final MaintenanceScheduler                 maintenance;
+    private final BufferPool                           pool;
+    private       WriteAheadLog                        wal;
+    // 持久化模式下分配cas和修改存储时按key加的锁，见lock(Key)
+    private       Lock[]                               keyLocks;
+
+    private final TimingWheel.Handler<Expiry> expiryHandler = new TimingWheel.Handler<Expiry>() {
+        public void expired(Expiry expiry) {
+            expire(expiry);
+        }
+    };
+
+    private final MaintenanceScheduler.Task maintenanceTask = new MaintenanceScheduler.Task() {
+        public int run(int budget) {
+            return expiryWheel.advance(Now(), expiryHandler, budget);
+        }
+    };
 
     public CacheImpl(CacheStorage<Key, LocalCacheElement> storage) {
+        this(storage, MaintenanceScheduler.DEFAULT_PERIOD_MILLIS, MaintenanceScheduler.DEFAULT_BUDGET);
+    }
+
+    /**
+     * @param storage                 the storage for the elements
+     * @param maintenancePeriodMillis the delay between two maintenance runs, in milliseconds
+     * @param maintenanceBudget       the maximum number of items expired by a single maintenance run
+     */
+    public CacheImpl(CacheStorage<Key, LocalCacheElement> storage, long maintenancePeriodMillis, int maintenanceBudget) {
+        this(storage, maintenancePeriodMillis, maintenanceBudget, new BufferPool());
+    }
+
+    /**
+     * @param pool the pool for the keys and values held by the storage, unused if the storage copies them itself
+     */
+    public CacheImpl(CacheStorage<Key, LocalCacheElement> storage, long maintenancePeriodMillis, int maintenanceBudget,
+                     BufferPool pool) {
         super();
         this.storage = storage;
-        deleteQueue = new DelayQueue<DelayedMCElement>();
-
-        scavenger = Executors.newScheduledThreadPool(1);
-        scavenger.scheduleAtFixedRate(new Runnable(){
-            public void run() {
-                asyncEventPing();
+        this.pool = pool;
+        expiryWheel = new TimingWheel<Expiry>(EXPIRY_TICK_MILLIS, Now());
+
+        storage.setEvictionListener(new ConcurrentLinkedHashMap.EvictionListener<Key, LocalCacheElement>() {
+            public void onEviction(Key key, LocalCacheElement value) {
+                stats.increment(StatsRegistry.Stat.EVICTIONS);
+                if (!value.isFetched()) {
+                    stats.increment(StatsRegistry.Stat.EVICTED_UNFETCHED);
+                }
+                cancelExpiry(value);
+                value.release();
             }
-        }, 10, 2, TimeUnit.SECONDS);
+        });
+
+        maintenance = new MaintenanceScheduler("cache-maintenance", maintenancePeriodMillis, maintenanceBudget);
+        maintenance.start(maintenanceTask);
     }
 
 
@@ -38,13 +92,51 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         if (time != 0) {
             LocalCacheElement placeHolder = new LocalCacheElement(key, 0, 0, 0L);
             placeHolder.setData(ChannelBuffers.buffer(0));
-            placeHolder.block(Now() + (long)time);
-
-            storage.replace(key, placeHolder);
-
-            deleteQueue.add(new DelayedMCElement(placeHolder));
-        } else
-            removed = storage.remove(key) != null;
+            placeHolder.block(Now() + time * 1000L);
+            retain(placeHolder);
+
+            final Lock lock = lock(key);
+            final LocalCacheElement old;
+            long ticket = 0;
+            try {
+                placeHolder.setCasUnique(casCounter.getAndIncrement());
+                old = storage.replace(key, placeHolder);
+                if ((old != null) && (wal != null)) {
+                    ticket = wal.delete(key, placeHolder.getCasUnique());
+                }
+            } finally {
+                unlock(lock);
+            }
+            if (old != null) {
+                cancelExpiry(old);
+                scheduleExpiry(placeHolder);
+                old.release();
+                removed = true;
+                commit(ticket);
+            } else {
+                placeHolder.release();
+            }
+        } else {
+            final Lock lock = lock(key);
+            final LocalCacheElement old;
+            long ticket = 0;
+            try {
+                final long sequence = (wal != null) ? casCounter.getAndIncrement() : 0;
+                old = storage.remove(key);
+                if ((old != null) && (wal != null)) {
+                    ticket = wal.delete(key, sequence);
+                }
+            } finally {
+                unlock(lock);
+            }
+            cancelExpiry(old);
+            removed = old != null;
+            if (removed) {
+                old.release();
+                commit(ticket);
+            }
+        }
+        stats.increment(removed ? StatsRegistry.Stat.DELETE_HITS : StatsRegistry.Stat.DELETE_MISSES);
 
         if (removed) return DeleteResponse.DELETED;
         else return DeleteResponse.NOT_FOUND;
@@ -53,88 +145,329 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
 
 
     public StoreResponse add(LocalCacheElement e) {
+        stats.increment(StatsRegistry.Stat.CMD_SET);
         final long origCasUnique = e.getCasUnique();
-        e.setCasUnique(casCounter.getAndIncrement());
-        final boolean stored = storage.putIfAbsent(e.getKey(), e) == null;
+        retain(e);
+        final Lock lock = lock(e.getKey());
+        final boolean stored;
+        long ticket = 0;
+        try {
+            e.setCasUnique(casCounter.getAndIncrement());
+            stored = storage.putIfAbsent(e.getKey(), e) == null;
+            if (stored) {
+                ticket = log(e);
+            }
+        } finally {
+            unlock(lock);
+        }
         //没存储成功恢复原来计数
         if (!stored) {
             e.setCasUnique(origCasUnique);
+            e.release();
+        } else {
+            stats.increment(StatsRegistry.Stat.TOTAL_ITEMS);
+            scheduleExpiry(e);
+            commit(ticket);
         }
         return stored ? StoreResponse.STORED : StoreResponse.NOT_STORED;
     }
 
 
     public StoreResponse replace(LocalCacheElement e) {
-        return storage.replace(e.getKey(), e) != null ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        stats.increment(StatsRegistry.Stat.CMD_SET);
+        retain(e);
+        final Lock lock = lock(e.getKey());
+        final LocalCacheElement old;
+        long ticket = 0;
+        try {
+            e.setCasUnique(casCounter.getAndIncrement());
+            old = storage.replace(e.getKey(), e);
+            if (old != null) {
+                ticket = log(e);
+            }
+        } finally {
+            unlock(lock);
+        }
+        if (old == null) {
+            e.release();
+            return StoreResponse.NOT_STORED;
+        }
+        stats.increment(StatsRegistry.Stat.TOTAL_ITEMS);
+        cancelExpiry(old);
+        scheduleExpiry(e);
+        old.release();
+        commit(ticket);
+        return StoreResponse.STORED;
     }
 
 
     public StoreResponse append(LocalCacheElement element) {
-        LocalCacheElement old = storage.get(element.getKey());
-        if (old == null || isBlocked(old) || isExpired(old)) {
-            getMisses.incrementAndGet();
-            return StoreResponse.NOT_FOUND;
-        }
-        else {
-            return storage.replace(old.getKey(), old, old.append(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        stats.increment(StatsRegistry.Stat.CMD_SET);
+        for (; ;) {
+            LocalCacheElement old = storage.get(element.getKey());
+            if (old == null || isBlocked(old) || isExpired(old)) {
+                stats.increment(StatsRegistry.Stat.GET_MISSES);
+                return StoreResponse.NOT_FOUND;
+            }
+            // 拷贝期间旧元素的内存不能被回收；旧元素刚好被替换的时候重新读取
+            if (!old.tryRetain()) {
+                continue;
+            }
+            try {
+                LocalCacheElement replacement = old.append(element);
+                retain(replacement);
+                // 并发修改过就重新读取
+                if (replace(old, replacement, true)) {
+                    return StoreResponse.STORED;
+                }
+            } finally {
+                old.release();
+            }
         }
     }
 
 
     public StoreResponse prepend(LocalCacheElement element) {
-        LocalCacheElement old = storage.get(element.getKey());
-        if (old == null || isBlocked(old) || isExpired(old)) {
-            getMisses.incrementAndGet();
-            return StoreResponse.NOT_FOUND;
-        }
-        else {
-            return storage.replace(old.getKey(), old, old.prepend(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        stats.increment(StatsRegistry.Stat.CMD_SET);
+        for (; ;) {
+            LocalCacheElement old = storage.get(element.getKey());
+            if (old == null || isBlocked(old) || isExpired(old)) {
+                stats.increment(StatsRegistry.Stat.GET_MISSES);
+                return StoreResponse.NOT_FOUND;
+            }
+            // 拷贝期间旧元素的内存不能被回收；旧元素刚好被替换的时候重新读取
+            if (!old.tryRetain()) {
+                continue;
+            }
+            try {
+                LocalCacheElement replacement = old.prepend(element);
+                retain(replacement);
+                // 并发修改过就重新读取
+                if (replace(old, replacement, true)) {
+                    return StoreResponse.STORED;
+                }
+            } finally {
+                old.release();
+            }
         }
     }
 
 
     public StoreResponse set(LocalCacheElement e) {
-        setCmds.incrementAndGet();//update stats
-
-        e.setCasUnique(casCounter.getAndIncrement());
-
-        storage.put(e.getKey(), e);
+        stats.increment(StatsRegistry.Stat.CMD_SET);
+        stats.increment(StatsRegistry.Stat.TOTAL_ITEMS);
+
+        retain(e);
+        final Lock lock = lock(e.getKey());
+        final LocalCacheElement old;
+        final long ticket;
+        try {
+            e.setCasUnique(casCounter.getAndIncrement());
+            old = storage.put(e.getKey(), e);
+            ticket = log(e);
+        } finally {
+            unlock(lock);
+        }
+        cancelExpiry(old);
+        scheduleExpiry(e);
+        if (old != null) {
+            old.release();
+        }
+        commit(ticket);
 
         return StoreResponse.STORED;
     }
 
 
     public StoreResponse cas(Long cas_key, LocalCacheElement e) {
+        stats.increment(StatsRegistry.Stat.CMD_SET);
         // 查看是否存在元素
         LocalCacheElement element = storage.get(e.getKey());
         if (element == null || isBlocked(element)) {
-            getMisses.incrementAndGet();
+            stats.increment(StatsRegistry.Stat.CAS_MISSES);
             return StoreResponse.NOT_FOUND;
         }
 
         if (element.getCasUnique() == cas_key) {
             // 命中
-        	e.setCasUnique(casCounter.getAndIncrement());
-            if (storage.replace(e.getKey(), element, e)) return StoreResponse.STORED;
-            else {
-                getMisses.incrementAndGet();
+            retain(e);
+            if (replace(element, e, true)) {
+                stats.increment(StatsRegistry.Stat.CAS_HITS);
+                stats.increment(StatsRegistry.Stat.TOTAL_ITEMS);
+                return StoreResponse.STORED;
+            } else {
+                stats.increment(StatsRegistry.Stat.CAS_MISSES);
                 return StoreResponse.NOT_FOUND;
             }
         } else {
             // 并发处理,别的线程处理
+            stats.increment(StatsRegistry.Stat.CAS_BADVAL);
             return StoreResponse.EXISTS;
         }
     }
 
 
-    public Integer get_add(Key key, int mod) {
-        LocalCacheElement old = storage.get(key);
-        if (old == null || isBlocked(old) || isExpired(old)) {
-            getMisses.incrementAndGet();
+    public Long get_add(Key key, long delta, boolean incr) {
+        for (; ;) {
+            LocalCacheElement old = storage.get(key);
+            if (old == null || isBlocked(old) || isExpired(old)) {
+                stats.increment(incr ? StatsRegistry.Stat.INCR_MISSES : StatsRegistry.Stat.DECR_MISSES);
+                return null;
+            }
+            // 旧元素刚好被替换的时候重新读取
+            if (!old.tryRetain()) {
+                continue;
+            }
+            try {
+                LocalCacheElement.IncrDecrResult result = old.add(delta, incr);
+                retain(result.replace);
+                // 并发修改过就在新的值上重新计算
+                if (replace(old, result.replace, true)) {
+                    stats.increment(incr ? StatsRegistry.Stat.INCR_HITS : StatsRegistry.Stat.DECR_HITS);
+                    return result.oldValue;
+                }
+            } finally {
+                old.release();
+            }
+        }
+    }
+
+
+    public LocalCacheElement touch(Key key, long expire) {
+        stats.increment(StatsRegistry.Stat.CMD_TOUCH);
+        for (; ;) {
+            LocalCacheElement old = storage.get(key);
+            if (old == null || old.isBlocked() || isExpired(old)) {
+                stats.increment(StatsRegistry.Stat.TOUCH_MISSES);
+                return null;
+            }
+            // 新元素和旧元素共用内存：一个引用归存储，一个归调用方
+            if (!old.tryRetain()) {
+                continue;
+            }
+            LocalCacheElement touched = old.touch(expire);
+            touched.tryRetain();
+            // 并发修改过就重新读取；cas不变，它的记录在旧元素的记录之后，重放时同样的cas后来的生效
+            if (replace(old, touched, false)) {
+                stats.increment(StatsRegistry.Stat.TOUCH_HITS);
+                touched.markFetched();
+                return touched;
+            }
+            // replace()已经释放了存储的那个引用，这里只释放调用方的
+            touched.release();
+        }
+    }
+
+
+    /**
+     * 条件替换，成功后记日志，把过期定时器转移到新的元素上，并释放存储对旧元素的引用；失败的时候释放新元素
+     *
+     * @param newCas whether the replacement gets a new cas, assigned together with the replace
+     */
+    private boolean replace(LocalCacheElement old, LocalCacheElement replacement, boolean newCas) {
+        final Lock lock = lock(old.getKey());
+        final boolean replaced;
+        long ticket = 0;
+        try {
+            if (newCas) {
+                replacement.setCasUnique(casCounter.getAndIncrement());
+            }
+            replaced = storage.replace(old.getKey(), old, replacement);
+            if (replaced) {
+                ticket = log(replacement);
+            }
+        } finally {
+            unlock(lock);
+        }
+        if (!replaced) {
+            replacement.release();
+            return false;
+        }
+        cancelExpiry(old);
+        scheduleExpiry(replacement);
+        old.release();
+        commit(ticket);
+        return true;
+    }
+
+
+    /**
+     * 持久化模式下，同一个key的修改在key的锁里分配cas(日志记录的序号)、修改存储并把记录排进日志，cas和日志的顺序
+     * 就是存储里的顺序；重放时每个key保留序号最大的记录，恢复出来的才和内存里一致。等待刷盘在锁外，不占着锁。
+     * 没有日志的时候不加锁
+     *
+     * @return the lock taken, or null without a log
+     */
+    private Lock lock(Key key) {
+        final Lock[] locks = keyLocks;
+        if (locks == null) {
             return null;
+        }
+        final Lock lock = locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
+        lock.lock();
+        return lock;
+    }
+
+
+    private static void unlock(Lock lock) {
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * 网络层传进来的key和value是读缓冲区的切片，存储会直接持有元素的时候在这里拷贝一次到池里的内存；
+     * 自己序列化元素的存储不需要拷贝
+     */
+    private void retain(LocalCacheElement e) {
+        if (!storage.copiesValues()) {
+            e.detach(pool);
+        }
+    }
+
+
+    /**
+     * 为有过期时间或者延期删除的元素注册时间轮定时器
+     */
+    private void scheduleExpiry(LocalCacheElement e) {
+        final long deadline;
+        if (e.isBlocked()) {
+            deadline = e.getBlockedUntil();
+        } else if (e.getExpire() != 0) {
+            deadline = e.getExpire();
         } else {
-            LocalCacheElement.IncrDecrResult result = old.add(mod);
-            return storage.replace(old.getKey(), old, result.replace) ? result.oldValue : null;
+            return;
+        }
+        e.setExpiry(expiryWheel.schedule(new Expiry(e.getKey(), e.getCasUnique()), deadline));
+    }
+
+
+    private void cancelExpiry(LocalCacheElement e) {
+        if (e != null && e.getExpiry() != null) {
+            e.getExpiry().cancel();
+        }
+    }
+
+
+    /**
+     * 定时器到期：只有存储里还是同一个元素(cas相同)并且确实过期时才删除，过期的定时器直接忽略
+     */
+    private void expire(Expiry expiry) {
+        LocalCacheElement e = storage.get(expiry.key);
+        if (e == null || e.getCasUnique() != expiry.casUnique) {
+            return;
+        }
+        if (e.isBlocked() ? e.getBlockedUntil() <= Now() : isExpired(e)) {
+            if (storage.remove(expiry.key, e)) {
+                e.release();
+                stats.increment(StatsRegistry.Stat.RECLAIMED);
+                if (!e.isBlocked() && !e.isFetched()) {
+                    stats.increment(StatsRegistry.Stat.EXPIRED_UNFETCHED);
+                }
+            }
+        } else {
+            scheduleExpiry(e);
         }
     }
 
@@ -144,33 +477,46 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
     }
 
     protected boolean isExpired(CacheElement e) {
-        return e.getExpire() != 0 && e.getExpire() < Now();
+        return e.getExpire() != 0 && e.getExpire() <= Now();
     }
 
 
+    /**
+     * 返回的元素持有内存引用，调用方用完以后要{@link LocalCacheElement#release() 释放}
+     */
     public LocalCacheElement[] get(Key ... keys) {
-        getCmds.incrementAndGet();
+        stats.add(StatsRegistry.Stat.CMD_GET, keys.length);
 
         LocalCacheElement[] elements = new LocalCacheElement[keys.length];
         int x = 0;
         int hits = 0;
         int misses = 0;
+        int expired = 0;
         for (Key key : keys) {
-            LocalCacheElement e = storage.get(key);
+            LocalCacheElement e;
+            // 命中的元素要持有引用，读到的元素刚好被替换并释放的时候重新读取
+            do {
+                e = storage.get(key);
+            } while (e != null && !isExpired(e) && !e.isBlocked() && !e.tryRetain());
             if (e == null || isExpired(e) || e.isBlocked()) {
                 misses++;
+                if (e != null && isExpired(e)) {
+                    expired++;
+                }
 
                 elements[x] = null;
             } else {
                 hits++;
+                e.markFetched();
 
                 elements[x] = e;
             }
             x++;
 
         }
-        getMisses.addAndGet(misses);
-        getHits.addAndGet(hits);
+        stats.add(StatsRegistry.Stat.GET_MISSES, misses);
+        stats.add(StatsRegistry.Stat.GET_EXPIRED, expired);
+        stats.add(StatsRegistry.Stat.GET_HITS, hits);
 
         return elements;
 
@@ -183,13 +529,172 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
 
 
     public boolean flush_all(int expire) {
-        storage.clear();
+        stats.increment(StatsRegistry.Stat.CMD_FLUSH);
+        return flush();
+    }
+
+    /**
+     * 清空缓存但不计cmd_flush，分片缓存只在自己的统计里计一次
+     */
+    boolean flush() {
+        if (wal == null) {
+            clear();
+            return true;
+        }
+        // 占住所有key的锁：序号比flush小的修改都已经在存储里，会被清掉，之后的修改序号都比它大
+        final long sequence;
+        for (Lock lock : keyLocks) {
+            lock.lock();
+        }
+        final long ticket;
+        try {
+            sequence = casCounter.getAndIncrement();
+            clear();
+            // 重放时序号比它小的记录都作废
+            ticket = wal.flush(sequence);
+        } finally {
+            for (Lock lock : keyLocks) {
+                lock.unlock();
+            }
+        }
+        wal.commit(ticket);
+        return true;
+    }
+
+
+    private void clear() {
+        if (storage.copiesValues()) {
+            storage.clear();
+            return;
+        }
+        // 逐个删除，释放每个元素的内存
+        for (Key key : storage.keySet()) {
+            LocalCacheElement old = storage.remove(key);
+            if (old != null) {
+                cancelExpiry(old);
+                old.release();
+            }
+        }
+    }
+
+
+    public void open() throws IOException {
+        advanceCas(storage.open());
+        if (wal != null) {
+            wal.open(this);
+        }
+    }
+
+
+    /**
+     * 持久化模式：修改写到预写日志里，open()的时候重放。必须在open()之前设置
+     *
+     * @param wal the log, which belongs to this cache from now on
+     */
+    public void setWriteAheadLog(WriteAheadLog wal) {
+        final Lock[] locks = new Lock[KEY_LOCKS];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.keyLocks = locks;
+        this.wal = wal;
+    }
+
+
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+
+
+    /**
+     * 把元素排进日志，在key的锁里调用
+     *
+     * @return the ticket to {@link #commit}, 0 without a log
+     */
+    private long log(LocalCacheElement e) {
+        return (wal != null) ? wal.put(e) : 0;
+    }
+
+
+    /**
+     * 在锁外等日志记录按刷盘策略写好
+     */
+    private void commit(long ticket) {
+        if (wal != null) {
+            wal.commit(ticket);
+        }
+    }
+
+
+    /**
+     * 重放一个元素，除非存储里已经有更新的(cas更大的)
+     */
+    void replayPut(LocalCacheElement e) {
+        final LocalCacheElement existing = storage.get(e.getKey());
+        if (isExpired(e) || ((existing != null) && (existing.getCasUnique() > e.getCasUnique()))) {
+            return;
+        }
+        retain(e);
+        final LocalCacheElement old = storage.put(e.getKey(), e);
+        cancelExpiry(old);
+        scheduleExpiry(e);
+        if (old != null) {
+            old.release();
+        }
+        advanceCas(e.getCasUnique());
+    }
+
+
+    void replayDelete(Key key, long sequence) {
+        final LocalCacheElement existing = storage.get(key);
+        if ((existing != null) && (existing.getCasUnique() <= sequence) && storage.remove(key, existing)) {
+            cancelExpiry(existing);
+            existing.release();
+        }
+        advanceCas(sequence);
+    }
+
+
+    void replayFlush(long sequence) {
+        for (Key key : storage.keySet()) {
+            replayDelete(key, sequence);
+        }
+    }
+
+
+    /**
+     * 新分配的cas不能和恢复出来的元素重复，否则客户端重启前拿到的cas可能误匹配
+     */
+    private void advanceCas(long recovered) {
+        long next;
+        while ((next = casCounter.get()) <= recovered && !casCounter.compareAndSet(next, recovered + 1)) {
+            // retry
+        }
+    }
+
+
+    /**
+     * 从快照恢复一个元素：保留它的cas和过期时间，不覆盖已经存在的key
+     *
+     * @return whether the element was stored
+     */
+    boolean restore(LocalCacheElement e) {
+        retain(e);
+        if (storage.putIfAbsent(e.getKey(), e) != null) {
+            e.release();
+            return false;
+        }
+        advanceCas(e.getCasUnique());
+        scheduleExpiry(e);
         return true;
     }
 
 
     public void close() throws IOException {
-        scavenger.shutdown();;
+        maintenance.shutdown();
+        if (wal != null) {
+            wal.close();
+        }
         storage.close();
     }
 
@@ -218,32 +723,42 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
     }
 
 
+    /**
+     * 立即执行一次维护，正常情况下由后台维护线程按节奏执行
+     */
     @Override
     public void asyncEventPing() {
-        DelayedMCElement toDelete = deleteQueue.poll();
-        if (toDelete != null) {
-            storage.remove(toDelete.element.getKey());
-        }
+        maintenance.runOnce(maintenanceTask);
     }
 
 
+    public BufferPool getBufferPool() {
+        return pool;
+    }
 
-    protected static class DelayedMCElement implements Delayed {
-        private CacheElement element;
 
-        public DelayedMCElement(CacheElement element) {
-            this.element = element;
-        }
+    @Override
+    protected void extendedStats(Map<String, Set<String>> result) {
+        multiSet(result, "maintenance_runs", valueOf(maintenance.getRuns()));
+        multiSet(result, "maintenance_budget", valueOf(maintenance.getBudget()));
+        multiSet(result, "maintenance_budget_exhausted", valueOf(maintenance.getExhaustedRuns()));
+        multiSet(result, "maintenance_last_run_us", valueOf(maintenance.getLastRunNanos() / 1000));
+        multiSet(result, "expired_reclaimed", valueOf(maintenance.getWork()));
+        multiSet(result, "expiry_timers", valueOf(expiryWheel.size()));
+        poolStats(result, pool);
+    }
 
-        public long getDelay(TimeUnit timeUnit) {
-            return timeUnit.convert(element.getBlockedUntil() - Now(), TimeUnit.MILLISECONDS);
-        }
 
-        public int compareTo(Delayed delayed) {
-            if (!(delayed instanceof CacheImpl.DelayedMCElement))
-                return -1;
-            else
-                return element.getKey().toString().compareTo(((DelayedMCElement) delayed).element.getKey().toString());
+    /**
+     * 时间轮里的定时器只记录key和cas，不持有元素本身，避免过期前一直占用value的内存
+     */
+    static final class Expiry {
+        final Key  key;
+        final long casUnique;
+
+        Expiry(Key key, long casUnique) {
+            this.key = key;
+            this.casUnique = casUnique;
         }
     }
 }
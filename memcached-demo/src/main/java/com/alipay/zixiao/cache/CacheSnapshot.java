@@ -0,0 +1,393 @@
+package com.alipay.zixiao.cache;
+
+import com.alipay.zixiao.util.Clock;
+import com.alipay.zixiao.util.NamedThreadFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 缓存的时间点快照：后台定期写到本地文件，启动时多线程并行加载
+ * <p/>
+ * A snapshot walks the storage with its weakly consistent iterator, so writers are never stopped; an element is
+ * pinned while it is serialized. Elements are spread by key hash over a number of segment files, each a header
+ * followed by blocks of elements in the {@link LocalCacheElement#writeToBuffer} layout, every block carrying a
+ * CRC32 of its contents, and a trailer with the element count. A snapshot is written to a temporary directory and
+ * renamed to {@code snapshot-<millis>} once complete, so a crash while writing never leaves a partial snapshot
+ * behind; older snapshots are deleted afterwards.
+ * <p/>
+ * Loading reads the newest snapshot with one thread per segment file. Expired elements are skipped, and the others
+ * get their expiry timers scheduled again on this process's timing wheel; expiry times are absolute, so the time
+ * spent down counts against them. Elements keep their cas, and the cache's cas counter is moved past them. A
+ * block that fails its checksum ends the load of its file, keeping the elements read so far.
+ */
+public final class CacheSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheSnapshot.class);
+
+    public static final int DEFAULT_SEGMENTS = 8;
+
+    static final String PREFIX = "snapshot-";
+
+    private static final int MAGIC      = 0x4d43534e;     // "MCSN"
+    private static final int VERSION    = 1;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int TRAILER    = -1;
+
+    private final Cache<?> cache;
+    private final File     directory;
+    private final int      segments;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param cache     a {@link CacheImpl} or {@link ShardedCache}
+     * @param directory the directory holding the snapshots
+     * @param segments  the number of files a snapshot is spread over, which bounds the parallelism of loading
+     */
+    public CacheSnapshot(Cache<?> cache, File directory, int segments) {
+        if (!(cache instanceof CacheImpl) && !(cache instanceof ShardedCache)) {
+            throw new IllegalArgumentException("cannot take snapshots of " + cache.getClass().getName());
+        }
+        if (segments <= 0) {
+            throw new IllegalArgumentException("segments must be positive");
+        }
+        this.cache = cache;
+        this.directory = directory;
+        this.segments = segments;
+    }
+
+    /**
+     * Takes a snapshot every period, on a background thread.
+     */
+    public synchronized void start(long periodMillis) {
+        if (scheduler != null) {
+            throw new IllegalStateException("already started");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cache-snapshot", true));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    write();
+                } catch (Exception e) {
+                    log.error("Failure to write a snapshot to " + directory, e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background snapshots, waiting for one in progress.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            scheduler = null;
+        }
+    }
+
+    private CacheImpl[] shards() {
+        return (cache instanceof ShardedCache) ? ((ShardedCache) cache).shards() : new CacheImpl[]{(CacheImpl) cache};
+    }
+
+    /**
+     * Writes a snapshot of the cache.
+     *
+     * @return the number of elements written
+     */
+    public synchronized int write() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        final File temp = new File(directory, PREFIX + "tmp");
+        deleteSnapshot(temp);
+        if (!temp.mkdir()) {
+            throw new IOException("cannot create " + temp);
+        }
+
+        final long created = Clock.now();
+        final SegmentWriter[] writers = new SegmentWriter[segments];
+        int written = 0;
+        try {
+            for (int i = 0; i < segments; i++) {
+                writers[i] = new SegmentWriter(segmentFile(temp, i), i, created);
+            }
+            for (CacheImpl shard : shards()) {
+                for (LocalCacheElement element : shard.storage.values()) {
+                    if (element.isBlocked() || shard.isExpired(element) || !element.tryRetain()) {
+                        continue;
+                    }
+                    try {
+                        writers[(element.getKey().hashCode() & Integer.MAX_VALUE) % segments].write(element);
+                    } finally {
+                        element.release();
+                    }
+                    written++;
+                }
+            }
+            for (SegmentWriter writer : writers) {
+                writer.finish();
+            }
+        } finally {
+            for (SegmentWriter writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        }
+
+        final File snapshot = new File(directory, PREFIX + created);
+        deleteSnapshot(snapshot);
+        Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        for (File older : snapshots()) {
+            if (!older.equals(snapshot)) {
+                deleteSnapshot(older);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Loads the newest snapshot into the cache, reading its segment files in parallel. Keys already in the cache
+     * are kept.
+     *
+     * @param threads the maximum number of files read at the same time
+     * @return the number of elements loaded, 0 if there is no snapshot
+     */
+    public int load(int threads) throws IOException {
+        final File snapshot = newest();
+        if (snapshot == null) {
+            return 0;
+        }
+        final File[] files = snapshot.listFiles();
+        if ((files == null) || (files.length == 0)) {
+            return 0;
+        }
+        final long started = Clock.now();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.length)),
+                new NamedThreadFactory("snapshot-load", true));
+        try {
+            final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (final File file : files) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws IOException {
+                        return load(file);
+                    }
+                }));
+            }
+            int loaded = 0;
+            for (Future<Integer> result : results) {
+                loaded += result.get();
+            }
+            log.info("Loaded " + loaded + " items from " + snapshot + " in " + (Clock.now() - started) + " ms");
+            return loaded;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading " + snapshot);
+        } catch (ExecutionException e) {
+            throw new IOException("failure to load " + snapshot, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int load(File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BLOCK_SIZE));
+        int loaded = 0;
+        try {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                throw new IOException(file + " is not a snapshot segment");
+            }
+            in.readInt();       // segment
+            in.readLong();      // created
+
+            final CRC32 crc = new CRC32();
+            int read = 0;
+            for (; ;) {
+                final int length = in.readInt();
+                if (length == TRAILER) {
+                    final int count = in.readInt();
+                    if (count != read) {
+                        log.warn(file + " holds " + read + " items, but its trailer says " + count);
+                    }
+                    return loaded;
+                }
+                final int checksum = in.readInt();
+                if (length < 0) {
+                    log.warn("Corrupt block length " + length + " in " + file + ", skipping the rest of it");
+                    return loaded;
+                }
+                final byte[] block = new byte[length];
+                in.readFully(block);
+                crc.reset();
+                crc.update(block, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Checksum mismatch in " + file + ", skipping the rest of it");
+                    return loaded;
+                }
+
+                // the elements are slices of the block, which the cache copies when storing them
+                final ChannelBuffer elements = ChannelBuffers.wrappedBuffer(block);
+                final long now = Clock.now();
+                while (elements.readable()) {
+                    final LocalCacheElement element = LocalCacheElement.readFromBuffer(elements);
+                    read++;
+                    if ((element.getExpire() != 0) && (element.getExpire() <= now)) {
+                        continue;
+                    }
+                    if (restore(element)) {
+                        loaded++;
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            log.warn(file + " is truncated, skipping the rest of it");
+            return loaded;
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean restore(LocalCacheElement element) {
+        return (cache instanceof ShardedCache) ? ((ShardedCache) cache).restore(element)
+                : ((CacheImpl) cache).restore(element);
+    }
+
+    /**
+     * @return the complete snapshots, in no particular order
+     */
+    private List<File> snapshots() {
+        final List<File> snapshots = new ArrayList<File>();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory() && (created(file) >= 0)) {
+                    snapshots.add(file);
+                }
+            }
+        }
+        return snapshots;
+    }
+
+    private File newest() {
+        File newest = null;
+        for (File snapshot : snapshots()) {
+            if ((newest == null) || (created(snapshot) > created(newest))) {
+                newest = snapshot;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * @return the creation time in the name of a complete snapshot, or -1
+     */
+    private static long created(File snapshot) {
+        final String name = snapshot.getName();
+        if (!name.startsWith(PREFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static File segmentFile(File snapshot, int segment) {
+        return new File(snapshot, String.format("segment-%03d.dat", segment));
+    }
+
+    private static void deleteSnapshot(File snapshot) throws IOException {
+        final File[] files = snapshot.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                throw new IOException("cannot delete " + file);
+            }
+        }
+        if (!snapshot.delete()) {
+            throw new IOException("cannot delete " + snapshot);
+        }
+    }
+
+    /**
+     * Collects elements into blocks and writes each block with its checksum.
+     */
+    private static final class SegmentWriter {
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+        private final ChannelBuffer    block = ChannelBuffers.dynamicBuffer(BLOCK_SIZE);
+        private final CRC32            crc   = new CRC32();
+        private int count;
+
+        SegmentWriter(File file, int segment, long created) throws IOException {
+            this.file = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(this.file, BLOCK_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(segment);
+            out.writeLong(created);
+        }
+
+        void write(LocalCacheElement element) throws IOException {
+            element.writeToBuffer(block);
+            count++;
+            if (block.readableBytes() >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            final int length = block.readableBytes();
+            crc.reset();
+            crc.update(block.array(), block.arrayOffset() + block.readerIndex(), length);
+            out.writeInt(length);
+            out.writeInt((int) crc.getValue());
+            block.readBytes(out, length);
+            block.clear();
+        }
+
+        void finish() throws IOException {
+            if (block.readable()) {
+                flushBlock();
+            }
+            out.writeInt(TRAILER);
+            out.writeInt(count);
+            out.flush();
+            // on disk before the snapshot is renamed into place
+            file.getChannel().force(true);
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+}
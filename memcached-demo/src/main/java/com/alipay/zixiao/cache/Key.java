@@ -1,37 +1,148 @@
 package com.alipay.zixiao.cache;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 /**
  * 缓存的KEY对象
+ * <p/>
+ * Keys are immutable: the bytes are copied out of the request once and the hash is computed up front with
+ * murmur3, so map probes only compare the hash and then the arrays, without touching buffer indexes. A key can be
+ * shared between threads, elements and the expiry timers without being copied again.
  */
-public class Key {
-    public ChannelBuffer bytes;
-    private int hashCode;
+public final class Key {
+
+    private static final int     SEED     = 0x9747b28c;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
 
-    public Key(ChannelBuffer bytes) {
-        this.bytes = bytes.slice();
-        this.hashCode = this.bytes.hashCode();
+    private final byte[] bytes;
+    private final int    hashCode;
+
+    /**
+     * @param bytes the key, which is owned by the key from now on and must not be modified anymore
+     */
+    public Key(byte[] bytes) {
+        this.bytes = bytes;
+        this.hashCode = murmur3(bytes);
     }
 
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
+    /**
+     * @param buffer the key, from the reader index to the writer index, which is copied
+     */
+    public Key(ChannelBuffer buffer) {
+        this(buffer, buffer.readerIndex(), buffer.readableBytes());
+    }
 
-        Key key1 = (Key) o;
+    /**
+     * 直接从读缓冲区拷贝，不用先切片
+     */
+    public Key(ChannelBuffer buffer, int index, int length) {
+        this(copy(buffer, index, length));
+    }
+
+    private static byte[] copy(ChannelBuffer buffer, int index, int length) {
+        byte[] bytes = new byte[length];
+        buffer.getBytes(index, bytes);
+        return bytes;
+    }
 
-        bytes.readerIndex(0);
-        key1.bytes.readerIndex(0);
-        if (!bytes.equals(key1.bytes)) return false;
+    public int length() {
+        return bytes.length;
+    }
 
+    /**
+     * @return a buffer over the key's bytes; it must only be read
+     */
+    public ChannelBuffer buffer() {
+        return ChannelBuffers.wrappedBuffer(bytes);
+    }
+
+    public void writeTo(ChannelBuffer out) {
+        out.writeBytes(bytes);
+    }
+
+    /**
+     * 和缓冲区里的key直接比较，不拷贝
+     *
+     * @return whether the length bytes at the index of the buffer, read with absolute gets, are this key's
+     */
+    public boolean matches(ByteBuffer buffer, int index, int length) {
+        if ((length != bytes.length) || (index < 0) || (index > buffer.limit() - length)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(index + i) != bytes[i]) {
+                return false;
+            }
+        }
         return true;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Key)) return false;
+
+        Key key = (Key) o;
+        return hashCode == key.hashCode && Arrays.equals(bytes, key.bytes);
+    }
+
     @Override
     public int hashCode() {
         return hashCode;
     }
 
+    @Override
+    public String toString() {
+        return new String(bytes, US_ASCII);
+    }
+
+    /**
+     * MurmurHash3 x86_32
+     */
+    static int murmur3(byte[] data) {
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+        final int length = data.length;
+        final int blocks = length & ~3;
 
+        int h = SEED;
+        for (int i = 0; i < blocks; i += 4) {
+            int k = (data[i] & 0xff) | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff) << 16 | data[i + 3] << 24;
+            k *= c1;
+            k = Integer.rotateLeft(k, 15);
+            k *= c2;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+
+        int k = 0;
+        switch (length & 3) {
+            case 3:
+                k ^= (data[blocks + 2] & 0xff) << 16;
+                // fall through
+            case 2:
+                k ^= (data[blocks + 1] & 0xff) << 8;
+                // fall through
+            case 1:
+                k ^= data[blocks] & 0xff;
+                k *= c1;
+                k = Integer.rotateLeft(k, 15);
+                k *= c2;
+                h ^= k;
+        }
+
+        h ^= length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
 }
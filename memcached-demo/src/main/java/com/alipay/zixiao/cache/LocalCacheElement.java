@@ -15,6 +15,7 @@
  */
 package com.alipay.zixiao.cache;
 
+import com.alipay.zixiao.util.BufferPool;
 import com.alipay.zixiao.util.BufferUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
@@ -30,6 +31,9 @@ public final class LocalCacheElement implements CacheElement {
     private long casUnique = 0L;
     private boolean blocked = false;
     private long blockedUntil;
+    private transient TimingWheel.Timeout<?> expiry;
+    private transient volatile boolean fetched;
+    private transient BufferPool.Chunk chunk;
 
     public LocalCacheElement() {
     }
@@ -45,55 +49,26 @@ public final class LocalCacheElement implements CacheElement {
         this.casUnique = casUnique;
     }
 
-    /**
-     * @return the current time in seconds
-     */
-    public static int Now() {
-        return (int) (System.currentTimeMillis() / 1000);
-    }
-
     public int size() {
         return getData().capacity();
     }
 
+    /**
+     * 拼接出来的value只是两段数据的组合，存储的时候才拷贝到一起
+     */
     public LocalCacheElement append(LocalCacheElement appendElement) {
-        int newLength = size() + appendElement.size();
         LocalCacheElement appendedElement = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
-        ChannelBuffer appended = ChannelBuffers.buffer(newLength);
-        ChannelBuffer existing = getData();
-        ChannelBuffer append = appendElement.getData();
-
-        appended.writeBytes(existing);
-        appended.writeBytes(append);
-
-        appended.readerIndex(0);
-
-        existing.readerIndex(0);
-        append.readerIndex(0);
-
-        appendedElement.setData(appended);
+        appendedElement.setData(ChannelBuffers.wrappedBuffer(getData().slice(0, size()),
+                appendElement.getData().slice(0, appendElement.size())));
         appendedElement.setCasUnique(appendedElement.getCasUnique() + 1);
 
         return appendedElement;
     }
 
     public LocalCacheElement prepend(LocalCacheElement prependElement) {
-        int newLength = size() + prependElement.size();
-
         LocalCacheElement prependedElement = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
-        ChannelBuffer prepended = ChannelBuffers.buffer(newLength);
-        ChannelBuffer prepend = prependElement.getData();
-        ChannelBuffer existing = getData();
-
-        prepended.writeBytes(prepend);
-        prepended.writeBytes(existing);
-
-        existing.readerIndex(0);
-        prepend.readerIndex(0);
-
-        prepended.readerIndex(0);
-
-        prependedElement.setData(prepended);
+        prependedElement.setData(ChannelBuffers.wrappedBuffer(prependElement.getData().slice(0, prependElement.size()),
+                getData().slice(0, size())));
         prependedElement.setCasUnique(prependedElement.getCasUnique() + 1);
 
         return prependedElement;
@@ -101,25 +76,40 @@ public final class LocalCacheElement implements CacheElement {
 
 
 
+    /**
+     * 只修改过期时间，数据和cas不变。新元素和这个元素共用内存，调用方要为它持有一个引用
+     */
+    public LocalCacheElement touch(long newExpire) {
+        LocalCacheElement touched = new LocalCacheElement(getKey(), getFlags(), newExpire, getCasUnique());
+        touched.setData(getData());
+        touched.chunk = chunk;
+        return touched;
+    }
+
     public static class IncrDecrResult {
-        int oldValue;
+        long oldValue;
         LocalCacheElement replace;
 
-        public IncrDecrResult(int oldValue, LocalCacheElement replace) {
+        public IncrDecrResult(long oldValue, LocalCacheElement replace) {
             this.oldValue = oldValue;
             this.replace = replace;
         }
     }
 
-    public IncrDecrResult add(int mod) {
+    /**
+     * 计数器是64位无符号整数：加法在2^64处回绕，减法最小减到0
+     */
+    public IncrDecrResult add(long delta, boolean incr) {
         // TODO handle parse failure!
-        int modVal = BufferUtils.atoi(getData()) + mod; // change value
-        if (modVal < 0) {
-            modVal = 0;
-
-        } // check for underflow
+        long value = BufferUtils.atoul(getData());
+        long modVal;
+        if (incr) {
+            modVal = value + delta;
+        } else {
+            modVal = Long.compareUnsigned(value, delta) > 0 ? value - delta : 0;
+        }
 
-        ChannelBuffer newData = BufferUtils.itoa(modVal);
+        ChannelBuffer newData = BufferUtils.ultoa(modVal);
 
         LocalCacheElement replace = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
         replace.setData(newData);
@@ -201,6 +191,57 @@ public final class LocalCacheElement implements CacheElement {
     }
 
 
+    /**
+     * @return the pending expiry timer for this element, if it was scheduled by the cache
+     */
+    TimingWheel.Timeout<?> getExpiry() {
+        return expiry;
+    }
+
+    void setExpiry(TimingWheel.Timeout<?> expiry) {
+        this.expiry = expiry;
+    }
+
+    /**
+     * @return whether the element was ever returned by a get, for the *_unfetched stats
+     */
+    public boolean isFetched() {
+        return fetched;
+    }
+
+    void markFetched() {
+        if (!fetched) {
+            fetched = true;
+        }
+    }
+
+    /**
+     * 把value拷贝到从池里分配的内存，使元素不再引用网络层的缓冲区，这个引用归存储所有。
+     * key本身已经是独立的数组，哈希表会一直用第一次写入时的key对象，所以key不能放在池里
+     */
+    public void detach(BufferPool pool) {
+        final int dataLength = data.capacity();
+        final BufferPool.Chunk allocated = pool.allocate(dataLength);
+        data.getBytes(0, allocated.array(), 0, dataLength);
+        data = ChannelBuffers.wrappedBuffer(allocated.array(), 0, dataLength);
+        chunk = allocated;
+    }
+
+    /**
+     * 为读取者增加一个内存引用
+     *
+     * @return false if the memory was released concurrently, the element must then be looked up again
+     */
+    boolean tryRetain() {
+        return chunk == null || chunk.retain();
+    }
+
+    public void release() {
+        if (chunk != null) {
+            chunk.release();
+        }
+    }
+
     public void setData(ChannelBuffer data) {
         data.readerIndex(0);
         this.data = data;
@@ -210,9 +251,8 @@ public final class LocalCacheElement implements CacheElement {
         int bufferSize = in.readInt();
         long expiry = in.readLong();
         int keyLength = in.readInt();
-        ChannelBuffer key = in.slice(in.readerIndex(), keyLength);
+        LocalCacheElement localCacheElement = new LocalCacheElement(new Key(in, in.readerIndex(), keyLength));
         in.skipBytes(keyLength);
-        LocalCacheElement localCacheElement = new LocalCacheElement(new Key(key));
 
         localCacheElement.expire = expiry;
         localCacheElement.flags = in.readInt();
@@ -221,7 +261,7 @@ public final class LocalCacheElement implements CacheElement {
         localCacheElement.data = in.slice(in.readerIndex(), dataLength);
         in.skipBytes(dataLength);
 
-        localCacheElement.casUnique = in.readInt();
+        localCacheElement.casUnique = in.readLong();
         localCacheElement.blocked = in.readByte() == 1;
         localCacheElement.blockedUntil = in.readLong();
 
@@ -229,17 +269,17 @@ public final class LocalCacheElement implements CacheElement {
     }
 
     public int bufferSize() {
-        return 4 + 8 + 4 + key.bytes.capacity() + 4 + 4 + 4 + data.capacity() + 8 + 1 + 8;
+        return 4 + 8 + 4 + key.length() + 4 + 4 + data.capacity() + 8 + 1 + 8;
     }
 
     public void writeToBuffer(ChannelBuffer out) {
         out.writeInt(bufferSize());
         out.writeLong(expire) ;
-        out.writeInt(key.bytes.capacity());
-        out.writeBytes(key.bytes);
+        out.writeInt(key.length());
+        key.writeTo(out);
         out.writeInt(flags);
         out.writeInt(data.capacity());
-        out.writeBytes(data);
+        out.writeBytes(data, 0, data.capacity());
         out.writeLong(casUnique);
         out.writeByte(blocked ? 1 : 0);
         out.writeLong(blockedUntil);
@@ -0,0 +1,135 @@
+package com.alipay.zixiao.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存的后台维护线程：按固定的节奏执行过期清理等工作，每次执行有工作量上限，
+ * 做不完的留到下一次，请求线程不参与任何维护工作
+ */
+public final class MaintenanceScheduler {
+
+    final Logger logger = LoggerFactory.getLogger(MaintenanceScheduler.class);
+
+    public static final long DEFAULT_PERIOD_MILLIS = 100;
+    public static final int DEFAULT_BUDGET = 10000;
+
+    /**
+     * 一次维护工作
+     */
+    public interface Task {
+        /**
+         * @param budget the maximum number of units of work (e.g. expired items) to process
+         * @return the number of units of work done
+         */
+        int run(int budget);
+    }
+
+    private final long periodMillis;
+    private final int budget;
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong work = new AtomicLong();
+    private final AtomicLong exhaustedRuns = new AtomicLong();
+    private volatile long lastRunNanos;
+
+    /**
+     * @param name         the name of the maintenance thread
+     * @param periodMillis the delay between two runs, in milliseconds
+     * @param budget       the maximum amount of work done by a single run
+     */
+    public MaintenanceScheduler(final String name, long periodMillis, int budget) {
+        if (periodMillis <= 0 || budget <= 0) {
+            throw new IllegalArgumentException("period and budget must be positive");
+        }
+        this.periodMillis = periodMillis;
+        this.budget = budget;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 开始按节奏执行任务
+     */
+    public void start(final Task task) {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    runOnce(task);
+                } catch (Throwable t) {
+                    // 不能让异常取消后续的调度
+                    logger.error("cache maintenance failed", t);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 执行一次任务并记录统计
+     *
+     * @return the amount of work done
+     */
+    public int runOnce(Task task) {
+        long start = System.nanoTime();
+        int done = task.run(budget);
+        lastRunNanos = System.nanoTime() - start;
+        runs.incrementAndGet();
+        work.addAndGet(done);
+        if (done >= budget) {
+            exhaustedRuns.incrementAndGet();
+        }
+        return done;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the number of runs so far
+     */
+    public long getRuns() {
+        return runs.get();
+    }
+
+    /**
+     * @return the total amount of work done by all runs
+     */
+    public long getWork() {
+        return work.get();
+    }
+
+    /**
+     * @return the number of runs which used up their whole budget, leaving work for the next run
+     */
+    public long getExhaustedRuns() {
+        return exhaustedRuns.get();
+    }
+
+    /**
+     * @return the duration of the last run, in nanoseconds
+     */
+    public long getLastRunNanos() {
+        return lastRunNanos;
+    }
+}
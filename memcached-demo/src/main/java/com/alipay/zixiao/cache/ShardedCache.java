@@ -0,0 +1,248 @@
+package com.alipay.zixiao.cache;
+
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import com.alipay.zixiao.cache.storage.CacheStorage;
+import com.alipay.zixiao.util.BufferPool;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.String.valueOf;
+
+/**
+ * 按key的hash把数据分到多个互不共享的分片上，每个分片有自己的存储、淘汰队列、内存池、统计和后台维护
+ * <p/>
+ * Single key commands go straight to the owning shard, so the shards never contend with each other; a multi key
+ * get is split up by shard and the results are put back in the order of the keys. The facade's own counters only
+ * hold what the network layer reports (connections and traffic); reading them sums up the counters of all shards.
+ */
+public final class ShardedCache extends AbstractCache<LocalCacheElement> implements Cache<LocalCacheElement> {
+
+    private final CacheImpl[] shards;
+
+    /**
+     * @param shards the shards, which must not be used on their own anymore
+     */
+    public ShardedCache(CacheImpl... shards) {
+        super(new StatsRegistry(statsOf(shards)));
+        this.shards = shards.clone();
+    }
+
+    /**
+     * 创建分片，最大条数和内存平均分给每个分片
+     *
+     * @param shardCount the number of shards, e.g. the number of cores
+     * @param policy     the eviction policy of each shard
+     * @param maxItems   the maximum number of items of the whole cache
+     * @param maxBytes   the maximum memory of the whole cache
+     */
+    public static ShardedCache create(int shardCount, ConcurrentLinkedHashMap.EvictionPolicy policy, int maxItems, long maxBytes) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        CacheImpl[] shards = new CacheImpl[shardCount];
+        // 每个分片有自己的内存池，写入路径上不共享任何东西；空闲数组的上限平均分给每个池
+        long pooledBytes = Math.max(1, BufferPool.DEFAULT_MAX_POOLED_BYTES / shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            CacheStorage<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap
+                    .create(policy, Math.max(1, maxItems / shardCount), Math.max(1, maxBytes / shardCount));
+            shards[i] = new CacheImpl(storage, MaintenanceScheduler.DEFAULT_PERIOD_MILLIS,
+                    MaintenanceScheduler.DEFAULT_BUDGET, new BufferPool(pooledBytes));
+        }
+        return new ShardedCache(shards);
+    }
+
+    private static StatsRegistry[] statsOf(CacheImpl[] shards) {
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("at least one shard is required");
+        }
+        StatsRegistry[] stats = new StatsRegistry[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            stats[i] = shards[i].getStats();
+        }
+        return stats;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * key的hash再打散一次以后映射到分片，避免和分片内部哈希表的分布相关
+     */
+    private int shardIndex(Key key) {
+        long h = (key.hashCode() * 0x9E3779B9L) & 0xFFFFFFFFL;
+        return (int) ((h * shards.length) >>> 32);
+    }
+
+    private CacheImpl shard(Key key) {
+        return shards[shardIndex(key)];
+    }
+
+    public DeleteResponse delete(Key key, int time) {
+        return shard(key).delete(key, time);
+    }
+
+    public StoreResponse add(LocalCacheElement e) {
+        return shard(e.getKey()).add(e);
+    }
+
+    public StoreResponse replace(LocalCacheElement e) {
+        return shard(e.getKey()).replace(e);
+    }
+
+    public StoreResponse append(LocalCacheElement element) {
+        return shard(element.getKey()).append(element);
+    }
+
+    public StoreResponse prepend(LocalCacheElement element) {
+        return shard(element.getKey()).prepend(element);
+    }
+
+    public StoreResponse set(LocalCacheElement e) {
+        return shard(e.getKey()).set(e);
+    }
+
+    public StoreResponse cas(Long cas_key, LocalCacheElement e) {
+        return shard(e.getKey()).cas(cas_key, e);
+    }
+
+    public Long get_add(Key key, long delta, boolean incr) {
+        return shard(key).get_add(key, delta, incr);
+    }
+
+    public LocalCacheElement touch(Key key, long expire) {
+        return shard(key).touch(key, expire);
+    }
+
+    public LocalCacheElement[] get(Key... keys) {
+        if (keys.length == 1) {
+            return shard(keys[0]).get(keys);
+        }
+
+        // 按分片分组
+        final int[] owner = new int[keys.length];
+        final int[] counts = new int[shards.length];
+        for (int i = 0; i < keys.length; i++) {
+            owner[i] = shardIndex(keys[i]);
+            counts[owner[i]]++;
+        }
+
+        LocalCacheElement[] elements = new LocalCacheElement[keys.length];
+        for (int s = 0; s < shards.length; s++) {
+            if (counts[s] == 0) {
+                continue;
+            }
+            Key[] shardKeys = new Key[counts[s]];
+            for (int i = 0, j = 0; i < keys.length; i++) {
+                if (owner[i] == s) {
+                    shardKeys[j++] = keys[i];
+                }
+            }
+            LocalCacheElement[] found = shards[s].get(shardKeys);
+            // 按原来的顺序放回去
+            for (int i = 0, j = 0; i < keys.length; i++) {
+                if (owner[i] == s) {
+                    elements[i] = found[j++];
+                }
+            }
+        }
+        return elements;
+    }
+
+    public boolean flush_all() {
+        return flush_all(0);
+    }
+
+    public boolean flush_all(int expire) {
+        stats.increment(StatsRegistry.Stat.CMD_FLUSH);
+        boolean flushed = true;
+        for (CacheImpl shard : shards) {
+            flushed &= shard.flush();
+        }
+        return flushed;
+    }
+
+    CacheImpl[] shards() {
+        return shards.clone();
+    }
+
+    boolean restore(LocalCacheElement e) {
+        return shard(e.getKey()).restore(e);
+    }
+
+    public void open() throws IOException {
+        for (CacheImpl shard : shards) {
+            shard.open();
+        }
+    }
+
+    public void close() throws IOException {
+        IOException failure = null;
+        for (CacheImpl shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    protected Set<Key> keys() {
+        Set<Key> keys = new HashSet<Key>();
+        for (CacheImpl shard : shards) {
+            keys.addAll(shard.keys());
+        }
+        return keys;
+    }
+
+    @Override
+    public long getCurrentItems() {
+        long items = 0;
+        for (CacheImpl shard : shards) {
+            items += shard.getCurrentItems();
+        }
+        return items;
+    }
+
+    @Override
+    public long getLimitMaxBytes() {
+        long bytes = 0;
+        for (CacheImpl shard : shards) {
+            bytes += shard.getLimitMaxBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getCurrentBytes() {
+        long bytes = 0;
+        for (CacheImpl shard : shards) {
+            bytes += shard.getCurrentBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public void asyncEventPing() {
+        for (CacheImpl shard : shards) {
+            shard.asyncEventPing();
+        }
+    }
+
+    @Override
+    protected void extendedStats(Map<String, Set<String>> result) {
+        multiSet(result, "shards", valueOf(shards.length));
+        BufferPool[] pools = new BufferPool[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            pools[i] = shards[i].getBufferPool();
+        }
+        poolStats(result, pools);
+    }
+}
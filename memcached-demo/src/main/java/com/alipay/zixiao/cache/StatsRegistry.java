@@ -0,0 +1,111 @@
+package com.alipay.zixiao.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存的统计计数器。每个计数器是一个分段的64位LongAdder，热点路径上的计数互不竞争，
+ * 只有在查询统计的时候才把各个分段汇总起来
+ */
+public final class StatsRegistry {
+
+    /**
+     * The counters kept by the registry, named after the memcached stats they report.
+     */
+    public enum Stat {
+        CMD_GET("cmd_get"),
+        CMD_SET("cmd_set"),
+        CMD_FLUSH("cmd_flush"),
+        CMD_TOUCH("cmd_touch"),
+        GET_HITS("get_hits"),
+        GET_MISSES("get_misses"),
+        GET_EXPIRED("get_expired"),
+        DELETE_HITS("delete_hits"),
+        DELETE_MISSES("delete_misses"),
+        INCR_HITS("incr_hits"),
+        INCR_MISSES("incr_misses"),
+        DECR_HITS("decr_hits"),
+        DECR_MISSES("decr_misses"),
+        CAS_HITS("cas_hits"),
+        CAS_MISSES("cas_misses"),
+        CAS_BADVAL("cas_badval"),
+        TOUCH_HITS("touch_hits"),
+        TOUCH_MISSES("touch_misses"),
+        TOTAL_ITEMS("total_items"),
+        EVICTIONS("evictions"),
+        EVICTED_UNFETCHED("evicted_unfetched"),
+        EXPIRED_UNFETCHED("expired_unfetched"),
+        RECLAIMED("reclaimed"),
+        BYTES_READ("bytes_read"),
+        BYTES_WRITTEN("bytes_written"),
+        CURR_CONNECTIONS("curr_connections"),
+        TOTAL_CONNECTIONS("total_connections");
+
+        private final String statName;
+
+        Stat(String statName) {
+            this.statName = statName;
+        }
+
+        public String getStatName() {
+            return statName;
+        }
+    }
+
+    private final LongAdder[] counters;
+    private final StatsRegistry[] parts;
+
+    public StatsRegistry() {
+        this(new StatsRegistry[0]);
+    }
+
+    /**
+     * 汇总多个分片的统计：计数只加在各自的分片上，读的时候才把分片的值加进来
+     *
+     * @param parts the registries whose counters are added to this registry's own when read
+     */
+    public StatsRegistry(StatsRegistry... parts) {
+        counters = new LongAdder[Stat.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        this.parts = parts.clone();
+    }
+
+    public void increment(Stat stat) {
+        counters[stat.ordinal()].increment();
+    }
+
+    public void decrement(Stat stat) {
+        counters[stat.ordinal()].decrement();
+    }
+
+    public void add(Stat stat, long amount) {
+        if (amount != 0) {
+            counters[stat.ordinal()].add(amount);
+        }
+    }
+
+    /**
+     * @return the current value of the counter, summed over all of its cells and parts
+     */
+    public long get(Stat stat) {
+        long value = counters[stat.ordinal()].sum();
+        for (StatsRegistry part : parts) {
+            value += part.get(stat);
+        }
+        return value;
+    }
+
+    /**
+     * @return the current value of every counter, keyed by stat name in declaration order
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<String, Long>();
+        for (Stat stat : Stat.values()) {
+            snapshot.put(stat.getStatName(), get(stat));
+        }
+        return snapshot;
+    }
+}
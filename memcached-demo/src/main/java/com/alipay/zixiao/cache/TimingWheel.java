@@ -0,0 +1,273 @@
+package com.alipay.zixiao.cache;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hierarchical timing wheel (in the style of the Linux kernel timers) used to expire cache entries.
+ * <p/>
+ * The wheel is made of {@link #LEVELS} levels of {@link #SLOTS} buckets; a bucket of level <i>n</i> spans
+ * 64<sup>n</sup> ticks. A timeout is hashed into the level whose span covers its deadline, and whenever the
+ * lower levels wrap around the matching bucket of the level above is cascaded down, so every timeout is
+ * moved at most {@link #LEVELS} times before it fires. Deadlines beyond the range of the wheel are parked
+ * in the top level and re-hashed until they come into range.
+ * <p/>
+ * Scheduling and cancelling are O(1) and may be called from any thread; they only enqueue work which is
+ * applied by the thread that calls {@link #advance}, so the buckets themselves are never shared. Timeouts
+ * that are due are queued on an overdue list and handed out at most a budget at a time, so a burst of
+ * expirations is spread over several runs instead of stalling the caller.
+ */
+final class TimingWheel<T> {
+
+    /**
+     * Receives the items whose deadline has passed.
+     */
+    interface Handler<T> {
+        void expired(T item);
+    }
+
+    static final int LEVELS = 4;
+    static final int SLOTS = 64;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Bucket<T>[][] wheel;
+    private final Bucket<T> overdue = new Bucket<T>();
+
+    private final Queue<Timeout<T>> scheduled = new ConcurrentLinkedQueue<Timeout<T>>();
+    private final Queue<Timeout<T>> cancelled = new ConcurrentLinkedQueue<Timeout<T>>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** The last tick processed, only touched by the advancing thread. */
+    private long currentTick;
+
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickMillis, long startMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tick must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        this.wheel = new Bucket[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[level][slot] = new Bucket<T>();
+            }
+        }
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * @return the number of timeouts scheduled and not yet fired or cancelled
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Schedules an item to be handed to the handler once the deadline has passed.
+     *
+     * @param item           the item to expire
+     * @param deadlineMillis the absolute deadline, in milliseconds since the epoch
+     * @return a handle which may be used to cancel the timeout
+     */
+    Timeout<T> schedule(T item, long deadlineMillis) {
+        final long delta = Math.max(0, deadlineMillis - startMillis);
+        // round up, so that a timeout never fires early
+        final Timeout<T> timeout = new Timeout<T>(this, item, (delta + tickMillis - 1) / tickMillis);
+        size.incrementAndGet();
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return the number of timeouts that are due but were left over by an exhausted budget
+     */
+    synchronized int overdue() {
+        return overdue.size;
+    }
+
+    /**
+     * Processes every tick up to the given time and fires the timeouts that are due, up to the budget.
+     *
+     * @param nowMillis the current time, in milliseconds since the epoch
+     * @param handler   receives the expired items
+     * @param budget    the maximum number of items to expire in this call
+     * @return the number of items expired
+     */
+    synchronized int advance(long nowMillis, Handler<T> handler, int budget) {
+        final long targetTick = (nowMillis - startMillis) / tickMillis;
+
+        transfer();
+        while (currentTick < targetTick) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                    cascade(wheel[level][slotOf(currentTick, level)]);
+                }
+            }
+            cascade(wheel[0][(int) (currentTick & SLOT_MASK)]);
+        }
+        return fire(handler, budget);
+    }
+
+    /**
+     * Applies the cancellations and schedules queued by other threads.
+     */
+    private void transfer() {
+        Timeout<T> timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.unlink(timeout);
+            }
+        }
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state.get() == PENDING) {
+                place(timeout);
+            }
+        }
+    }
+
+    /**
+     * Re-hashes every timeout of the bucket against the current tick; those that are due move to the
+     * overdue list.
+     */
+    private void cascade(Bucket<T> bucket) {
+        Timeout<T> timeout = bucket.clear();
+        while (timeout != null) {
+            final Timeout<T> next = timeout.next;
+            timeout.next = null;
+            timeout.prev = null;
+            timeout.bucket = null;
+            if (timeout.state.get() == PENDING) {
+                place(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    private int fire(Handler<T> handler, int budget) {
+        int expired = 0;
+        Timeout<T> timeout;
+        while ((expired < budget) && ((timeout = overdue.head) != null)) {
+            overdue.unlink(timeout);
+            if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                size.decrementAndGet();
+                handler.expired(timeout.item);
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Hashes the timeout into the lowest level whose span covers its deadline.
+     */
+    private void place(Timeout<T> timeout) {
+        final long delta = timeout.deadline - currentTick;
+        if (delta <= 0) {
+            overdue.link(timeout);
+            return;
+        }
+        int level = 0;
+        while ((level < LEVELS - 1) && (delta >= (1L << ((level + 1) * SLOT_BITS)))) {
+            level++;
+        }
+        final long maximum = currentTick + (1L << (LEVELS * SLOT_BITS)) - 1;
+        wheel[level][slotOf(Math.min(timeout.deadline, maximum), level)].link(timeout);
+    }
+
+    private static int slotOf(long tick, int level) {
+        return (int) ((tick >>> (level * SLOT_BITS)) & SLOT_MASK);
+    }
+
+    /**
+     * A scheduled item, which can be cancelled until it fires.
+     */
+    static final class Timeout<T> {
+        private final TimingWheel<T> wheel;
+        private final T item;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        private Bucket<T> bucket;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        Timeout(TimingWheel<T> wheel, T item, long deadline) {
+            this.wheel = wheel;
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        T getItem() {
+            return item;
+        }
+
+        /**
+         * Cancels the timeout, returning whether it was still pending.
+         */
+        boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            wheel.size.decrementAndGet();
+            wheel.cancelled.add(this);
+            return true;
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts, allowing them to be unlinked in constant time.
+     */
+    private static final class Bucket<T> {
+        private Timeout<T> head;
+        private int size;
+
+        void link(Timeout<T> timeout) {
+            size++;
+            timeout.bucket = this;
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null) {
+                head.prev = timeout;
+            }
+            head = timeout;
+        }
+
+        void unlink(Timeout<T> timeout) {
+            size--;
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        /**
+         * Detaches and returns the whole list.
+         */
+        Timeout<T> clear() {
+            final Timeout<T> first = head;
+            head = null;
+            size = 0;
+            return first;
+        }
+    }
+}
@@ -0,0 +1,593 @@
+package com.alipay.zixiao.cache;
+
+import com.alipay.zixiao.util.Clock;
+import com.alipay.zixiao.util.NamedThreadFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 持久化模式的预写日志：修改追加到本地磁盘上分段的日志里，崩溃以后启动时重放
+ * <p/>
+ * {@link CacheImpl} appends a record for every mutation once it has taken effect: the resulting element for
+ * set, add, replace, cas, append, prepend, incr/decr and touch, the key for a delete and a marker for flush_all. Each
+ * record carries a sequence number, the cas of the element or one drawn for the delete or flush, and replay keeps
+ * the record with the highest sequence number for each key, the later one of equal sequence numbers (a touch keeps
+ * the cas of the element it touches). The cache draws a sequence number, applies its change to the storage and
+ * queues its record under a lock per key, so for each key the order of the log is the order of the storage, and
+ * waits for the record to be written in {@link #commit} after releasing the lock.
+ * <p/>
+ * The caller serializes its record, then hands it to a single writer thread which drains everything queued by all
+ * I/O threads in one gathering write; with {@link FsyncPolicy#ALWAYS} one fsync then commits the whole group and
+ * releases the callers waiting for it, so the workers wait for the disk together rather than one after the other.
+ * {@link FsyncPolicy#INTERVAL} returns at once and syncs every interval, {@link FsyncPolicy#NEVER} leaves it to the
+ * operating system.
+ * <p/>
+ * The log is split into segment files ({@code wal-<number>.log}), and a new segment is started when the current one
+ * is full. When the log has grown to twice the size it had after the last compaction, the writer starts a new
+ * segment and a background thread writes the live elements of the cache into a compacted segment numbered between
+ * the old segments and the new one, then deletes the old segments. Records in the new segment replay on top of the
+ * compacted one. Unless the policy is {@link FsyncPolicy#NEVER}, the directory is synced after a segment is created,
+ * and always after the compacted segment is renamed into place, before the old segments are deleted.
+ * <p/>
+ * Records are framed by their length and a CRC32; a torn record at the end of a segment, as a crash leaves behind,
+ * ends the replay of that segment.
+ */
+public final class WriteAheadLog {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    /**
+     * When appended records are forced to disk.
+     */
+    public enum FsyncPolicy {
+        /** Before the mutation returns, one fsync per group of records. */
+        ALWAYS,
+        /** Every fsync interval, in the background; a crash loses up to one interval. */
+        INTERVAL,
+        /** Never; the operating system writes the pages back when it pleases. */
+        NEVER
+    }
+
+    public static final long DEFAULT_SEGMENT_SIZE           = 64 * 1024 * 1024;
+    public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 1000;
+
+    static final byte PUT    = 1;
+    static final byte DELETE = 2;
+    static final byte FLUSH  = 3;
+
+    private static final int  HEADER_SIZE = 4 + 4;
+    private static final int  BODY_HEADER = 1 + 8;
+    private static final int  MAX_RECORD  = 64 * 1024 * 1024;
+    private static final String SUFFIX    = ".log";
+
+    private final File        directory;
+    private final FsyncPolicy policy;
+    private final long        fsyncIntervalMillis;
+    private final long        segmentSize;
+
+    // 追加的记录，由写线程一次取走
+    private final Object     lock    = new Object();
+    private List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+    private long             appended;
+    private boolean          closing;
+
+    // 已经写入(ALWAYS的时候是已经刷盘)的记录数
+    private final Object         synced = new Object();
+    private long                 durable;
+    private volatile IOException failure;
+
+    // 以下只由写线程访问
+    private FileChannel segment;
+    private long        segmentNumber;
+    private long        segmentBytes;
+
+    // 日志的总大小，写线程和压缩线程都会修改
+    private final AtomicLong logBytes = new AtomicLong();
+    private volatile long    compactedBytes;
+
+    private volatile boolean compacting;
+    private CacheImpl        cache;
+    private Thread           writer;
+    private ExecutorService  compactor;
+
+    public WriteAheadLog(File directory, FsyncPolicy policy) {
+        this(directory, policy, DEFAULT_FSYNC_INTERVAL_MILLIS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory           the directory of the segment files, created if necessary
+     * @param policy              when records are forced to disk
+     * @param fsyncIntervalMillis the delay between two syncs with {@link FsyncPolicy#INTERVAL}
+     * @param segmentSize         the size after which a new segment is started, which also is the smallest log
+     *                            that gets compacted
+     */
+    public WriteAheadLog(File directory, FsyncPolicy policy, long fsyncIntervalMillis, long segmentSize) {
+        if ((fsyncIntervalMillis <= 0) || (segmentSize <= 0)) {
+            throw new IllegalArgumentException();
+        }
+        this.directory = directory;
+        this.policy = policy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.segmentSize = segmentSize;
+    }
+
+    public FsyncPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Replays the log into the cache, then starts a new segment and the writer thread.
+     */
+    synchronized void open(CacheImpl cache) throws IOException {
+        if (this.cache != null) {
+            throw new IllegalStateException("already open");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        final TreeMap<Long, File> segments = segments();
+        final long started = Clock.now();
+        final int replayed = replay(segments, cache);
+        if (!segments.isEmpty()) {
+            log.info("Replayed " + replayed + " records from " + directory + " in " + (Clock.now() - started) + " ms");
+        }
+        for (File file : segments.values()) {
+            logBytes.addAndGet(file.length());
+        }
+        compactedBytes = logBytes.get();
+
+        this.cache = cache;
+        segmentNumber = segments.isEmpty() ? 0 : segments.lastKey();
+        startSegment(++segmentNumber);
+        compactor = Executors.newSingleThreadExecutor(new NamedThreadFactory("wal-compaction", true));
+        writer = new NamedThreadFactory("wal-writer", true).newThread(new Runnable() {
+            public void run() {
+                write();
+            }
+        });
+        writer.start();
+    }
+
+    /**
+     * @return the complete segments by number; unfinished compactions are deleted
+     */
+    private TreeMap<Long, File> segments() throws IOException {
+        final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return segments;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.startsWith("wal-") && name.endsWith(".compact") && !file.delete()) {
+                throw new IOException("cannot delete " + file);
+            }
+            if (name.startsWith("wal-") && name.endsWith(SUFFIX)) {
+                try {
+                    segments.put(Long.parseLong(name.substring(4, name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+        }
+        return segments;
+    }
+
+    private File segmentFile(long number, String suffix) {
+        return new File(directory, String.format("wal-%016d", number) + suffix);
+    }
+
+    // ---------------------------------------------------------------- replay
+
+    private int replay(TreeMap<Long, File> segments, CacheImpl cache) throws IOException {
+        // 重放期间记住删除和flush的序号，乱序到达的旧记录不能把删掉的key恢复出来
+        final Map<Key, Long> deleted = new HashMap<Key, Long>();
+        final long[] flushed = {0};
+        int replayed = 0;
+        for (File file : segments.values()) {
+            replayed += replay(file, cache, deleted, flushed);
+        }
+        return replayed;
+    }
+
+    private int replay(File file, CacheImpl cache, Map<Key, Long> deleted, long[] flushed) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        final CRC32 crc = new CRC32();
+        int replayed = 0;
+        try {
+            for (; ;) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException end) {
+                    return replayed;
+                }
+                final int checksum = in.readInt();
+                if ((length < BODY_HEADER) || (length > MAX_RECORD)) {
+                    log.warn("Corrupt record length " + length + " in " + file + ", skipping the rest of it");
+                    return replayed;
+                }
+                final byte[] body = new byte[length];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Checksum mismatch in " + file + ", skipping the rest of it");
+                    return replayed;
+                }
+                apply(ChannelBuffers.wrappedBuffer(body), cache, deleted, flushed);
+                replayed++;
+            }
+        } catch (EOFException torn) {
+            log.warn(file + " ends with a torn record, skipping it");
+            return replayed;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void apply(ChannelBuffer body, CacheImpl cache, Map<Key, Long> deleted, long[] flushed) {
+        final byte type = body.readByte();
+        final long sequence = body.readLong();
+        switch (type) {
+            case PUT:
+                final LocalCacheElement element = LocalCacheElement.readFromBuffer(body);
+                final Long deletedAt = deleted.get(element.getKey());
+                if ((sequence >= flushed[0]) && ((deletedAt == null) || (deletedAt < sequence))) {
+                    cache.replayPut(element);
+                }
+                break;
+            case DELETE:
+                final Key key = new Key(body);
+                final Long previous = deleted.get(key);
+                if ((previous == null) || (previous < sequence)) {
+                    deleted.put(key, sequence);
+                }
+                cache.replayDelete(key, sequence);
+                break;
+            case FLUSH:
+                flushed[0] = Math.max(flushed[0], sequence);
+                cache.replayFlush(sequence);
+                break;
+            default:
+                throw new IllegalStateException("unknown record type " + type);
+        }
+    }
+
+    // ---------------------------------------------------------------- append
+
+    /**
+     * Queues a record of the element, if it still holds memory; an element already released has been replaced or
+     * removed, and the mutation that did so logs its own record.
+     *
+     * @return the ticket to {@link #commit}, 0 if nothing was queued
+     */
+    long put(LocalCacheElement element) {
+        if (!element.tryRetain()) {
+            return 0;
+        }
+        final ByteBuffer record;
+        try {
+            record = putRecord(element);
+        } finally {
+            element.release();
+        }
+        return append(record);
+    }
+
+    /**
+     * @return the ticket to {@link #commit}
+     */
+    long delete(Key key, long sequence) {
+        final ByteBuffer record = record(DELETE, sequence, key.length());
+        key.writeTo(payload(record));
+        return append(seal(record));
+    }
+
+    /**
+     * @return the ticket to {@link #commit}
+     */
+    long flush(long sequence) {
+        return append(seal(record(FLUSH, sequence, 0)));
+    }
+
+    /**
+     * Serializes an element the caller keeps from being released.
+     */
+    private static ByteBuffer putRecord(LocalCacheElement element) {
+        final ByteBuffer record = record(PUT, element.getCasUnique(), element.bufferSize());
+        element.writeToBuffer(payload(record));
+        return seal(record);
+    }
+
+    private static ChannelBuffer payload(ByteBuffer record) {
+        final ChannelBuffer payload = ChannelBuffers.wrappedBuffer(record.array(), HEADER_SIZE + BODY_HEADER,
+                record.capacity() - HEADER_SIZE - BODY_HEADER);
+        payload.clear();
+        return payload;
+    }
+
+    private static ByteBuffer record(byte type, long sequence, int payload) {
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + BODY_HEADER + payload);
+        record.putInt(0, BODY_HEADER + payload);
+        record.put(HEADER_SIZE, type);
+        record.putLong(HEADER_SIZE + 1, sequence);
+        return record;
+    }
+
+    private static ByteBuffer seal(ByteBuffer record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_SIZE, record.capacity() - HEADER_SIZE);
+        record.putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    private long append(ByteBuffer record) {
+        synchronized (lock) {
+            if (closing) {
+                throw new IllegalStateException("the write-ahead log is closed");
+            }
+            pending.add(record);
+            if (pending.size() == 1) {
+                lock.notify();
+            }
+            return ++appended;
+        }
+    }
+
+    /**
+     * Waits until the record queued with the ticket is durable under the fsync policy; called without the locks of
+     * the cache, so the writers of a group wait for the disk together.
+     */
+    void commit(long ticket) {
+        if (ticket == 0) {
+            return;
+        }
+        if (policy == FsyncPolicy.ALWAYS) {
+            awaitDurable(ticket);
+        } else if (failure != null) {
+            throw new IllegalStateException("the write-ahead log has failed", failure);
+        }
+    }
+
+    private void awaitDurable(long ticket) {
+        boolean interrupted = false;
+        try {
+            synchronized (synced) {
+                while ((durable < ticket) && (failure == null)) {
+                    try {
+                        synced.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (durable < ticket) {
+                    throw new IllegalStateException("the write-ahead log has failed", failure);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- writer thread
+
+    private void write() {
+        List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+        long lastSync = Clock.now();
+        boolean dirty = false;
+        try {
+            for (; ;) {
+                final long last;
+                final boolean done;
+                synchronized (lock) {
+                    while (pending.isEmpty() && !closing) {
+                        if (dirty && (policy == FsyncPolicy.INTERVAL)) {
+                            final long wait = lastSync + fsyncIntervalMillis - Clock.now();
+                            if (wait <= 0) {
+                                break;
+                            }
+                            lock.wait(wait);
+                        } else {
+                            lock.wait();
+                        }
+                    }
+                    final List<ByteBuffer> drained = pending;
+                    pending = batch;
+                    batch = drained;
+                    last = appended;
+                    done = closing && batch.isEmpty();
+                }
+
+                if (!batch.isEmpty()) {
+                    final ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+                    long bytes = 0;
+                    for (ByteBuffer buffer : buffers) {
+                        bytes += buffer.remaining();
+                    }
+                    for (long written = 0; written < bytes; ) {
+                        written += segment.write(buffers);
+                    }
+                    batch.clear();
+                    segmentBytes += bytes;
+                    logBytes.addAndGet(bytes);
+                    dirty = true;
+                }
+                if (dirty && (done || (policy == FsyncPolicy.ALWAYS)
+                        || ((policy == FsyncPolicy.INTERVAL) && (Clock.now() - lastSync >= fsyncIntervalMillis)))) {
+                    segment.force(false);
+                    lastSync = Clock.now();
+                    dirty = false;
+                }
+                synchronized (synced) {
+                    durable = last;
+                    synced.notifyAll();
+                }
+                if (done) {
+                    segment.close();
+                    return;
+                }
+                if (segmentBytes >= segmentSize) {
+                    dirty = false;
+                    rollSegment();
+                }
+            }
+        } catch (InterruptedException e) {
+            fail(new IOException("the write-ahead log writer was interrupted"));
+        } catch (IOException e) {
+            log.error("Failure to write the write-ahead log in " + directory, e);
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (synced) {
+            failure = e;
+            synced.notifyAll();
+        }
+    }
+
+    private void startSegment(long number) throws IOException {
+        segment = FileChannel.open(segmentFile(number, SUFFIX).toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        segmentBytes = 0;
+        // 新文件的目录项也要落盘，否则断电以后连同已经确认的记录一起消失
+        if (policy != FsyncPolicy.NEVER) {
+            syncDirectory();
+        }
+    }
+
+    /**
+     * Forces the entries of the log directory, i.e. created, renamed and deleted segments, to disk.
+     */
+    private void syncDirectory() throws IOException {
+        final FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Starts a new segment, compacting the old ones if the log has doubled since the last compaction. Called on
+     * the writer thread.
+     */
+    private void rollSegment() throws IOException {
+        if (policy != FsyncPolicy.NEVER) {
+            segment.force(false);
+        }
+        segment.close();
+        if (!compacting && (logBytes.get() >= Math.max(segmentSize, 2 * compactedBytes))) {
+            compacting = true;
+            final long compacted = ++segmentNumber;
+            compactor.execute(new Runnable() {
+                public void run() {
+                    compact(compacted);
+                }
+            });
+        }
+        startSegment(++segmentNumber);
+    }
+
+    // ---------------------------------------------------------------- compaction
+
+    /**
+     * Writes the live elements into the given segment number and deletes the segments before it.
+     */
+    private void compact(long number) {
+        final File temp = segmentFile(number, ".compact");
+        try {
+            long bytes = 0;
+            final FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+            try {
+                for (LocalCacheElement element : cache.storage.values()) {
+                    if (element.isBlocked() || cache.isExpired(element) || !element.tryRetain()) {
+                        continue;
+                    }
+                    final ByteBuffer record;
+                    try {
+                        record = putRecord(element);
+                    } finally {
+                        element.release();
+                    }
+                    while (record.hasRemaining()) {
+                        bytes += out.write(record);
+                    }
+                }
+                out.force(false);
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), segmentFile(number, SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            // 压缩好的段落盘以后才能删掉旧的段
+            syncDirectory();
+
+            for (File old : segments().headMap(number).values()) {
+                final long length = old.length();
+                if (!old.delete()) {
+                    throw new IOException("cannot delete " + old);
+                }
+                logBytes.addAndGet(-length);
+            }
+            logBytes.addAndGet(bytes);
+            compactedBytes = bytes;
+        } catch (IOException e) {
+            log.error("Failure to compact the write-ahead log in " + directory, e);
+            temp.delete();
+        } finally {
+            compacting = false;
+        }
+    }
+
+    /**
+     * Writes and syncs what has been appended, then stops the writer, waiting for a compaction in progress.
+     */
+    synchronized void close() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        synchronized (lock) {
+            closing = true;
+            lock.notify();
+        }
+        try {
+            writer.join();
+            compactor.shutdown();
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while closing the write-ahead log");
+        }
+        writer = null;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
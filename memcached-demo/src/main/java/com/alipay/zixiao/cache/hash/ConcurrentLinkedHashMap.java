@@ -24,6 +24,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -51,6 +53,14 @@ import java.util.concurrent.locks.ReentrantLock;
  * approximation of an optimal algorithm, but suffers by being expensive to maintain.
  * The cost of reordering entries on the list during every access operation reduces
  * the concurrency and performance characteristics of this policy.
+ * <li> Buffered Least Recently Used: The same ordering as LRU, but accesses are recorded into
+ * striped ring buffers and replayed onto the list in batches by whichever thread wins a
+ * non-blocking attempt at the lock. Retrievals never wait on list maintenance, at the cost of
+ * the ordering lagging slightly behind (and occasionally dropping) accesses under heavy load.
+ * <li> Window TinyLFU: New entries enter a small LRU admission window; entries leaving the window
+ * must out-score the victim of a segmented LRU main region (probation and protected) according to
+ * a frequency sketch with periodic aging. This keeps one-hit wonders and scans from flushing
+ * popular entries. Accesses are buffered as for the buffered LRU.
  * </ul>
  *
  * @author <a href="mailto:ben.manes@reardencommerce.com">Ben Manes</a>
@@ -63,8 +73,24 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         }
     };
     private static final long serialVersionUID = 8350170357874293408L;
+
+    /** The number of read buffers, the closest power of two at or above the number of CPUs. */
+    static final int READ_BUFFERS = ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors());
+
+    /** The number of slots in each read buffer; must be a power of two. */
+    static final int READ_BUFFER_SIZE = 32;
+
+    /** The number of pending reads in a buffer that triggers an attempt to drain. */
+    static final int READ_BUFFER_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    /** The percentage of entries held in the admission window of a TinyLFU map. */
+    static final int WINDOW_PERCENT = 1;
+
+    /** The percentage of the main region of a TinyLFU map held in the protected segment. */
+    static final int PROTECTED_PERCENT = 80;
+
     final ConcurrentMap<K, Node<K, V>> data;
-    final EvictionListener<K, V> listener;
+    volatile EvictionListener<K, V> listener;
     final AtomicInteger capacity;
     final EvictionPolicy policy;
     final AtomicInteger length;
@@ -72,6 +98,12 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
     final Lock lock;
     final AtomicLong memoryCapacity;
     final AtomicLong memoryUsed;
+    final AtomicReferenceArray<Node<K, V>>[] readBuffers;
+    final AtomicLongArray readBufferWriteCount;
+    final AtomicLongArray readBufferDrainCount;
+    final Node<K, V> probation;
+    final Node<K, V> protectedSegment;
+    final FrequencySketch sketch;
 
     /**
      * Creates a map with the specified eviction policy, maximum capacity, and at the default concurrency level.
@@ -134,6 +166,7 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
      *                         performs internal sizing to try to accommodate this many threads.
      * @param listener         The listener registered for notification when an entry is evicted.
      */
+    @SuppressWarnings("unchecked")
     private ConcurrentLinkedHashMap(EvictionPolicy policy, int maximumCapacity, long maximumMemoryCapacity,
                                     int concurrencyLevel, EvictionListener<K, V> listener) {
         if ((policy == null) || (maximumCapacity < 0) || (concurrencyLevel <= 0) || (listener == null)) {
@@ -148,6 +181,28 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         this.sentinel = new Node<K, V>(lock);
         this.memoryUsed = new AtomicLong(0);
         this.memoryCapacity = new AtomicLong(maximumMemoryCapacity);
+
+        this.readBuffers = new AtomicReferenceArray[policy.recordsReads() ? READ_BUFFERS : 0];
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+        }
+        this.readBufferWriteCount = new AtomicLongArray(readBuffers.length);
+        this.readBufferDrainCount = new AtomicLongArray(readBuffers.length);
+
+        if (policy == EvictionPolicy.TINY_LFU) {
+            this.probation = new Node<K, V>(lock);
+            this.protectedSegment = new Node<K, V>(lock);
+            this.sketch = new FrequencySketch();
+            this.sketch.ensureCapacity(maximumCapacity);
+        } else {
+            this.probation = null;
+            this.protectedSegment = null;
+            this.sketch = null;
+        }
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        return 1 << (Integer.SIZE - Integer.numberOfLeadingZeros(x - 1));
     }
 
     /**
@@ -204,10 +259,34 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         return capacity.get();
     }
 
+    /**
+     * The map lives on the heap only, so there is nothing to load.
+     */
+    public long open() {
+        return 0;
+    }
+
     public void close() {
         clear();
     }
 
+    /**
+     * The map holds on to the values it is given.
+     */
+    public boolean copiesValues() {
+        return false;
+    }
+
+    /**
+     * Replaces the listener notified when an entry is evicted.
+     *
+     * @param listener The listener, or null for none.
+     */
+    @SuppressWarnings("unchecked")
+    public void setEvictionListener(EvictionListener<K, V> listener) {
+        this.listener = (listener == null) ? (EvictionListener<K, V>) nullListener : listener;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -250,8 +329,11 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
      * Evicts a single entry if the map exceeds the maximum capacity.
      */
     private boolean evict() {
+        if (isOverflow()) {
+            tryToDrainReadBuffers();
+        }
         while (isOverflow()) {
-            Node<K, V> node = sentinel.getNext();
+            Node<K, V> node = policy.victim(this);
             if (node == sentinel) {
                 return false;
             } else if (policy.onEvict(this, node)) {
@@ -269,6 +351,123 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         return false;
     }
 
+    /**
+     * Records that the node was retrieved, for replay onto the list by a later drain. The read is
+     * dropped if the buffer is full or another thread is racing for the same slot; the ordering is
+     * a hint, so losing the occasional access is preferable to making the reader wait.
+     *
+     * @param node The node that was retrieved.
+     */
+    void recordRead(Node<K, V> node) {
+        final int index = (int) Thread.currentThread().getId() & (readBuffers.length - 1);
+        final long writeCount = readBufferWriteCount.get(index);
+        final long pending = writeCount - readBufferDrainCount.get(index);
+        if ((pending < READ_BUFFER_SIZE) && readBufferWriteCount.compareAndSet(index, writeCount, writeCount + 1)) {
+            readBuffers[index].lazySet((int) writeCount & (READ_BUFFER_SIZE - 1), node);
+        }
+        if (pending >= READ_BUFFER_DRAIN_THRESHOLD) {
+            tryToDrainReadBuffers();
+        }
+    }
+
+    /**
+     * Replays the buffered reads onto the list if the lock is free, otherwise leaves them for the
+     * thread currently holding it.
+     */
+    void tryToDrainReadBuffers() {
+        if (readBuffers.length == 0) {
+            return;
+        }
+        if (lock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays all buffered reads onto the list. Must be called with the lock held.
+     */
+    private void drainReadBuffers() {
+        for (int i = 0; i < readBuffers.length; i++) {
+            final AtomicReferenceArray<Node<K, V>> buffer = readBuffers[i];
+            final long writeCount = readBufferWriteCount.get(i);
+            long drainCount = readBufferDrainCount.get(i);
+            for (; drainCount < writeCount; drainCount++) {
+                final int slot = (int) drainCount & (READ_BUFFER_SIZE - 1);
+                final Node<K, V> node = buffer.get(slot);
+                if (node == null) {
+                    break;           // the write to this slot is not yet visible
+                }
+                buffer.lazySet(slot, null);
+                policy.onDrain(this, node);
+            }
+            readBufferDrainCount.lazySet(i, drainCount);
+        }
+    }
+
+    /**
+     * Applies a buffered access to a TinyLFU map: counts it in the sketch, reorders the node within
+     * its segment and promotes it out of probation. Must be called with the lock held.
+     *
+     * @param node The node that was accessed.
+     */
+    void onTinyLfuAccess(Node<K, V> node) {
+        if (node.isUnlinked()) {
+            return;
+        }
+        sketch.increment(node.getKey());
+        if (node.isIn(probation)) {
+            node.transferTo(protectedSegment);
+
+            // Demote the least recently used protected entries to make room
+            final int mainSize = probation.listSize + protectedSegment.listSize;
+            final long protectedMaximum = ((long) mainSize * PROTECTED_PERCENT + 99) / 100;
+            while (protectedSegment.listSize > protectedMaximum) {
+                protectedSegment.getNext().transferTo(probation);
+            }
+        } else {
+            node.moveToTail();
+        }
+    }
+
+    /**
+     * Selects the entry a TinyLFU map should evict. Entries overflowing the admission window are
+     * moved to probation, and the newest such candidate is evicted instead of the probation victim
+     * unless the sketch estimates it to be more popular.
+     *
+     * @return The node to evict, or the sentinel if the map is empty.
+     */
+    Node<K, V> tinyLfuVictim() {
+        lock.lock();
+        try {
+            sketch.ensureCapacity(size());
+
+            final int windowMaximum = Math.max(1, size() * WINDOW_PERCENT / 100);
+            Node<K, V> candidate = null;
+            while (sentinel.listSize > windowMaximum) {
+                candidate = sentinel.getNext();
+                candidate.transferTo(probation);
+            }
+
+            Node<K, V> victim = probation.getNext();
+            if (victim == probation) {
+                victim = protectedSegment.getNext();
+                if (victim == protectedSegment) {
+                    return sentinel.getNext();
+                }
+            }
+            if ((candidate == null) || (candidate == victim)) {
+                return victim;
+            }
+            return (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) ? victim : candidate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -328,6 +527,7 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         if (old == null) {
             length.incrementAndGet();
             node.appendToTail();
+            policy.onInsert(this, node);
             evict();
         } else {
             policy.onAccess(this, old);
@@ -490,6 +690,60 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
             <K, V extends SizedItem> boolean onEvict(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
                 return true;
             }
+        },
+
+        /**
+         * Evicts entries based on how recently they are used, but records accesses into buffers that
+         * are replayed onto the list in batches, so that retrievals never block on the lock.
+         */
+        BUFFERED_LRU() {
+            @Override
+            <K, V extends SizedItem> void onAccess(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+                map.recordRead(node);
+            }
+            @Override
+            <K, V extends SizedItem> void onDrain(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+                node.moveToTail();
+            }
+            @Override
+            <K, V extends SizedItem> boolean onEvict(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+                return true;
+            }
+            @Override
+            boolean recordsReads() {
+                return true;
+            }
+        },
+
+        /**
+         * Admits entries to a segmented LRU main region through a small LRU window, evicting whichever
+         * of the window's candidate and the main region's victim has been used less frequently.
+         */
+        TINY_LFU() {
+            @Override
+            <K, V extends SizedItem> void onAccess(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+                map.recordRead(node);
+            }
+            @Override
+            <K, V extends SizedItem> void onInsert(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+                map.recordRead(node);
+            }
+            @Override
+            <K, V extends SizedItem> void onDrain(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+                map.onTinyLfuAccess(node);
+            }
+            @Override
+            <K, V extends SizedItem> Node<K, V> victim(ConcurrentLinkedHashMap<K, V> map) {
+                return map.tinyLfuVictim();
+            }
+            @Override
+            <K, V extends SizedItem> boolean onEvict(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+                return true;
+            }
+            @Override
+            boolean recordsReads() {
+                return true;
+            }
         };
 
         /**
@@ -501,6 +755,34 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
          * Determines whether to evict the node at the head of the list.
          */
         abstract <K, V extends SizedItem> boolean onEvict(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node);
+
+        /**
+         * Performs any operations required by the policy after a node was added to the tail of the list.
+         */
+        <K, V extends SizedItem> void onInsert(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+            // do nothing
+        }
+
+        /**
+         * Selects the next node to consider for eviction, or the map's sentinel if there is none.
+         */
+        <K, V extends SizedItem> Node<K, V> victim(ConcurrentLinkedHashMap<K, V> map) {
+            return map.sentinel.getNext();
+        }
+
+        /**
+         * Performs any deferred operations for a buffered access. Called with the lock held.
+         */
+        <K, V extends SizedItem> void onDrain(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+            // do nothing
+        }
+
+        /**
+         * Whether accesses are buffered rather than applied to the list immediately.
+         */
+        boolean recordsReads() {
+            return false;
+        }
     }
 
     /**
@@ -515,7 +797,10 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
 
         private final K key;
         private final Lock lock;
-        private final Node<K, V> sentinel;
+        private Node<K, V> sentinel;
+
+        /** The number of nodes linked on the list, maintained only by sentinels. */
+        int listSize;
 
         private volatile V value;
         private volatile boolean marked;
@@ -560,6 +845,7 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
                 sentinel.prev = this;
                 tail.next = this;
                 prev = tail;
+                sentinel.listSize++;
             } finally {
                 lock.unlock();
             }
@@ -584,6 +870,7 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
                     prev.next = next;
                     next.prev = prev;
                     next = UNLINKED; // mark as unlinked
+                    sentinel.listSize--;
                 } finally {
                     lock.unlock();
                 }
@@ -619,6 +906,38 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
             }
         }
 
+        /**
+         * Moves the node to the tail of another list, such as a different segment of the map. Must be
+         * called with the lock held; no-ops if the node has been unlinked.
+         *
+         * @param list The sentinel of the list to move to.
+         */
+        void transferTo(Node<K, V> list) {
+            if (isUnlinked()) {
+                return;
+            }
+            prev.next = next;
+            next.prev = prev;
+            sentinel.listSize--;
+
+            sentinel = list;
+            next = list;
+            prev = list.prev;
+            list.prev = this;
+            prev.next = this;
+            list.listSize++;
+        }
+
+        /**
+         * Checks whether the node is linked on the list headed by the given sentinel.
+         *
+         * @param list The sentinel of the list.
+         * @return Whether the node belongs to that list.
+         */
+        boolean isIn(Node<K, V> list) {
+            return (sentinel == list) && !isUnlinked();
+        }
+
         /**
          * Checks whether the node is linked on the list chain.
          *
@@ -0,0 +1,109 @@
+package com.alipay.zixiao.cache.hash;
+
+/**
+ * A probabilistic multiset for estimating the popularity of an element within a time window. Each
+ * element is counted in four 4-bit counters of a count-min sketch, so the estimate saturates at 15,
+ * and every counter is halved once enough increments have been observed so that the history ages.
+ * <p/>
+ * This class is not thread-safe; callers are expected to serialize access (the map uses its lock).
+ */
+final class FrequencySketch {
+
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    /** The largest table allocated, bounding the sketch at 8 MB however large the cache. */
+    private static final int MAXIMUM_TABLE_SIZE = 1 << 20;
+
+    private long[] table = new long[0];
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    /**
+     * Grows the sketch, if needed, so that it can accurately estimate the popularity of the given
+     * number of elements. Growing discards the history gathered so far.
+     *
+     * @param maximumSize the number of elements expected to be tracked
+     */
+    void ensureCapacity(long maximumSize) {
+        int maximum = (int) Math.min(Math.max(maximumSize, 16), MAXIMUM_TABLE_SIZE);
+        if (table.length >= maximum) {
+            return;
+        }
+        table = new long[1 << (Integer.SIZE - Integer.numberOfLeadingZeros(maximum - 1))];
+        tableMask = table.length - 1;
+        sampleSize = 10 * maximum;
+        size = 0;
+    }
+
+    /**
+     * @return the estimated number of occurrences of the element, up to 15
+     */
+    int frequency(Object e) {
+        final int hash = spread(e.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increments the popularity of the element if it does not exceed the maximum of 15, and ages
+     * all counters once the sample period has elapsed.
+     */
+    void increment(Object e) {
+        final int hash = spread(e.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && (++size == sampleSize)) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int i, int j) {
+        final int offset = j << 2;
+        final long mask = 0xfL << offset;
+        if ((table[i] & mask) != mask) {
+            table[i] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter, subtracting the truncated remainders from the sample size.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += hash >>> 32;
+        return ((int) hash) & tableMask;
+    }
+
+    /**
+     * Applies a supplemental hash function to defend against a poor quality hash.
+     */
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -1,5 +1,6 @@
 package com.alipay.zixiao.cache.storage;
 
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
 import com.alipay.zixiao.cache.hash.SizedItem;
 
 import java.io.IOException;
@@ -25,6 +26,27 @@ public interface CacheStorage<K, V extends SizedItem> extends ConcurrentMap<K, V
      */
     int capacity();
 
+    /**
+     * Register the listener notified when an entry is evicted to make room, replacing any previous one.
+     * @param listener the listener, or null for none
+     */
+    void setEvictionListener(ConcurrentLinkedHashMap.EvictionListener<K, V> listener);
+
+    /**
+     * Values arriving from the network are slices of the connection's read buffers, which are reused once the
+     * command has been handled. A storage which keeps the value objects it is given needs them copied first; one
+     * which serializes them into memory of its own does not.
+     * @return true if the storage copies the keys and values it stores, rather than holding on to them
+     */
+    boolean copiesValues();
+
+    /**
+     * Load what a persistent storage kept from before its last close. Called once, before the storage is used.
+     * @return the highest cas unique of the elements loaded, or 0 if there are none
+     * @throws IOException thrown if the persisted state cannot be read
+     */
+    long open() throws IOException;
+
     /**
      * Close the storage unit, deallocating any resources it might be currently holding.
      * @throws IOException thrown if IO faults occur anywhere during close.
@@ -0,0 +1,181 @@
+package com.alipay.zixiao.cache.storage;
+
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 元素在slab chunk里的序列化格式，紧跟在chunk的两字节头后面
+ * <p/>
+ * The allocator only needs to know how long a serialized element is and where its key lies, so it can copy the
+ * element out and compare keys in place; both are read with absolute gets and may throw on a torn chunk.
+ */
+abstract class ChunkLayout {
+
+    /**
+     * The {@link LocalCacheElement#writeToBuffer} layout: fixed width fields led by the serialized size.
+     */
+    static final ChunkLayout FULL = new ChunkLayout() {
+        int size(LocalCacheElement element) {
+            return element.bufferSize();
+        }
+
+        void write(LocalCacheElement element, ChannelBuffer out) {
+            element.writeToBuffer(out);
+        }
+
+        LocalCacheElement read(ChannelBuffer in) {
+            return LocalCacheElement.readFromBuffer(in);
+        }
+
+        int length(ByteBuffer buffer, int index) {
+            return buffer.getInt(index);
+        }
+
+        int keyIndex(ByteBuffer buffer, int index) {
+            return index + 4 + 8 + 4;
+        }
+
+        int keyLength(ByteBuffer buffer, int index) {
+            return buffer.getInt(index + 4 + 8);
+        }
+    };
+
+    /**
+     * Unsigned varints for the key length, data length, flags, expiry, cas and blocked-until time (0 unless the
+     * element is a blocked placeholder), followed by the key and the data. There is no size field, it follows from
+     * the lengths. An item of up to 16 KB with a cas under 2^35 and no expiry costs 6 to 11 bytes besides its key and
+     * data; an expiry costs 5 more.
+     */
+    static final ChunkLayout COMPACT = new ChunkLayout() {
+        int size(LocalCacheElement element) {
+            final int keyLength = element.getKey().length();
+            final int dataLength = element.getData().capacity();
+            return varintSize(keyLength) + varintSize(dataLength) + varintSize(element.getFlags() & 0xFFFFFFFFL)
+                    + varintSize(element.getExpire()) + varintSize(element.getCasUnique())
+                    + varintSize(element.isBlocked() ? element.getBlockedUntil() : 0) + keyLength + dataLength;
+        }
+
+        void write(LocalCacheElement element, ChannelBuffer out) {
+            final ChannelBuffer data = element.getData();
+            writeVarint(out, element.getKey().length());
+            writeVarint(out, data.capacity());
+            writeVarint(out, element.getFlags() & 0xFFFFFFFFL);
+            writeVarint(out, element.getExpire());
+            writeVarint(out, element.getCasUnique());
+            writeVarint(out, element.isBlocked() ? element.getBlockedUntil() : 0);
+            element.getKey().writeTo(out);
+            out.writeBytes(data, 0, data.capacity());
+        }
+
+        LocalCacheElement read(ChannelBuffer in) {
+            final int keyLength = (int) readVarint(in);
+            final int dataLength = (int) readVarint(in);
+            final int flags = (int) readVarint(in);
+            final long expire = readVarint(in);
+            final long cas = readVarint(in);
+            final long blockedUntil = readVarint(in);
+            final LocalCacheElement element = new LocalCacheElement(new Key(in, in.readerIndex(), keyLength), flags,
+                    expire, cas);
+            in.skipBytes(keyLength);
+            element.setData(in.slice(in.readerIndex(), dataLength));
+            if (blockedUntil != 0) {
+                element.block(blockedUntil);
+            }
+            return element;
+        }
+
+        int length(ByteBuffer buffer, int index) {
+            final int keyIndex = keyIndex(buffer, index);
+            final int dataLength = (int) getVarint(buffer, skipVarint(buffer, index));
+            return keyIndex - index + keyLength(buffer, index) + dataLength;
+        }
+
+        int keyIndex(ByteBuffer buffer, int index) {
+            for (int field = 0; field < 6; field++) {
+                index = skipVarint(buffer, index);
+            }
+            return index;
+        }
+
+        int keyLength(ByteBuffer buffer, int index) {
+            return (int) getVarint(buffer, index);
+        }
+    };
+
+    /**
+     * @return the serialized size of the element
+     */
+    abstract int size(LocalCacheElement element);
+
+    abstract void write(LocalCacheElement element, ChannelBuffer out);
+
+    /**
+     * @return the element, whose data is a slice of the buffer
+     */
+    abstract LocalCacheElement read(ChannelBuffer in);
+
+    /**
+     * @return the serialized size of the element starting at the index of the buffer
+     */
+    abstract int length(ByteBuffer buffer, int index);
+
+    /**
+     * @return the index of the key of the element starting at the index of the buffer
+     */
+    abstract int keyIndex(ByteBuffer buffer, int index);
+
+    abstract int keyLength(ByteBuffer buffer, int index);
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarint(ChannelBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(ChannelBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    private static long getVarint(ByteBuffer buffer, int index) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buffer.get(index++);
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    private static int skipVarint(ByteBuffer buffer, int index) {
+        for (int i = 0; i < 10; i++) {
+            if (buffer.get(index++) >= 0) {
+                return index;
+            }
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+}
@@ -0,0 +1,856 @@
+package com.alipay.zixiao.cache.storage;
+
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import com.alipay.zixiao.util.Clock;
+import com.alipay.zixiao.util.NamedThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 紧凑索引的slab存储，适合大量的小元素
+ * <p/>
+ * Elements are kept in slabs of direct memory like in {@link SlabCacheStorage}, but the index from key to chunk is
+ * an open-addressing hash table in plain {@code long[]} arrays instead of a {@code ConcurrentHashMap}. A slot packs
+ * the 32 bit hash of the key in its upper half and a compressed chunk reference in its lower half, so an entry costs
+ * 8 bytes of index, 11 to 21 bytes depending on the load of the table, and no objects at all. Keys are not kept on
+ * the heap: a probe compares hashes first and only compares the key in place in the chunk when they match, so a
+ * lookup allocates nothing but the element it returns.
+ * <p/>
+ * Chunks hold elements in the {@link ChunkLayout#COMPACT} layout of varint lengths and fields, without a size field
+ * and with a one byte blocked-until time on normal items. Besides its key and data, an item without expiry, with a
+ * cas under 2^35 and a value of up to 16 KB costs the 2 byte chunk header plus 6 to 11 bytes in the chunk and 11 to
+ * 21 bytes of index, 19 to 34 bytes in all and under 32 for most tables; an expiry adds 5 bytes, so an expiring item
+ * costs 24 to 39. Rounding up to the chunk size comes on top, as with any slab allocator.
+ * <p/>
+ * The table is split into segments by the upper bits of the hash, each guarded by a {@link StampedLock}. Lookups
+ * probe optimistically and only take the read lock if a writer got in the way; writers take the write lock of one
+ * segment. The table uses linear probing with backward-shift deletion, so there are no tombstones and a segment
+ * only grows, doubling once it is three quarters full. Chunks are allocated and freed outside the segment locks,
+ * since allocating may evict, which removes entries from the index.
+ * <p/>
+ * A chunk reference is the chunk's byte offset divided by 8 and must fit in 32 bits, which limits the storage to
+ * 32 GB of slabs.
+ * <p/>
+ * Given a directory, the slabs are memory-mapped files (see {@link MappedPageStore}) which outlive the process: a
+ * storage closed cleanly is picked up again by {@link #open()}, which rebuilds the index from the pages on one
+ * thread per core, so a restarted server serves its hot data again within seconds instead of cold-starting.
+ */
+public final class CompactCacheStorage extends AbstractMap<Key, LocalCacheElement> implements CacheStorage<Key, LocalCacheElement> {
+
+    static final int DEFAULT_SEGMENTS = 64;
+    static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private final SlabAllocator slabs;
+    private final MappedPageStore mapped;
+    private final long unitsPerPage;
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    private volatile ConcurrentLinkedHashMap.EvictionListener<Key, LocalCacheElement> listener;
+
+    private final SlabAllocator.Evictor evictor = new SlabAllocator.Evictor() {
+        public boolean evict(Key key, long handle) {
+            final int hash = key.hashCode();
+            if (!segmentFor(hash).removeChunk(hash, ref(handle))) {
+                return false;
+            }
+            // the chunk is only reused once we return, so the element can still be read for the listener
+            final ConcurrentLinkedHashMap.EvictionListener<Key, LocalCacheElement> listener = CompactCacheStorage.this.listener;
+            if (listener != null) {
+                final LocalCacheElement element = slabs.read(handle);
+                if (element != null) {
+                    listener.onEviction(key, element);
+                }
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Creates a storage with the default 1 MB pages, 1.25 chunk growth factor and 64 index segments.
+     *
+     * @param maximumMemoryCapacity the direct memory the slabs may use, in bytes
+     */
+    public CompactCacheStorage(long maximumMemoryCapacity) {
+        this(maximumMemoryCapacity, SlabAllocator.DEFAULT_PAGE_SIZE, SlabAllocator.DEFAULT_MIN_CHUNK_SIZE,
+                SlabAllocator.DEFAULT_GROWTH_FACTOR, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maximumMemoryCapacity the direct memory the slabs may use, in bytes
+     * @param pageSize              the size of a slab page, which bounds the size of a single element
+     * @param minChunkSize          the chunk size of the smallest slab class
+     * @param growthFactor          the ratio between the chunk sizes of consecutive slab classes
+     * @param segments              the number of independently locked index segments, a power of two
+     */
+    public CompactCacheStorage(long maximumMemoryCapacity, int pageSize, int minChunkSize, double growthFactor, int segments) {
+        this(null, maximumMemoryCapacity, pageSize, minChunkSize, growthFactor, segments);
+    }
+
+    /**
+     * Creates a storage whose slabs are mapped from files in the directory, with the default page layout. It must be
+     * {@link #open() opened} before it is used.
+     *
+     * @param directory             the directory of the slab files, created if necessary
+     * @param maximumMemoryCapacity the size of the slab files, in bytes
+     */
+    public CompactCacheStorage(File directory, long maximumMemoryCapacity) {
+        this(directory, maximumMemoryCapacity, SlabAllocator.DEFAULT_PAGE_SIZE, SlabAllocator.DEFAULT_MIN_CHUNK_SIZE,
+                SlabAllocator.DEFAULT_GROWTH_FACTOR, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param directory the directory of the slab files, or null to keep the slabs in direct memory
+     */
+    public CompactCacheStorage(File directory, long maximumMemoryCapacity, int pageSize, int minChunkSize,
+                               double growthFactor, int segments) {
+        if ((segments <= 0) || (segments > (1 << 16)) || (Integer.bitCount(segments) != 1)) {
+            throw new IllegalArgumentException("segments must be a power of two up to 65536: " + segments);
+        }
+        if (directory == null) {
+            this.mapped = null;
+            this.slabs = new SlabAllocator(maximumMemoryCapacity, pageSize, minChunkSize, growthFactor,
+                    ChunkLayout.COMPACT);
+        } else {
+            this.mapped = new MappedPageStore(directory, pageSize, SlabAllocator.pagesFor(maximumMemoryCapacity, pageSize),
+                    minChunkSize, growthFactor);
+            this.slabs = new SlabAllocator(maximumMemoryCapacity, pageSize, minChunkSize, growthFactor,
+                    ChunkLayout.COMPACT, mapped);
+        }
+        this.unitsPerPage = (pageSize + 7) >>> 3;
+        if (slabs.capacity() / pageSize * unitsPerPage >= 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("chunk references are 32 bits, which limits the storage to 32 GB");
+        }
+        this.segments = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment();
+        }
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segments);
+    }
+
+    public long getMemoryCapacity() {
+        return slabs.capacity();
+    }
+
+    public long getMemoryUsed() {
+        return slabs.used();
+    }
+
+    /**
+     * @return the heap held by the index tables, in bytes
+     */
+    public long getIndexMemoryUsed() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += 8L * segment.table.length;
+        }
+        return bytes;
+    }
+
+    public int capacity() {
+        return (int) Math.min(Integer.MAX_VALUE, slabs.capacity() / slabs.minChunkSize());
+    }
+
+    /**
+     * Maps the slab files and indexes the elements kept by the last clean close; expired elements are dropped.
+     * Does nothing if the slabs are in direct memory.
+     */
+    public long open() throws IOException {
+        if (mapped == null) {
+            return 0;
+        }
+        final ByteBuffer[] pages = mapped.open();
+        final int[] slabClasses = new int[pages.length];
+        for (int page = 0; page < pages.length; page++) {
+            slabClasses[page] = mapped.slabClass(page);
+        }
+        slabs.restore(pages, slabClasses);
+        return rebuild();
+    }
+
+    /**
+     * Indexes the restored pages, spreading them over one thread per core.
+     *
+     * @return the highest cas unique found
+     */
+    private long rebuild() throws IOException {
+        final int pages = slabs.pageCount();
+        if (pages == 0) {
+            return 0;
+        }
+        final int threads = Math.min(pages, Runtime.getRuntime().availableProcessors());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("storage-rebuild", true));
+        try {
+            final List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                results.add(executor.submit(new Callable<Long>() {
+                    public Long call() {
+                        long maxCas = 0;
+                        for (int page = first; page < pages; page += threads) {
+                            maxCas = Math.max(maxCas, rebuild(page));
+                        }
+                        return maxCas;
+                    }
+                }));
+            }
+            long maxCas = 0;
+            for (Future<Long> result : results) {
+                maxCas = Math.max(maxCas, result.get());
+            }
+            return maxCas;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while rebuilding the index");
+        } catch (ExecutionException e) {
+            throw new IOException("failure to rebuild the index", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long rebuild(int page) {
+        final long now = Clock.now();
+        long maxCas = 0;
+        for (long handle : slabs.usedChunks(page)) {
+            final LocalCacheElement element = slabs.read(handle);
+            if ((element == null) || ((element.getExpire() != 0) && (element.getExpire() <= now))) {
+                slabs.free(handle);
+                continue;
+            }
+            final Key key = element.getKey();
+            final int hash = key.hashCode();
+            final Segment segment = segmentFor(hash);
+            final long loser;
+            final long stamp = segment.lock.writeLock();
+            try {
+                loser = segment.restore(hash, key, ref(handle), element.getCasUnique());
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+            if (loser != 0) {
+                free(loser);
+            }
+            maxCas = Math.max(maxCas, element.getCasUnique());
+        }
+        return maxCas;
+    }
+
+    /**
+     * Empties a storage in direct memory. A mapped storage is kept instead: its pages are forced to disk so that the
+     * next {@link #open()} finds them.
+     */
+    public void close() throws IOException {
+        if (mapped == null) {
+            clear();
+        } else {
+            mapped.close();
+        }
+    }
+
+    public boolean copiesValues() {
+        return true;
+    }
+
+    public void setEvictionListener(ConcurrentLinkedHashMap.EvictionListener<Key, LocalCacheElement> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Packs a chunk handle into a non-zero 32 bit reference, returned as the lower half of a long.
+     */
+    private long ref(long handle) {
+        return SlabAllocator.page(handle) * unitsPerPage + (SlabAllocator.offset(handle) >>> 3) + 1;
+    }
+
+    private long handle(long ref) {
+        final long unit = ref - 1;
+        return SlabAllocator.handle((int) (unit / unitsPerPage), (int) (unit % unitsPerPage) << 3);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(segmentShift == 32) ? 0 : (hash >>> segmentShift)];
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public LocalCacheElement get(Object key) {
+        if (!(key instanceof Key)) {
+            return null;
+        }
+        final int hash = key.hashCode();
+        final Segment segment = segmentFor(hash);
+        long ref = segment.lookup(hash, (Key) key);
+        if (ref == 0) {
+            return null;
+        }
+        final LocalCacheElement element = slabs.read(handle(ref));
+        if ((element != null) && element.getKey().equals(key)) {
+            return element;
+        }
+        // the chunk was freed and reused after the lookup; look again with the segment locked, which keeps the
+        // chunks it indexes
+        final long stamp = segment.lock.readLock();
+        try {
+            ref = segment.find(hash, (Key) key);
+            return (ref == 0) ? null : slabs.read(handle(ref));
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Allocates a chunk and writes the element to it, ready to be published in the index. Must not be called with a
+     * segment locked, since allocating may evict.
+     */
+    private long store(LocalCacheElement element) {
+        final long handle = slabs.allocate(slabs.sizeOf(element), evictor);
+        slabs.write(handle, element);
+        return ref(handle);
+    }
+
+    private void free(long ref) {
+        slabs.free(handle(ref));
+    }
+
+    @Override
+    public LocalCacheElement put(Key key, LocalCacheElement value) {
+        if (value == null) {
+            throw new IllegalArgumentException();
+        }
+        final int hash = key.hashCode();
+        final Segment segment = segmentFor(hash);
+        final long ref = store(value);
+        final long old;
+        final long stamp = segment.lock.writeLock();
+        try {
+            old = segment.put(hash, key, ref, false);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+        if (old == 0) {
+            return null;
+        }
+        // no longer indexed, so nothing else frees or evicts the chunk before we do
+        final LocalCacheElement previous = slabs.read(handle(old));
+        free(old);
+        return previous;
+    }
+
+    public LocalCacheElement putIfAbsent(Key key, LocalCacheElement value) {
+        if (value == null) {
+            throw new IllegalArgumentException();
+        }
+        final LocalCacheElement existing = get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final int hash = key.hashCode();
+        final Segment segment = segmentFor(hash);
+        final long ref = store(value);
+        final LocalCacheElement current;
+        final long stamp = segment.lock.writeLock();
+        try {
+            final long found = segment.put(hash, key, ref, true);
+            // read while locked, before a concurrent remove can free the chunk
+            current = (found == 0) ? null : slabs.read(handle(found));
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+        if (current != null) {
+            free(ref);
+        }
+        return current;
+    }
+
+    @Override
+    public LocalCacheElement remove(Object key) {
+        if (!(key instanceof Key)) {
+            return null;
+        }
+        final int hash = key.hashCode();
+        final Segment segment = segmentFor(hash);
+        final long old;
+        final long stamp = segment.lock.writeLock();
+        try {
+            old = segment.remove(hash, (Key) key, null);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+        if (old == 0) {
+            return null;
+        }
+        final LocalCacheElement previous = slabs.read(handle(old));
+        free(old);
+        return previous;
+    }
+
+    public boolean remove(Object key, Object value) {
+        if (!(key instanceof Key) || (value == null)) {
+            return false;
+        }
+        final int hash = key.hashCode();
+        final Segment segment = segmentFor(hash);
+        final long old;
+        final long stamp = segment.lock.writeLock();
+        try {
+            old = segment.remove(hash, (Key) key, value);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+        if (old == 0) {
+            return false;
+        }
+        free(old);
+        return true;
+    }
+
+    public LocalCacheElement replace(Key key, LocalCacheElement value) {
+        if (value == null) {
+            throw new IllegalArgumentException();
+        }
+        if (get(key) == null) {
+            return null;
+        }
+        final int hash = key.hashCode();
+        final Segment segment = segmentFor(hash);
+        final long ref = store(value);
+        final long old;
+        final long stamp = segment.lock.writeLock();
+        try {
+            old = segment.replace(hash, key, null, ref);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+        if (old == 0) {
+            free(ref);
+            return null;
+        }
+        final LocalCacheElement previous = slabs.read(handle(old));
+        free(old);
+        return previous;
+    }
+
+    public boolean replace(Key key, LocalCacheElement oldValue, LocalCacheElement newValue) {
+        if (newValue == null) {
+            throw new IllegalArgumentException();
+        }
+        if ((oldValue == null) || !oldValue.equals(get(key))) {
+            return false;
+        }
+        final int hash = key.hashCode();
+        final Segment segment = segmentFor(hash);
+        final long ref = store(newValue);
+        final long old;
+        final long stamp = segment.lock.writeLock();
+        try {
+            old = segment.replace(hash, key, oldValue, ref);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+        free((old == 0) ? ref : old);
+        return old != 0;
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            final long[] table;
+            final long stamp = segment.lock.writeLock();
+            try {
+                table = segment.table;
+                segment.table = new long[INITIAL_SEGMENT_CAPACITY];
+                segment.count = 0;
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+            for (long slot : table) {
+                if (slot != 0) {
+                    free(slot & 0xFFFFFFFFL);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Set<Key> keySet() {
+        return new KeySet();
+    }
+
+    @Override
+    public Set<Entry<Key, LocalCacheElement>> entrySet() {
+        return new EntrySet();
+    }
+
+    /**
+     * One lock stripe of the index: a linear probing table of slots, each holding the hash of the key in the upper
+     * 32 bits and the chunk reference in the lower 32 bits, or 0 when empty. The table and count are only written
+     * with the write lock held.
+     */
+    private final class Segment {
+        final StampedLock lock = new StampedLock();
+        long[] table = new long[INITIAL_SEGMENT_CAPACITY];
+        volatile int count;
+
+        /**
+         * Finds the reference the key maps to without locking unless a writer interferes: the probe compares the
+         * hashes, and the key in place in the chunk when they match, under an optimistic stamp.
+         *
+         * @return the reference, or 0
+         */
+        long lookup(int hash, Key key) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                final long ref = probe(table, hash, key);
+                if (lock.validate(stamp)) {
+                    return ref;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return probe(table, hash, key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Bounded by the table length, since a table probed optimistically may be changing underneath.
+         */
+        private long probe(long[] table, int hash, Key key) {
+            final int mask = table.length - 1;
+            for (int i = hash & mask, n = 0; n < table.length; i = (i + 1) & mask, n++) {
+                final long slot = table[i];
+                if (slot == 0) {
+                    return 0;
+                }
+                if (((int) (slot >>> 32) == hash) && slabs.keyEquals(handle(slot & 0xFFFFFFFFL), key)) {
+                    return slot & 0xFFFFFFFFL;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return the index of the slot holding the key, or -1. Called with the lock held.
+         */
+        private int indexOf(int hash, Key key) {
+            final int mask = table.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                final long slot = table[i];
+                if (slot == 0) {
+                    return -1;
+                }
+                if (((int) (slot >>> 32) == hash) && slabs.keyEquals(handle(slot & 0xFFFFFFFFL), key)) {
+                    return i;
+                }
+            }
+        }
+
+        /**
+         * @return the reference the key maps to, or 0. Called with the lock held.
+         */
+        long find(int hash, Key key) {
+            final int i = indexOf(hash, key);
+            return (i < 0) ? 0 : table[i] & 0xFFFFFFFFL;
+        }
+
+        /**
+         * Maps the key to the reference, unless it is present and onlyIfAbsent is set. Called with the write lock
+         * held.
+         *
+         * @return the reference the key mapped to before, or 0
+         */
+        long put(int hash, Key key, long ref, boolean onlyIfAbsent) {
+            final int i = indexOf(hash, key);
+            if (i >= 0) {
+                final long old = table[i] & 0xFFFFFFFFL;
+                if (!onlyIfAbsent) {
+                    table[i] = slot(hash, ref);
+                }
+                return old;
+            }
+            add(hash, ref);
+            return 0;
+        }
+
+        private void add(int hash, long ref) {
+            if ((count + 1) * 4L > table.length * 3L) {
+                resize();
+            }
+            insert(table, slot(hash, ref));
+            count++;
+        }
+
+        /**
+         * Indexes a restored element, keeping the newer one by cas if the key is already indexed, as it is when the
+         * storage was written to while being closed. Called with the write lock held.
+         *
+         * @return the reference of the element dropped, or 0
+         */
+        long restore(int hash, Key key, long ref, long casUnique) {
+            final int i = indexOf(hash, key);
+            if (i < 0) {
+                add(hash, ref);
+                return 0;
+            }
+            final long other = table[i] & 0xFFFFFFFFL;
+            final LocalCacheElement existing = slabs.read(handle(other));
+            if ((existing != null) && (existing.getCasUnique() >= casUnique)) {
+                return ref;
+            }
+            table[i] = slot(hash, ref);
+            return other;
+        }
+
+        /**
+         * Replaces the reference of the key if it is present and, when expected is given, holds an equal element.
+         * Called with the write lock held.
+         *
+         * @return the replaced reference, or 0
+         */
+        long replace(int hash, Key key, Object expected, long ref) {
+            final int i = indexOf(hash, key);
+            if (i < 0) {
+                return 0;
+            }
+            final long old = table[i] & 0xFFFFFFFFL;
+            if ((expected != null) && !expected.equals(slabs.read(handle(old)))) {
+                return 0;
+            }
+            table[i] = slot(hash, ref);
+            return old;
+        }
+
+        /**
+         * Removes the key if it is present and, when expected is given, holds an equal element. Called with the
+         * write lock held.
+         *
+         * @return the removed reference, or 0
+         */
+        long remove(int hash, Key key, Object expected) {
+            final int i = indexOf(hash, key);
+            if (i < 0) {
+                return 0;
+            }
+            final long old = table[i] & 0xFFFFFFFFL;
+            if ((expected != null) && !expected.equals(slabs.read(handle(old)))) {
+                return 0;
+            }
+            delete(i);
+            return old;
+        }
+
+        /**
+         * Removes the slot holding exactly this reference, as an eviction does.
+         */
+        boolean removeChunk(int hash, long ref) {
+            final long wanted = slot(hash, ref);
+            final long stamp = lock.writeLock();
+            try {
+                final int mask = table.length - 1;
+                for (int i = hash & mask; ; i = (i + 1) & mask) {
+                    final long slot = table[i];
+                    if (slot == 0) {
+                        return false;
+                    }
+                    if (slot == wanted) {
+                        delete(i);
+                        return true;
+                    }
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Empties a slot and shifts the following slots of the cluster back if that brings them closer to their
+         * home slot, so that no probe sequence is broken.
+         */
+        private void delete(int i) {
+            final int mask = table.length - 1;
+            int hole = i;
+            for (int j = (i + 1) & mask; ; j = (j + 1) & mask) {
+                final long slot = table[j];
+                if (slot == 0) {
+                    break;
+                }
+                final int home = (int) (slot >>> 32) & mask;
+                // move the slot unless its home lies cyclically in (hole, j]
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    table[hole] = slot;
+                    hole = j;
+                }
+            }
+            table[hole] = 0;
+            count--;
+        }
+
+        private void resize() {
+            final long[] grown = new long[table.length * 2];
+            for (long slot : table) {
+                if (slot != 0) {
+                    insert(grown, slot);
+                }
+            }
+            table = grown;
+        }
+
+        /**
+         * Takes a copy of the occupied slots, for iteration.
+         */
+        long[] snapshot() {
+            final long stamp = lock.readLock();
+            try {
+                final long[] slots = new long[count];
+                int n = 0;
+                for (long slot : table) {
+                    if (slot != 0) {
+                        slots[n++] = slot;
+                    }
+                }
+                return slots;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    private static final long[] NONE = new long[0];
+
+    private static long slot(int hash, long ref) {
+        return ((long) hash << 32) | ref;
+    }
+
+    private static void insert(long[] table, long slot) {
+        final int mask = table.length - 1;
+        int i = (int) (slot >>> 32) & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot;
+    }
+
+    /**
+     * Walks the segments one snapshot at a time, reading each element from its slab as it is reached. Entries
+     * removed after their segment was copied are skipped, entries added to it are missed.
+     */
+    private abstract class SlotIterator<T> implements Iterator<T> {
+        private int segment;
+        private long[] slots = NONE;
+        private int position;
+        private LocalCacheElement next;
+        private LocalCacheElement current;
+
+        public boolean hasNext() {
+            while (next == null) {
+                if (position == slots.length) {
+                    if (segment == segments.length) {
+                        return false;
+                    }
+                    slots = segments[segment++].snapshot();
+                    position = 0;
+                    continue;
+                }
+                final long slot = slots[position++];
+                final LocalCacheElement element = slabs.read(handle(slot & 0xFFFFFFFFL));
+                if ((element != null) && (element.getKey().hashCode() == (int) (slot >>> 32))) {
+                    next = element;
+                }
+            }
+            return true;
+        }
+
+        LocalCacheElement nextElement() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = null;
+            return current;
+        }
+
+        public void remove() {
+            if (current == null) {
+                throw new IllegalStateException();
+            }
+            CompactCacheStorage.this.remove(current.getKey(), current);
+            current = null;
+        }
+    }
+
+    private final class KeySet extends AbstractSet<Key> {
+        @Override
+        public int size() {
+            return CompactCacheStorage.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return CompactCacheStorage.this.remove(o) != null;
+        }
+
+        @Override
+        public Iterator<Key> iterator() {
+            return new SlotIterator<Key>() {
+                public Key next() {
+                    return nextElement().getKey();
+                }
+            };
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<Key, LocalCacheElement>> {
+        @Override
+        public int size() {
+            return CompactCacheStorage.this.size();
+        }
+
+        @Override
+        public Iterator<Entry<Key, LocalCacheElement>> iterator() {
+            return new SlotIterator<Entry<Key, LocalCacheElement>>() {
+                public Entry<Key, LocalCacheElement> next() {
+                    final LocalCacheElement element = nextElement();
+                    return new SimpleImmutableEntry<Key, LocalCacheElement>(element.getKey(), element);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.alipay.zixiao.cache.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 把slab的页放在内存映射文件里，正常关闭以后重启可以直接接着用
+ * <p/>
+ * The pages live in data files of up to 64 MB each ({@code slabs-0000.data}, ...), mapped when their first page is
+ * handed out. A small mapped metadata file ({@code slabs.meta}) records the layout the pages were carved with, the
+ * class of each page and whether the store was closed cleanly. Elements are kept in the {@link ChunkLayout#COMPACT}
+ * layout, which the version in the metadata refers to.
+ * <p/>
+ * Like memcached's warm restart, pages are only reused after a clean close, when every page has been forced to
+ * disk; after a crash, a format change or a change of the page layout the files are discarded and the cache starts
+ * empty.
+ */
+final class MappedPageStore implements SlabAllocator.PageStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedPageStore.class);
+
+    static final String META_FILE = "slabs.meta";
+    static final long   SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int MAGIC   = 0x4d43534c;     // "MCSL"
+    private static final int VERSION = 2;
+
+    private static final int MAGIC_OFFSET      = 0;
+    private static final int VERSION_OFFSET    = 4;
+    private static final int CLEAN_OFFSET      = 8;
+    private static final int PAGE_SIZE_OFFSET  = 12;
+    private static final int MIN_CHUNK_OFFSET  = 16;
+    private static final int GROWTH_OFFSET     = 20;
+    private static final int MAX_PAGES_OFFSET  = 28;
+    private static final int PAGE_COUNT_OFFSET = 32;
+    private static final int HEADER_SIZE       = 40;
+
+    private final File   directory;
+    private final int    pageSize;
+    private final int    maxPages;
+    private final int    minChunkSize;
+    private final double growthFactor;
+    private final int    pagesPerSegment;
+
+    // guarded by this
+    private MappedByteBuffer         meta;
+    private final MappedByteBuffer[] segments;
+
+    MappedPageStore(File directory, int pageSize, int maxPages, int minChunkSize, double growthFactor) {
+        this.directory = directory;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+        this.minChunkSize = minChunkSize;
+        this.growthFactor = growthFactor;
+        this.pagesPerSegment = (int) Math.max(1, SEGMENT_SIZE / pageSize);
+        this.segments = new MappedByteBuffer[(maxPages + pagesPerSegment - 1) / pagesPerSegment];
+    }
+
+    /**
+     * Maps the files, keeping the pages of the last run if it was closed cleanly with the same layout.
+     *
+     * @return the pages kept, in page order; see {@link #slabClass} for their classes
+     */
+    synchronized ByteBuffer[] open() throws IOException {
+        if (meta != null) {
+            throw new IllegalStateException("already open");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        final File metaFile = new File(directory, META_FILE);
+        int kept = 0;
+        if (metaFile.exists()) {
+            final String unusable = check(metaFile);
+            if (unusable == null) {
+                kept = readHeader(metaFile).getInt(PAGE_COUNT_OFFSET);
+            } else {
+                log.warn("Discarding the slabs in " + directory + ": " + unusable);
+                deleteFiles();
+            }
+        }
+
+        meta = map(metaFile, HEADER_SIZE + 4L * maxPages);
+        if (kept == 0) {
+            meta.putInt(MAGIC_OFFSET, MAGIC);
+            meta.putInt(VERSION_OFFSET, VERSION);
+            meta.putInt(PAGE_SIZE_OFFSET, pageSize);
+            meta.putInt(MIN_CHUNK_OFFSET, minChunkSize);
+            meta.putDouble(GROWTH_OFFSET, growthFactor);
+            meta.putInt(MAX_PAGES_OFFSET, maxPages);
+            meta.putInt(PAGE_COUNT_OFFSET, 0);
+            for (int page = 0; page < maxPages; page++) {
+                meta.putInt(HEADER_SIZE + 4 * page, -1);
+            }
+        }
+        // 运行期间崩溃的话，下次启动时不信任这些页
+        meta.putInt(CLEAN_OFFSET, 0);
+        meta.force();
+
+        final ByteBuffer[] pages = new ByteBuffer[kept];
+        for (int page = 0; page < kept; page++) {
+            pages[page] = page(page);
+        }
+        return pages;
+    }
+
+    /**
+     * @return why the files cannot be reused, or null if they can
+     */
+    private String check(File metaFile) throws IOException {
+        if (metaFile.length() < HEADER_SIZE + 4L * maxPages) {
+            return "the metadata is truncated or was written for fewer pages";
+        }
+        final ByteBuffer header = readHeader(metaFile);
+        if ((header.getInt(MAGIC_OFFSET) != MAGIC) || (header.getInt(VERSION_OFFSET) != VERSION)) {
+            return "unknown format";
+        }
+        if (header.getInt(CLEAN_OFFSET) != 1) {
+            return "the last run did not close the storage";
+        }
+        if ((header.getInt(PAGE_SIZE_OFFSET) != pageSize) || (header.getInt(MIN_CHUNK_OFFSET) != minChunkSize)
+                || (header.getDouble(GROWTH_OFFSET) != growthFactor) || (header.getInt(MAX_PAGES_OFFSET) != maxPages)) {
+            return "the slab layout has changed";
+        }
+        final int pageCount = header.getInt(PAGE_COUNT_OFFSET);
+        if ((pageCount < 0) || (pageCount > maxPages)) {
+            return "corrupt page count " + pageCount;
+        }
+        for (int segment = 0; segment * pagesPerSegment < pageCount; segment++) {
+            if (segmentFile(segment).length() < segmentSize(segment)) {
+                return segmentFile(segment) + " is missing or truncated";
+            }
+        }
+        return null;
+    }
+
+    private static ByteBuffer readHeader(File metaFile) throws IOException {
+        final FileChannel channel = FileChannel.open(metaFile.toPath(), StandardOpenOption.READ);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && (channel.read(header) >= 0)) {
+                // keep reading
+            }
+            return header;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void deleteFiles() throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if ((name.equals(META_FILE) || (name.startsWith("slabs-") && name.endsWith(".data"))) && !file.delete()) {
+                throw new IOException("cannot delete " + file);
+            }
+        }
+    }
+
+    /**
+     * @return the class the page was assigned to
+     */
+    synchronized int slabClass(int page) {
+        return meta.getInt(HEADER_SIZE + 4 * page);
+    }
+
+    public synchronized ByteBuffer allocate(int page) {
+        if (meta == null) {
+            throw new IllegalStateException("the storage in " + directory + " has not been opened");
+        }
+        try {
+            final ByteBuffer memory = page(page);
+            if (meta.getInt(PAGE_COUNT_OFFSET) <= page) {
+                meta.putInt(PAGE_COUNT_OFFSET, page + 1);
+            }
+            return memory;
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot map page " + page + " in " + directory, e);
+        }
+    }
+
+    public synchronized void assigned(int page, int slabClass) {
+        meta.putInt(HEADER_SIZE + 4 * page, slabClass);
+    }
+
+    private ByteBuffer page(int page) throws IOException {
+        final int segment = page / pagesPerSegment;
+        if (segments[segment] == null) {
+            segments[segment] = map(segmentFile(segment), segmentSize(segment));
+        }
+        final ByteBuffer memory = segments[segment].duplicate();
+        final int offset = (page % pagesPerSegment) * pageSize;
+        memory.position(offset);
+        memory.limit(offset + pageSize);
+        return memory.slice();
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format("slabs-%04d.data", segment));
+    }
+
+    private long segmentSize(int segment) {
+        return (long) Math.min(pagesPerSegment, maxPages - segment * pagesPerSegment) * pageSize;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Forces the pages to disk and marks the store as cleanly closed. The pages must not be written anymore.
+     */
+    synchronized void close() {
+        if (meta == null) {
+            return;
+        }
+        for (MappedByteBuffer segment : segments) {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+        meta.putInt(CLEAN_OFFSET, 1);
+        meta.force();
+        meta = null;
+    }
+}
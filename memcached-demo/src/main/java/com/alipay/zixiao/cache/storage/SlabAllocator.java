@@ -0,0 +1,634 @@
+package com.alipay.zixiao.cache.storage;
+
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A memcached-style slab allocator over direct memory.
+ * <p/>
+ * Memory is carved into fixed-size pages, and each page is assigned to a slab class on demand and
+ * split into equally sized chunks. Slab class chunk sizes grow geometrically, so an element is stored
+ * in the smallest chunk that fits its serialized form. Each class keeps its own free list; when a
+ * class is out of chunks and no pages are left, a CLOCK sweep over the class evicts an element that
+ * has not been read since the hand last passed, or failing that a page is taken from the largest
+ * class.
+ * <p/>
+ * A chunk is addressed by a handle holding its page index in the upper 32 bits and its byte offset
+ * in the page in the lower 32 bits. Chunks start with a two byte header (state and referenced bit)
+ * followed by the element in the allocator's {@link ChunkLayout}.
+ * <p/>
+ * Writes to a chunk take the write lock of its page; reads are optimistic and fall back to the read
+ * lock, so a reader never observes a torn element. A reader may still observe a chunk that has been
+ * reused for another key, which callers detect by comparing keys.
+ */
+final class SlabAllocator {
+
+    /**
+     * Called while a slab class is locked to drop an element from the index so its chunk can be reused.
+     */
+    interface Evictor {
+        /**
+         * @param key    the key stored in the chunk
+         * @param handle the chunk
+         * @return whether the index still mapped the key to the chunk and it has been removed
+         */
+        boolean evict(Key key, long handle);
+    }
+
+    /**
+     * Supplies the memory of the pages, and is told which class each page is assigned to.
+     */
+    interface PageStore {
+        /**
+         * @return the memory for a new page, of the page size
+         */
+        ByteBuffer allocate(int page);
+
+        /**
+         * Called with the page locked whenever a page is assigned to a class, when it is new or moved.
+         */
+        void assigned(int page, int slabClass);
+    }
+
+    /**
+     * Pages in direct memory, which are lost with the process.
+     */
+    static PageStore directPages(final int pageSize) {
+        return new PageStore() {
+            public ByteBuffer allocate(int page) {
+                return ByteBuffer.allocateDirect(pageSize);
+            }
+
+            public void assigned(int page, int slabClass) {
+            }
+        };
+    }
+
+    static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+    static final int DEFAULT_MIN_CHUNK_SIZE = 64;
+    static final double DEFAULT_GROWTH_FACTOR = 1.25;
+
+    static final int HEADER_SIZE = 2;
+
+    /** The chunk is on its class's free list. */
+    private static final byte FREE = 0;
+    /** The chunk has been handed out but holds no element yet. */
+    private static final byte ALLOCATED = 1;
+    /** The chunk holds an element. */
+    private static final byte USED = 2;
+
+    private final int pageSize;
+    private final int maxPages;
+    private final PageStore store;
+    private final ChunkLayout layout;
+    private final SlabClass[] classes;
+
+    private final ByteBuffer[] pages;
+    private final StampedLock[] pageLocks;
+    private final int[] pageClass;
+    private final AtomicInteger pagesAllocated = new AtomicInteger();
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    SlabAllocator(long memoryCapacity) {
+        this(memoryCapacity, DEFAULT_PAGE_SIZE, DEFAULT_MIN_CHUNK_SIZE, DEFAULT_GROWTH_FACTOR, ChunkLayout.FULL);
+    }
+
+    SlabAllocator(long memoryCapacity, int pageSize, int minChunkSize, double growthFactor, ChunkLayout layout) {
+        this(memoryCapacity, pageSize, minChunkSize, growthFactor, layout, directPages(pageSize));
+    }
+
+    SlabAllocator(long memoryCapacity, int pageSize, int minChunkSize, double growthFactor, ChunkLayout layout,
+                  PageStore store) {
+        if ((pageSize <= HEADER_SIZE) || (minChunkSize <= HEADER_SIZE) || (growthFactor <= 1.0)) {
+            throw new IllegalArgumentException();
+        }
+        this.pageSize = pageSize;
+        this.maxPages = pagesFor(memoryCapacity, pageSize);
+        this.store = store;
+        this.layout = layout;
+        this.pages = new ByteBuffer[maxPages];
+        this.pageLocks = new StampedLock[maxPages];
+        this.pageClass = new int[maxPages];
+        for (int i = 0; i < maxPages; i++) {
+            pageLocks[i] = new StampedLock();
+        }
+
+        List<SlabClass> sizes = new ArrayList<SlabClass>();
+        int size = Math.min(align(minChunkSize), pageSize);
+        while (size < pageSize / 2) {
+            sizes.add(new SlabClass(sizes.size(), size, pageSize / size));
+            size = Math.max(size + 8, align((int) (size * growthFactor)));
+        }
+        sizes.add(new SlabClass(sizes.size(), pageSize, 1));
+        this.classes = sizes.toArray(new SlabClass[sizes.size()]);
+    }
+
+    /**
+     * @return the number of pages the memory capacity allows
+     */
+    static int pagesFor(long memoryCapacity, int pageSize) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryCapacity / pageSize));
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    /**
+     * @return the total memory the allocator may use, in bytes
+     */
+    long capacity() {
+        return (long) maxPages * pageSize;
+    }
+
+    /**
+     * @return the bytes held by allocated chunks
+     */
+    long used() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return the size of the smallest chunk handed out
+     */
+    int minChunkSize() {
+        return classes[0].chunkSize;
+    }
+
+    /**
+     * @return the serialized size of the element in this allocator's layout
+     */
+    int sizeOf(LocalCacheElement element) {
+        return layout.size(element);
+    }
+
+    /**
+     * @return the size of the chunk that would hold an element of the given serialized size
+     */
+    int chunkSizeFor(int size) {
+        return classFor(size).chunkSize;
+    }
+
+    private SlabClass classFor(int size) {
+        final int needed = size + HEADER_SIZE;
+        for (SlabClass c : classes) {
+            if (c.chunkSize >= needed) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("element of " + size + " bytes exceeds the slab page size of " + pageSize);
+    }
+
+    /**
+     * Allocates a chunk able to hold an element of the given serialized size, evicting if necessary.
+     *
+     * @param size    the serialized size of the element
+     * @param evictor the callback used to drop evicted elements from the index
+     * @return the chunk handle
+     * @throws IllegalStateException if no chunk can be freed for the element
+     */
+    long allocate(int size, Evictor evictor) {
+        final SlabClass c = classFor(size);
+        c.lock.lock();
+        try {
+            if ((c.freeCount == 0) && !newPage(c)) {
+                final long evicted = clockEvict(c, evictor);
+                if (evicted >= 0) {
+                    setState(evicted, ALLOCATED);
+                    return evicted;
+                }
+                if (!stealPage(c, evictor)) {
+                    throw new IllegalStateException("out of memory storing " + size + " bytes");
+                }
+            }
+            final long handle = c.free[--c.freeCount];
+            usedBytes.addAndGet(c.chunkSize);
+            setState(handle, ALLOCATED);
+            return handle;
+        } finally {
+            c.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a chunk to its class's free list.
+     */
+    void free(long handle) {
+        final int page = page(handle);
+        for (; ;) {
+            final SlabClass c = classes[pageClass[page]];
+            c.lock.lock();
+            try {
+                if (pageClass[page] != c.id) {
+                    continue;        // the page moved to another class while we waited
+                }
+                setState(handle, FREE);
+                c.push(handle);
+                usedBytes.addAndGet(-c.chunkSize);
+                return;
+            } finally {
+                c.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Serializes an element into an allocated chunk and marks it as used.
+     */
+    void write(long handle, LocalCacheElement element) {
+        final int page = page(handle);
+        final StampedLock lock = pageLocks[page];
+        final long stamp = lock.writeLock();
+        try {
+            final ChannelBuffer out = chunk(handle);
+            out.clear();
+            out.writeByte(USED);
+            out.writeByte(0);
+            layout.write(element, out);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Reads the element held in a chunk and marks it as recently used.
+     *
+     * @return the element, or null if the chunk does not currently hold one
+     */
+    LocalCacheElement read(long handle) {
+        final byte[] bytes = readBytes(handle);
+        if (bytes == null) {
+            return null;
+        }
+        pages[page(handle)].put(offset(handle) + 1, (byte) 1);
+        try {
+            return layout.read(ChannelBuffers.wrappedBuffer(bytes));
+        } catch (RuntimeException stale) {
+            return null;     // the handle outlived a page moving to another class
+        }
+    }
+
+    /**
+     * Reads the key of the element held in a chunk.
+     *
+     * @return the key, or null if the chunk does not currently hold an element
+     */
+    Key readKey(long handle) {
+        final byte[] bytes = readBytes(handle);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            final ByteBuffer in = ByteBuffer.wrap(bytes);
+            return new Key(ChannelBuffers.wrappedBuffer(bytes), layout.keyIndex(in, 0), layout.keyLength(in, 0));
+        } catch (RuntimeException stale) {
+            return null;
+        }
+    }
+
+    /**
+     * Compares the key of the element held in a chunk with the given one in place, without copying anything.
+     *
+     * @return whether the chunk currently holds an element with this key
+     */
+    boolean keyEquals(long handle, Key key) {
+        final StampedLock lock = pageLocks[page(handle)];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                final boolean equal = matches(handle, key);
+                if (lock.validate(stamp)) {
+                    return equal;
+                }
+            } catch (RuntimeException torn) {
+                // a concurrent write left an inconsistent length; retry under the lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return matches(handle, key);
+        } catch (RuntimeException stale) {
+            return false;    // the handle outlived a page moving to another class
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private boolean matches(long handle, Key key) {
+        final ByteBuffer page = pages[page(handle)];
+        final int offset = offset(handle);
+        if (page.get(offset) != USED) {
+            return false;
+        }
+        final int element = offset + HEADER_SIZE;
+        return key.matches(page, layout.keyIndex(page, element), layout.keyLength(page, element));
+    }
+
+    private byte[] readBytes(long handle) {
+        final StampedLock lock = pageLocks[page(handle)];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                final byte[] bytes = copy(handle);
+                if (lock.validate(stamp)) {
+                    return bytes;
+                }
+            } catch (RuntimeException torn) {
+                // a concurrent write left inconsistent lengths; retry under the lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return copy(handle);
+        } catch (RuntimeException stale) {
+            return null;     // the handle outlived a page moving to another class
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private byte[] copy(long handle) {
+        final ByteBuffer page = pages[page(handle)].duplicate();
+        final int offset = offset(handle);
+        if (page.get(offset) != USED) {
+            return null;
+        }
+        final int length = layout.length(page, offset + HEADER_SIZE);
+        if ((length < 0) || (length > classes[pageClass[page(handle)]].chunkSize - HEADER_SIZE)) {
+            throw new IllegalStateException("corrupt chunk length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        page.position(offset + HEADER_SIZE);
+        page.get(bytes);
+        return bytes;
+    }
+
+    private ChannelBuffer chunk(long handle) {
+        final ByteBuffer page = pages[page(handle)].duplicate();
+        page.position(offset(handle));
+        page.limit(offset(handle) + classes[pageClass[page(handle)]].chunkSize);
+        return ChannelBuffers.wrappedBuffer(page.slice());
+    }
+
+    private void setState(long handle, byte state) {
+        pages[page(handle)].put(offset(handle), state);
+    }
+
+    private byte state(long handle) {
+        return pages[page(handle)].get(offset(handle));
+    }
+
+    /**
+     * Assigns a fresh page to the class, if the memory limit allows. Called with the class locked.
+     */
+    private boolean newPage(SlabClass c) {
+        for (; ;) {
+            final int page = pagesAllocated.get();
+            if (page >= maxPages) {
+                return false;
+            }
+            if (pagesAllocated.compareAndSet(page, page + 1)) {
+                pages[page] = store.allocate(page);
+                assign(page, c);
+                return true;
+            }
+        }
+    }
+
+    private void assign(int page, SlabClass c) {
+        final long stamp = pageLocks[page].writeLock();
+        try {
+            pageClass[page] = c.id;
+            store.assigned(page, c.id);
+            c.addPage(page);
+            for (int i = c.chunksPerPage - 1; i >= 0; i--) {
+                final long handle = handle(page, i * c.chunkSize);
+                setState(handle, FREE);
+                c.push(handle);
+            }
+        } finally {
+            pageLocks[page].unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sweeps the class's chunks, clearing referenced bits, until an unreferenced element is found
+     * and evicted. Called with the class locked.
+     *
+     * @return the evicted chunk, or -1 if two full sweeps found nothing to evict
+     */
+    private long clockEvict(SlabClass c, Evictor evictor) {
+        final long chunks = (long) c.pageCount * c.chunksPerPage;
+        for (long i = 0; i < 2 * chunks; i++) {
+            final long position = c.clockHand++ % chunks;
+            final int page = c.pages[(int) (position / c.chunksPerPage)];
+            final long handle = handle(page, (int) (position % c.chunksPerPage) * c.chunkSize);
+            if (state(handle) != USED) {
+                continue;
+            }
+            if (pages[page].get(offset(handle) + 1) != 0) {
+                pages[page].put(offset(handle) + 1, (byte) 0);
+                continue;
+            }
+            final Key key = readKey(handle);
+            if ((key != null) && evictor.evict(key, handle)) {
+                return handle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves a page from the class holding the most pages to the given class, evicting its elements.
+     * Gives up if the page holds a chunk that is in the middle of being written or replaced. Called
+     * with the class locked.
+     */
+    private boolean stealPage(SlabClass c, Evictor evictor) {
+        SlabClass victim = null;
+        for (SlabClass candidate : classes) {
+            if ((candidate != c) && (candidate.pageCount > ((c.pageCount == 0) ? 0 : 1))
+                    && ((victim == null) || (candidate.pageCount > victim.pageCount))) {
+                victim = candidate;
+            }
+        }
+        if ((victim == null) || !victim.lock.tryLock()) {
+            return false;
+        }
+        try {
+            final int page = victim.pages[victim.pageCount - 1];
+            boolean evicted = true;
+            for (int i = 0; i < victim.chunksPerPage; i++) {
+                final long handle = handle(page, i * victim.chunkSize);
+                final byte state = state(handle);
+                if (state == USED) {
+                    final Key key = readKey(handle);
+                    if ((key != null) && evictor.evict(key, handle)) {
+                        setState(handle, FREE);
+                        victim.push(handle);
+                        usedBytes.addAndGet(-victim.chunkSize);
+                        continue;
+                    }
+                }
+                evicted &= (state(handle) == FREE);
+            }
+            if (!evicted) {
+                return false;
+            }
+            victim.removePage(page);
+            assign(page, c);
+            return true;
+        } finally {
+            victim.lock.unlock();
+        }
+    }
+
+    /**
+     * Takes over pages kept from an earlier run, before anything is allocated. Chunks holding an element stay in
+     * use, all others go back to the free lists; the caller indexes the elements with {@link #usedChunks} and frees
+     * those it does not want.
+     *
+     * @param restored    the memory of the pages, in page order
+     * @param slabClasses the class each page was assigned to
+     * @throws IllegalArgumentException if a page does not fit the current classes
+     */
+    void restore(ByteBuffer[] restored, int[] slabClasses) {
+        if (restored.length > maxPages) {
+            throw new IllegalArgumentException("restoring " + restored.length + " pages, but the limit is " + maxPages);
+        }
+        if (!pagesAllocated.compareAndSet(0, restored.length)) {
+            throw new IllegalStateException("pages are already allocated");
+        }
+        for (int page = 0; page < restored.length; page++) {
+            if ((slabClasses[page] < 0) || (slabClasses[page] >= classes.length)) {
+                throw new IllegalArgumentException("page " + page + " has unknown slab class " + slabClasses[page]);
+            }
+            final SlabClass c = classes[slabClasses[page]];
+            c.lock.lock();
+            try {
+                pages[page] = restored[page];
+                pageClass[page] = c.id;
+                c.addPage(page);
+                for (int i = c.chunksPerPage - 1; i >= 0; i--) {
+                    final long handle = handle(page, i * c.chunkSize);
+                    if (state(handle) == USED) {
+                        usedBytes.addAndGet(c.chunkSize);
+                    } else {
+                        setState(handle, FREE);
+                        c.push(handle);
+                    }
+                }
+            } finally {
+                c.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the number of pages handed out so far
+     */
+    int pageCount() {
+        return pagesAllocated.get();
+    }
+
+    /**
+     * @return the chunks of the page which hold an element
+     */
+    long[] usedChunks(int page) {
+        final long stamp = pageLocks[page].readLock();
+        try {
+            final SlabClass c = classes[pageClass[page]];
+            final long[] used = new long[c.chunksPerPage];
+            int n = 0;
+            for (int i = 0; i < c.chunksPerPage; i++) {
+                final long handle = handle(page, i * c.chunkSize);
+                if (state(handle) == USED) {
+                    used[n++] = handle;
+                }
+            }
+            final long[] result = new long[n];
+            System.arraycopy(used, 0, result, 0, n);
+            return result;
+        } finally {
+            pageLocks[page].unlockRead(stamp);
+        }
+    }
+
+    static long handle(int page, int offset) {
+        return ((long) page << 32) | offset;
+    }
+
+    static int page(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    static int offset(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * A size class of chunks. All fields are guarded by the class lock.
+     */
+    private static final class SlabClass {
+        final int id;
+        final int chunkSize;
+        final int chunksPerPage;
+        final ReentrantLock lock = new ReentrantLock();
+
+        long[] free = new long[16];
+        int freeCount;
+        int[] pages = new int[4];
+        int pageCount;
+        long clockHand;
+
+        SlabClass(int id, int chunkSize, int chunksPerPage) {
+            this.id = id;
+            this.chunkSize = chunkSize;
+            this.chunksPerPage = chunksPerPage;
+        }
+
+        void push(long handle) {
+            if (freeCount == free.length) {
+                long[] grown = new long[free.length * 2];
+                System.arraycopy(free, 0, grown, 0, freeCount);
+                free = grown;
+            }
+            free[freeCount++] = handle;
+        }
+
+        void addPage(int page) {
+            if (pageCount == pages.length) {
+                int[] grown = new int[pages.length * 2];
+                System.arraycopy(pages, 0, grown, 0, pageCount);
+                pages = grown;
+            }
+            pages[pageCount++] = page;
+        }
+
+        void removePage(int page) {
+            int kept = 0;
+            for (int i = 0; i < freeCount; i++) {
+                if (SlabAllocator.page(free[i]) != page) {
+                    free[kept++] = free[i];
+                }
+            }
+            freeCount = kept;
+            for (int i = 0; i < pageCount; i++) {
+                if (pages[i] == page) {
+                    pages[i] = pages[--pageCount];
+                    break;
+                }
+            }
+            clockHand = 0;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.alipay.zixiao.cache.storage;
+
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache storage that keeps elements off the Java heap, in memcached-style slabs of direct memory
+ * (see {@link SlabAllocator}). Only the index from key to chunk handle lives on the heap, so the
+ * collector never scans or copies the cached values.
+ * <p/>
+ * Elements are serialized on the way in and copied back onto the heap on every read, so an element
+ * returned by this storage is a private copy; mutating it has no effect on the stored value, and
+ * conditional operations compare elements by value rather than identity.
+ */
+public final class SlabCacheStorage extends AbstractMap<Key, LocalCacheElement> implements CacheStorage<Key, LocalCacheElement> {
+
+    private final SlabAllocator slabs;
+    private final ConcurrentHashMap<Key, Long> index;
+
+    private volatile ConcurrentLinkedHashMap.EvictionListener<Key, LocalCacheElement> listener;
+
+    private final SlabAllocator.Evictor evictor = new SlabAllocator.Evictor() {
+        public boolean evict(Key key, long handle) {
+            final ConcurrentLinkedHashMap.EvictionListener<Key, LocalCacheElement> listener = SlabCacheStorage.this.listener;
+            // the chunk is only reused once we return, so the element can still be read for the listener
+            final LocalCacheElement element = (listener == null) ? null : slabs.read(handle);
+            if (!index.remove(key, handle)) {
+                return false;
+            }
+            if (element != null) {
+                listener.onEviction(key, element);
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Creates a storage with the default 1 MB pages and 1.25 chunk growth factor.
+     *
+     * @param maximumMemoryCapacity the direct memory the slabs may use, in bytes
+     */
+    public SlabCacheStorage(long maximumMemoryCapacity) {
+        this(maximumMemoryCapacity, SlabAllocator.DEFAULT_PAGE_SIZE, SlabAllocator.DEFAULT_MIN_CHUNK_SIZE,
+                SlabAllocator.DEFAULT_GROWTH_FACTOR);
+    }
+
+    /**
+     * @param maximumMemoryCapacity the direct memory the slabs may use, in bytes
+     * @param pageSize              the size of a slab page, which bounds the size of a single element
+     * @param minChunkSize          the chunk size of the smallest slab class
+     * @param growthFactor          the ratio between the chunk sizes of consecutive slab classes
+     */
+    public SlabCacheStorage(long maximumMemoryCapacity, int pageSize, int minChunkSize, double growthFactor) {
+        this.slabs = new SlabAllocator(maximumMemoryCapacity, pageSize, minChunkSize, growthFactor, ChunkLayout.FULL);
+        this.index = new ConcurrentHashMap<Key, Long>();
+    }
+
+    public long getMemoryCapacity() {
+        return slabs.capacity();
+    }
+
+    public long getMemoryUsed() {
+        return slabs.used();
+    }
+
+    public int capacity() {
+        return (int) Math.min(Integer.MAX_VALUE, slabs.capacity() / slabs.minChunkSize());
+    }
+
+    public long open() {
+        return 0;
+    }
+
+    public void close() {
+        clear();
+    }
+
+    public boolean copiesValues() {
+        return true;
+    }
+
+    public void setEvictionListener(ConcurrentLinkedHashMap.EvictionListener<Key, LocalCacheElement> listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public LocalCacheElement get(Object key) {
+        for (; ;) {
+            final Long handle = index.get(key);
+            if (handle == null) {
+                return null;
+            }
+            final LocalCacheElement element = read(key, handle);
+            if (element != null) {
+                return element;
+            }
+            if (index.get(key) == handle) {
+                return null;     // removed while we were reading it
+            }
+        }
+    }
+
+    /**
+     * Reads the element at the handle, if it still holds the given key.
+     */
+    private LocalCacheElement read(Object key, long handle) {
+        final LocalCacheElement element = slabs.read(handle);
+        return ((element != null) && element.getKey().equals(key)) ? element : null;
+    }
+
+    /**
+     * Allocates a chunk and writes the element to it, ready to be published in the index.
+     */
+    private Long store(LocalCacheElement element) {
+        final long handle = slabs.allocate(slabs.sizeOf(element), evictor);
+        slabs.write(handle, element);
+        return handle;
+    }
+
+    @Override
+    public LocalCacheElement put(Key key, LocalCacheElement value) {
+        if (value == null) {
+            throw new IllegalArgumentException();
+        }
+        final Long handle = store(value);
+        final Long old = index.put(key, handle);
+        if (old == null) {
+            return null;
+        }
+        final LocalCacheElement previous = read(key, old);
+        slabs.free(old);
+        return previous;
+    }
+
+    public LocalCacheElement putIfAbsent(Key key, LocalCacheElement value) {
+        if (value == null) {
+            throw new IllegalArgumentException();
+        }
+        final LocalCacheElement existing = get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final Long handle = store(value);
+        for (; ;) {
+            final Long old = index.putIfAbsent(key, handle);
+            if (old == null) {
+                return null;
+            }
+            final LocalCacheElement current = read(key, old);
+            if (current != null) {
+                slabs.free(handle);
+                return current;
+            }
+            index.remove(key, old);  // lost a race with an eviction; try again
+        }
+    }
+
+    @Override
+    public LocalCacheElement remove(Object key) {
+        final Long handle = index.remove(key);
+        if (handle == null) {
+            return null;
+        }
+        final LocalCacheElement previous = read(key, handle);
+        slabs.free(handle);
+        return previous;
+    }
+
+    public boolean remove(Object key, Object value) {
+        final Long handle = index.get(key);
+        if ((handle == null) || (value == null) || !value.equals(read(key, handle))) {
+            return false;
+        }
+        if (index.remove(key, handle)) {
+            slabs.free(handle);
+            return true;
+        }
+        return false;
+    }
+
+    public LocalCacheElement replace(Key key, LocalCacheElement value) {
+        if (value == null) {
+            throw new IllegalArgumentException();
+        }
+        for (; ;) {
+            final Long old = index.get(key);
+            if (old == null) {
+                return null;
+            }
+            final LocalCacheElement previous = read(key, old);
+            final Long handle = store(value);
+            if (index.replace(key, old, handle)) {
+                slabs.free(old);
+                return previous;
+            }
+            slabs.free(handle);
+        }
+    }
+
+    public boolean replace(Key key, LocalCacheElement oldValue, LocalCacheElement newValue) {
+        if (newValue == null) {
+            throw new IllegalArgumentException();
+        }
+        final Long old = index.get(key);
+        if ((old == null) || !oldValue.equals(read(key, old))) {
+            return false;
+        }
+        final Long handle = store(newValue);
+        if (index.replace(key, old, handle)) {
+            slabs.free(old);
+            return true;
+        }
+        slabs.free(handle);
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        for (Key key : index.keySet()) {
+            remove(key);
+        }
+    }
+
+    @Override
+    public Set<Key> keySet() {
+        return index.keySet();
+    }
+
+    @Override
+    public Set<Entry<Key, LocalCacheElement>> entrySet() {
+        return new EntrySet();
+    }
+
+    /**
+     * A weakly consistent view of the entries, reading each element from its slab as it is reached.
+     */
+    private final class EntrySet extends AbstractSet<Entry<Key, LocalCacheElement>> {
+        @Override
+        public int size() {
+            return SlabCacheStorage.this.size();
+        }
+
+        @Override
+        public Iterator<Entry<Key, LocalCacheElement>> iterator() {
+            final Iterator<Map.Entry<Key, Long>> handles = index.entrySet().iterator();
+            return new Iterator<Entry<Key, LocalCacheElement>>() {
+                private Entry<Key, LocalCacheElement> next;
+                private Entry<Key, LocalCacheElement> current;
+
+                public boolean hasNext() {
+                    while ((next == null) && handles.hasNext()) {
+                        Map.Entry<Key, Long> entry = handles.next();
+                        LocalCacheElement element = read(entry.getKey(), entry.getValue());
+                        if (element != null) {
+                            next = new SimpleImmutableEntry<Key, LocalCacheElement>(entry.getKey(), element);
+                        }
+                    }
+                    return next != null;
+                }
+
+                public Entry<Key, LocalCacheElement> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    current = next;
+                    next = null;
+                    return current;
+                }
+
+                public void remove() {
+                    if (current == null) {
+                        throw new IllegalStateException();
+                    }
+                    SlabCacheStorage.this.remove(current.getKey(), current.getValue());
+                    current = null;
+                }
+            };
+        }
+    }
+}
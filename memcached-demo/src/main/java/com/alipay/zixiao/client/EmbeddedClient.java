@@ -0,0 +1,213 @@
+package com.alipay.zixiao.client;
+
+import com.alipay.zixiao.cache.Cache;
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.util.Clock;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 进程内直接访问缓存的客户端，和服务端部署在同一个JVM里的调用方不用经过序列化、协议和TCP
+ * <p/>
+ * Every call goes straight to the {@link Cache} the server serves, so embedded and remote clients see the same
+ * items and the same counters. Values are copied into the cache on store and copied out on read, since the memory
+ * of a stored value goes back to the cache's buffer pool once the item is replaced; the copy is the only cost a
+ * read adds to the cache lookup. Expiry times follow the protocol: 0 for never, up to 30 days a number of seconds
+ * from now, otherwise a unix time in seconds.
+ */
+public final class EmbeddedClient {
+
+    /**
+     * 和memcached一样，key最长250字节
+     */
+    public static final int MAX_KEY_LENGTH = 250;
+
+    private static final Charset KEY_CHARSET = Charset.forName("UTF-8");
+
+    private final Cache<LocalCacheElement> cache;
+
+    /**
+     * @param cache the cache of the server, e.g. {@code MemCacheServer.getCache()}
+     */
+    public EmbeddedClient(Cache<LocalCacheElement> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * 取出的元素：值、flags和cas
+     */
+    public static final class Item {
+        private final String key;
+        private final byte[] value;
+        private final int flags;
+        private final long cas;
+
+        Item(String key, LocalCacheElement element) {
+            this.key = key;
+            this.value = toBytes(element.getData());
+            this.flags = element.getFlags();
+            this.cas = element.getCasUnique();
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the value, which belongs to this item
+         */
+        public byte[] getValue() {
+            return value;
+        }
+
+        /**
+         * @return a read-only view of the value
+         */
+        public ByteBuffer getBuffer() {
+            return ByteBuffer.wrap(value).asReadOnlyBuffer();
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public long getCas() {
+            return cas;
+        }
+    }
+
+    /**
+     * @return a copy of the value, or null if the key is not in the cache
+     */
+    public byte[] get(String key) {
+        LocalCacheElement element = find(key);
+        if (element == null) {
+            return null;
+        }
+        try {
+            return toBytes(element.getData());
+        } finally {
+            element.release();
+        }
+    }
+
+    /**
+     * @return a read-only buffer holding a copy of the value, or null if the key is not in the cache
+     */
+    public ByteBuffer getBuffer(String key) {
+        Item item = gets(key);
+        return item == null ? null : item.getBuffer();
+    }
+
+    /**
+     * @return the value with its flags and cas, or null if the key is not in the cache
+     */
+    public Item gets(String key) {
+        LocalCacheElement element = find(key);
+        if (element == null) {
+            return null;
+        }
+        try {
+            return new Item(key, element);
+        } finally {
+            element.release();
+        }
+    }
+
+    /**
+     * 一次取多个key，和协议里的多key get一样只算一次访问
+     *
+     * @return the items found, in the order of the keys
+     */
+    public Map<String, Item> getMulti(Collection<String> keys) {
+        return getMulti(keys.toArray(new String[keys.size()]));
+    }
+
+    public Map<String, Item> getMulti(String... keys) {
+        Key[] cacheKeys = new Key[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            cacheKeys[i] = key(keys[i]);
+        }
+        LocalCacheElement[] elements = cache.get(cacheKeys);
+        Map<String, Item> items = new LinkedHashMap<String, Item>();
+        for (int i = 0; i < keys.length; i++) {
+            if (elements[i] != null) {
+                items.put(keys[i], new Item(keys[i], elements[i]));
+                elements[i].release();
+            }
+        }
+        return items;
+    }
+
+    public Cache.StoreResponse set(String key, byte[] value) {
+        return set(key, value, 0, 0);
+    }
+
+    public Cache.StoreResponse set(String key, byte[] value, int flags, long exptime) {
+        return cache.set(element(key, ChannelBuffers.wrappedBuffer(value), flags, exptime));
+    }
+
+    /**
+     * @param value the value, from its position to its limit; the buffer itself is not modified
+     */
+    public Cache.StoreResponse set(String key, ByteBuffer value, int flags, long exptime) {
+        return cache.set(element(key, ChannelBuffers.wrappedBuffer(value.slice()), flags, exptime));
+    }
+
+    public Cache.StoreResponse add(String key, byte[] value, int flags, long exptime) {
+        return cache.add(element(key, ChannelBuffers.wrappedBuffer(value), flags, exptime));
+    }
+
+    /**
+     * 只有在元素从上次gets以后没有被修改过的时候才存储
+     *
+     * @param cas the cas of the item, see {@link Item#getCas()}
+     * @return STORED, EXISTS if the item was modified in the meantime, or NOT_FOUND
+     */
+    public Cache.StoreResponse cas(String key, long cas, byte[] value, int flags, long exptime) {
+        return cache.cas(cas, element(key, ChannelBuffers.wrappedBuffer(value), flags, exptime));
+    }
+
+    public Cache.StoreResponse cas(String key, long cas, ByteBuffer value, int flags, long exptime) {
+        return cache.cas(cas, element(key, ChannelBuffers.wrappedBuffer(value.slice()), flags, exptime));
+    }
+
+    /**
+     * @return whether the key was in the cache
+     */
+    public boolean delete(String key) {
+        return cache.delete(key(key), 0) == Cache.DeleteResponse.DELETED;
+    }
+
+    private LocalCacheElement find(String key) {
+        return cache.get(key(key))[0];
+    }
+
+    private static LocalCacheElement element(String key, ChannelBuffer data, int flags, long exptime) {
+        // 存储的时候缓存会把key和value拷贝到自己的内存里，这里不用拷贝
+        LocalCacheElement element = new LocalCacheElement(key(key), flags, Clock.expiryTime(exptime), 0L);
+        element.setData(data);
+        return element;
+    }
+
+    private static Key key(String key) {
+        byte[] bytes = key.getBytes(KEY_CHARSET);
+        if (bytes.length == 0 || bytes.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("key must be 1 to " + MAX_KEY_LENGTH + " bytes long: " + key);
+        }
+        return new Key(bytes);
+    }
+
+    private static byte[] toBytes(ChannelBuffer data) {
+        byte[] bytes = new byte[data.capacity()];
+        data.getBytes(0, bytes);
+        return bytes;
+    }
+}
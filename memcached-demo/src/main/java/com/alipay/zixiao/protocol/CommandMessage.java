@@ -38,8 +38,12 @@ public final class CommandMessage<CACHE_ELEMENT extends CacheElement> implements
     public int opaque;
     public boolean addKeyToResponse = false;
 
-    public int incrExpiry;
-    public int incrAmount;
+    /**
+     * 计数器不存在时创建它的过期时间，-1表示不创建
+     */
+    public int incrExpiry = -1;
+    public long incrAmount;
+    public long incrInitial;
 
     private CommandMessage(Op op) {
         this.op = op;
@@ -58,7 +62,32 @@ public final class CommandMessage<CACHE_ELEMENT extends CacheElement> implements
         }
     }
 
+    /**
+     * 复用同一个命令对象解析下一条命令，清空上一条命令的所有字段，key列表保留并清空复用
+     *
+     * @param operation the operation of the next command
+     * @return this message
+     */
+    public CommandMessage<CACHE_ELEMENT> reset(Op operation) {
+        this.op = operation;
+        this.element = null;
+        if (this.keys instanceof ArrayList) {
+            this.keys.clear();
+        } else {
+            this.keys = new ArrayList<Key>();
+        }
+        this.noreply = false;
+        this.cas_key = 0;
+        this.time = 0;
+        this.opaque = 0;
+        this.addKeyToResponse = false;
+        this.incrExpiry = -1;
+        this.incrAmount = 0;
+        this.incrInitial = 0;
+        return this;
+    }
+
     public static CommandMessage command(Op operation) {
         return new CommandMessage(operation);
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -17,22 +17,24 @@ package com.alipay.zixiao.protocol;
 
 import com.alipay.zixiao.cache.Cache;
 import com.alipay.zixiao.cache.CacheElement;
+import com.alipay.zixiao.MemCacheServer;
 import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.StatsRegistry;
 import com.alipay.zixiao.protocol.exceptions.UnknownCommandException;
+import com.alipay.zixiao.util.Clock;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.util.CharsetUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
 @ChannelHandler.Sharable
 public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> extends SimpleChannelUpstreamHandler {
 
     final Logger logger = LoggerFactory.getLogger(MemcachedCommandHandler.class);
 
-    public final AtomicInteger curr_conns = new AtomicInteger();
-    public final AtomicInteger total_conns = new AtomicInteger();
 
 
 
@@ -76,8 +78,8 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
      */
     @Override
     public void channelOpen(ChannelHandlerContext channelHandlerContext, ChannelStateEvent channelStateEvent) throws Exception {
-        total_conns.incrementAndGet();
-        curr_conns.incrementAndGet();
+        cache.getStats().increment(StatsRegistry.Stat.TOTAL_CONNECTIONS);
+        cache.getStats().increment(StatsRegistry.Stat.CURR_CONNECTIONS);
         channelGroup.add(channelHandlerContext.getChannel());
     }
 
@@ -90,7 +92,7 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
      */
     @Override
     public void channelClosed(ChannelHandlerContext channelHandlerContext, ChannelStateEvent channelStateEvent) throws Exception {
-        curr_conns.decrementAndGet();
+        cache.getStats().decrement(StatsRegistry.Stat.CURR_CONNECTIONS);
         channelGroup.remove(channelHandlerContext.getChannel());
     }
 
@@ -117,10 +119,7 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
         Op cmd = command.op;
         int cmdKeysSize = command.keys == null ? 0 : command.keys.size();
 
-        // first process any messages in the delete queue
-        cache.asyncEventPing();
-
-        // now do the real work
+        // housekeeping (expiry, delayed deletes) is done by the cache's own maintenance thread
         if (this.verbose) {
             StringBuilder log = new StringBuilder();
             log.append(cmd);
@@ -150,6 +149,38 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
             case CAS:
                 handleCas(channelHandlerContext, command, channel);
                 break;
+            case ADD:
+                handleAdd(channelHandlerContext, command, channel);
+                break;
+            case REPLACE:
+                handleReplace(channelHandlerContext, command, channel);
+                break;
+            case APPEND:
+                handleAppend(channelHandlerContext, command, channel);
+                break;
+            case PREPEND:
+                handlePrepend(channelHandlerContext, command, channel);
+                break;
+            case INCR:
+            case DECR:
+                handleIncrDecr(channelHandlerContext, command, channel, cmd == Op.INCR);
+                break;
+            case TOUCH:
+            case GAT:
+                handleTouch(channelHandlerContext, command, channel);
+                break;
+            case FLUSH_ALL:
+                handleFlush(channelHandlerContext, command, channel);
+                break;
+            case VERSION:
+                handleVersion(channelHandlerContext, command, channel);
+                break;
+            case STATS:
+                handleStats(channelHandlerContext, command, channel);
+                break;
+            case QUIT:
+                handleQuit(channelHandlerContext, command, channel);
+                break;
             default:
                  throw new UnknownCommandException("unknown command");
         }
@@ -179,6 +210,85 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
         Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
     }
 
+    protected void handleAdd(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        Cache.StoreResponse ret = cache.add(command.element);
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
+    }
+
+    protected void handleReplace(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        Cache.StoreResponse ret = cache.replace(command.element);
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
+    }
+
+    protected void handleAppend(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        Cache.StoreResponse ret = cache.append(command.element);
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
+    }
+
+    protected void handlePrepend(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        Cache.StoreResponse ret = cache.prepend(command.element);
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withResponse(ret), channel.getRemoteAddress());
+    }
+
+    /**
+     * 计数器不存在并且命令带了过期时间(二进制协议)的时候，用初始值创建计数器
+     */
+    @SuppressWarnings("unchecked")
+    protected void handleIncrDecr(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel, boolean incr) {
+        Key key = command.keys.get(0);
+        Long ret = cache.get_add(key, command.incrAmount, incr);
+        while (ret == null && command.incrExpiry != -1) {
+            LocalCacheElement initial = new LocalCacheElement(key, 0, Clock.expiryTime(command.incrExpiry), 0L);
+            initial.setData(ChannelBuffers.copiedBuffer(Long.toUnsignedString(command.incrInitial), CharsetUtil.US_ASCII));
+            if (cache.add((CACHE_ELEMENT) initial) == Cache.StoreResponse.STORED) {
+                ret = command.incrInitial;
+            } else {
+                // 别的连接刚刚创建了计数器
+                ret = cache.get_add(key, command.incrAmount, incr);
+            }
+        }
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withIncrDecrResponse(ret), channel.getRemoteAddress());
+    }
+
+    protected void handleTouch(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        CACHE_ELEMENT touched = cache.touch(command.keys.get(0), Clock.expiryTime(command.time));
+        ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(command);
+        if (command.op == Op.GAT) {
+            CACHE_ELEMENT[] results = (CACHE_ELEMENT[]) new CacheElement[] { touched };
+            resp.withElements(results);
+        } else {
+            resp.withResponse(touched != null ? Cache.StoreResponse.STORED : Cache.StoreResponse.NOT_FOUND);
+            // 不返回数据，不用持有元素的内存
+            if (touched != null) {
+                touched.release();
+            }
+        }
+        Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
+    }
+
+    protected void handleFlush(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        boolean ret = cache.flush_all(command.time);
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withFlushResponse(ret), channel.getRemoteAddress());
+    }
+
+    protected void handleVersion(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(command);
+        resp.version = MemCacheServer.memcachedVersion;
+        Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
+    }
+
+    protected void handleStats(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        String arg = command.keys == null || command.keys.isEmpty() ? null : command.keys.get(0).toString();
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withStatResponse(cache.stat(arg)), channel.getRemoteAddress());
+    }
+
+    /**
+     * 响应由编码器写出后关闭连接
+     */
+    protected void handleQuit(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command), channel.getRemoteAddress());
+    }
+
     protected void handleGets(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
         Key[] keys = new Key[command.keys.size()];
         keys = command.keys.toArray(keys);
@@ -198,14 +308,6 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
     }
 
 
-    /**
-     * @return the current time in seconds (from epoch), used for expiries, etc.
-     */
-    private static int Now() {
-        return (int) (System.currentTimeMillis() / 1000);
-    }
-
-
 
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -25,7 +25,8 @@ import java.util.Map;
  * 操作枚举
  */
 public enum Op {
-    GET, GETS,  DELETE,SET, CAS;
+    GET, GETS,  DELETE,SET, CAS,
+    ADD, REPLACE, APPEND, PREPEND, INCR, DECR, TOUCH, GAT, FLUSH_ALL, VERSION, STATS, QUIT;
 
     private static Map<ChannelBuffer, Op> opsbf = new HashMap<ChannelBuffer, Op>();
 
@@ -2,6 +2,8 @@ package com.alipay.zixiao.protocol;
 
 import com.alipay.zixiao.cache.Cache;
 import com.alipay.zixiao.cache.CacheElement;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 
 import java.io.Serializable;
 import java.util.Map;
@@ -22,7 +24,7 @@ public final class ResponseMessage<CACHE_ELEMENT extends CacheElement> implement
     public Map<String, Set<String>>      stats;
     public String                        version;
     public Cache.DeleteResponse          deleteResponse;
-    public Integer                       incrDecrResponse;
+    public Long                          incrDecrResponse;
     public boolean                       flushSuccess;
 
     public ResponseMessage<CACHE_ELEMENT> withElements(CACHE_ELEMENT[] elements) {
@@ -40,7 +42,7 @@ public final class ResponseMessage<CACHE_ELEMENT extends CacheElement> implement
         return this;
     }
 
-    public ResponseMessage<CACHE_ELEMENT> withIncrDecrResponse(Integer incrDecrResp) {
+    public ResponseMessage<CACHE_ELEMENT> withIncrDecrResponse(Long incrDecrResp) {
         this.incrDecrResponse = incrDecrResp;
 
         return this;
@@ -57,4 +59,38 @@ public final class ResponseMessage<CACHE_ELEMENT extends CacheElement> implement
 
         return this;
     }
+
+    /**
+     * 取出的元素引用着缓存的内存，响应写完(或者失败)以后才释放
+     *
+     * @param future the future of the write carrying the elements' data
+     */
+    public void releaseElementsWhenWritten(ChannelFuture future) {
+        if (elements != null) {
+            future.addListener(releasing(elements));
+        }
+    }
+
+    public void releaseElements() {
+        release(elements);
+    }
+
+    public static ChannelFutureListener releasing(final CacheElement... elements) {
+        return new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) {
+                release(elements);
+            }
+        };
+    }
+
+    public static void release(CacheElement... elements) {
+        if (elements == null) {
+            return;
+        }
+        for (CacheElement element : elements) {
+            if (element != null) {
+                element.release();
+            }
+        }
+    }
 }
@@ -0,0 +1,36 @@
+package com.alipay.zixiao.protocol;
+
+import com.alipay.zixiao.cache.StatsRegistry;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.WriteCompletionEvent;
+
+/**
+ * 放在pipeline最前面，统计网络读写的字节数
+ */
+@ChannelHandler.Sharable
+public final class TrafficStatsHandler extends SimpleChannelUpstreamHandler {
+
+    private final StatsRegistry stats;
+
+    public TrafficStatsHandler(StatsRegistry stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (e instanceof MessageEvent) {
+            Object message = ((MessageEvent) e).getMessage();
+            if (message instanceof ChannelBuffer) {
+                stats.add(StatsRegistry.Stat.BYTES_READ, ((ChannelBuffer) message).readableBytes());
+            }
+        } else if (e instanceof WriteCompletionEvent) {
+            stats.add(StatsRegistry.Stat.BYTES_WRITTEN, ((WriteCompletionEvent) e).getWrittenAmount());
+        }
+        ctx.sendUpstream(e);
+    }
+}
@@ -0,0 +1,161 @@
+package com.alipay.zixiao.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 合并一次网络读产生的所有响应，读处理完以后一次写出
+ * <p/>
+ * The handler sits in front of the decoder. While the bytes of one read are decoded and handled, the buffers
+ * written by the I/O thread are held back and then written as a single composite buffer, which the NIO worker
+ * sends with one write. A batch is written early once it holds {@code maxWrites} buffers or {@code maxBytes}
+ * bytes, so a long pipeline doesn't pile up unbounded responses. Writes from other threads, or outside of a
+ * read, go through immediately.
+ */
+@ChannelHandler.Sharable
+public final class WriteCoalescingHandler extends SimpleChannelHandler {
+
+    public static final int DEFAULT_MAX_WRITES = 64;
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    private final int maxWrites;
+    private final int maxBytes;
+
+    public WriteCoalescingHandler() {
+        this(DEFAULT_MAX_WRITES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxWrites the maximum number of buffers held back before a batch is written, 1 disables coalescing
+     * @param maxBytes  the maximum number of bytes held back before a batch is written
+     */
+    public WriteCoalescingHandler(int maxWrites, int maxBytes) {
+        if (maxWrites <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("maxWrites and maxBytes must be positive");
+        }
+        this.maxWrites = maxWrites;
+        this.maxBytes = maxBytes;
+    }
+
+    public int getMaxWrites() {
+        return maxWrites;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Batch batch = (Batch) ctx.getAttachment();
+        if (batch == null) {
+            batch = new Batch();
+            ctx.setAttachment(batch);
+        }
+        if (batch.reader != null) {
+            ctx.sendUpstream(e);
+            return;
+        }
+        batch.reader = Thread.currentThread();
+        try {
+            ctx.sendUpstream(e);
+        } finally {
+            batch.reader = null;
+            flush(ctx, batch);
+        }
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Batch batch = (Batch) ctx.getAttachment();
+        if (batch == null || batch.reader != Thread.currentThread()) {
+            ctx.sendDownstream(e);
+            return;
+        }
+        if (!(e.getMessage() instanceof ChannelBuffer)) {
+            // 保持顺序
+            flush(ctx, batch);
+            ctx.sendDownstream(e);
+            return;
+        }
+        batch.add((ChannelBuffer) e.getMessage(), e.getFuture());
+        if (batch.buffers.size() >= maxWrites || batch.bytes >= maxBytes) {
+            flush(ctx, batch);
+        }
+    }
+
+    @Override
+    public void closeRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        // 关闭之前先写出已经攒下的响应，比如quit的应答
+        Batch batch = (Batch) ctx.getAttachment();
+        if (batch != null && batch.reader == Thread.currentThread()) {
+            flush(ctx, batch);
+        }
+        ctx.sendDownstream(e);
+    }
+
+    private static void flush(ChannelHandlerContext ctx, Batch batch) {
+        final int size = batch.buffers.size();
+        if (size == 0) {
+            return;
+        }
+        if (size == 1) {
+            ChannelBuffer buffer = batch.buffers.get(0);
+            ChannelFuture future = batch.futures.get(0);
+            batch.clear();
+            Channels.write(ctx, future, buffer);
+            return;
+        }
+
+        final ChannelBuffer composite = ChannelBuffers.wrappedBuffer(batch.buffers.toArray(new ChannelBuffer[size]));
+        final ChannelFuture[] futures = batch.futures.toArray(new ChannelFuture[size]);
+        batch.clear();
+
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        future.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                for (ChannelFuture f : futures) {
+                    if (future.isSuccess()) {
+                        f.setSuccess();
+                    } else {
+                        f.setFailure(future.getCause());
+                    }
+                }
+            }
+        });
+        Channels.write(ctx, future, composite);
+    }
+
+    /**
+     * 一个连接上攒着的写，只由读这个连接的I/O线程访问
+     */
+    private static final class Batch {
+        final List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>();
+        final List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+        int bytes;
+        volatile Thread reader;
+
+        void add(ChannelBuffer buffer, ChannelFuture future) {
+            buffers.add(buffer);
+            futures.add(future);
+            bytes += buffer.readableBytes();
+        }
+
+        void clear() {
+            buffers.clear();
+            futures.clear();
+            bytes = 0;
+        }
+    }
+}
@@ -1,43 +1,64 @@
 package com.alipay.zixiao.protocol.binary;
 
-import com.alipay.zixiao.cache.CacheElement;
 import com.alipay.zixiao.cache.Key;
 import com.alipay.zixiao.cache.LocalCacheElement;
 import com.alipay.zixiao.protocol.CommandMessage;
 import com.alipay.zixiao.protocol.Op;
 import com.alipay.zixiao.protocol.exceptions.MalformedCommandException;
+import com.alipay.zixiao.protocol.exceptions.UnknownCommandException;
+import com.alipay.zixiao.util.Clock;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
-import java.nio.ByteOrder;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 
 /**
- * 二进制解码器
+ * 二进制解码器。FrameDecoder会在内部累积不完整的请求，所以每个连接必须使用自己的实例
  */
-@ChannelHandler.Sharable
 public class MemcachedBinaryCommandDecoder extends FrameDecoder {
 
     public static final Charset USASCII = Charset.forName("US-ASCII");
 
+    private static final int HEADER_LENGTH = 24;
+
     /**
-     * 二进制对应枚举
+     * 二进制对应枚举，code是协议里的操作码
      */
     public static enum BinaryOp {
         Get(0x00, Op.GET, false),
         Set(0x01, Op.SET, false),
+        Add(0x02, Op.ADD, false),
+        Replace(0x03, Op.REPLACE, false),
         Delete(0x04, Op.DELETE, false),
-        GetQ(0x09, Op.GET, false),
+        Increment(0x05, Op.INCR, false),
+        Decrement(0x06, Op.DECR, false),
+        Quit(0x07, Op.QUIT, false),
+        Flush(0x08, Op.FLUSH_ALL, false),
+        GetQ(0x09, Op.GET, true),
         Noop(0x0A, null, false),
+        Version(0x0B, Op.VERSION, false),
         GetK(0x0C, Op.GET, false, true),
         GetKQ(0x0D, Op.GET, true, true),
+        Append(0x0E, Op.APPEND, false),
+        Prepend(0x0F, Op.PREPEND, false),
+        Stat(0x10, Op.STATS, false),
         SetQ(0x11, Op.SET, true),
-        DeleteQ(0x14, Op.DELETE, true);
+        AddQ(0x12, Op.ADD, true),
+        ReplaceQ(0x13, Op.REPLACE, true),
+        DeleteQ(0x14, Op.DELETE, true),
+        IncrementQ(0x15, Op.INCR, true),
+        DecrementQ(0x16, Op.DECR, true),
+        QuitQ(0x17, Op.QUIT, true),
+        FlushQ(0x18, Op.FLUSH_ALL, true),
+        AppendQ(0x19, Op.APPEND, true),
+        PrependQ(0x1A, Op.PREPEND, true),
+        Touch(0x1C, Op.TOUCH, false),
+        GAT(0x1D, Op.GAT, false),
+        GATQ(0x1E, Op.GAT, true),
+        GATK(0x23, Op.GAT, false, true),
+        GATKQ(0x24, Op.GAT, true, true);
 
 
         public byte code;
@@ -45,6 +66,29 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
         public boolean noreply;
         public boolean addKeyToResponse = false;
 
+        /** 按操作码查找，协议里的操作码只有一个字节 */
+        private static final BinaryOp[] BY_CODE = new BinaryOp[256];
+
+        /** 按(操作, noreply, 是否返回key)查找响应的操作码，见{@link #responseIndex} */
+        private static final BinaryOp[] BY_COMMAND = new BinaryOp[256];
+
+        static {
+            if ((Op.values().length + 1) * 4 > BY_COMMAND.length) {
+                throw new IllegalStateException("too many operations for the binary response table");
+            }
+            for (BinaryOp binaryOp : values()) {
+                BY_CODE[binaryOp.code & 0xFF] = binaryOp;
+                BY_COMMAND[responseIndex(binaryOp.correspondingOp, binaryOp.noreply, binaryOp.addKeyToResponse)] = binaryOp;
+            }
+            // 带cas的Set解码成CAS，gets和get一样，响应还是原来的操作码
+            for (BinaryOp binaryOp : new BinaryOp[] { Set, SetQ }) {
+                BY_COMMAND[responseIndex(Op.CAS, binaryOp.noreply, false)] = binaryOp;
+            }
+            for (BinaryOp binaryOp : new BinaryOp[] { Get, GetQ, GetK, GetKQ }) {
+                BY_COMMAND[responseIndex(Op.GETS, binaryOp.noreply, binaryOp.addKeyToResponse)] = binaryOp;
+            }
+        }
+
         BinaryOp(int code, Op correspondingOp, boolean noreply) {
             this.code = (byte)code;
             this.correspondingOp = correspondingOp;
@@ -58,14 +102,20 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
             this.addKeyToResponse = addKeyToResponse;
         }
 
-        public static BinaryOp forCommandMessage(CommandMessage msg) {
-            for (BinaryOp binaryOp : values()) {
-                if (binaryOp.correspondingOp == msg.op && binaryOp.noreply == msg.noreply && binaryOp.addKeyToResponse == msg.addKeyToResponse) {
-                    return binaryOp;
-                }
-            }
+        private static int responseIndex(Op op, boolean noreply, boolean addKeyToResponse) {
+            return ((op == null ? 0 : op.ordinal() + 1) << 2) | (noreply ? 2 : 0) | (addKeyToResponse ? 1 : 0);
+        }
 
-            return null;
+        /**
+         * @param code the opcode of a request, 0-255
+         * @return the operation, or null if the opcode is not supported
+         */
+        public static BinaryOp forCode(int code) {
+            return BY_CODE[code];
+        }
+
+        public static BinaryOp forCommandMessage(CommandMessage msg) {
+            return BY_COMMAND[responseIndex(msg.op, msg.noreply, msg.addKeyToResponse)];
         }
 
     }
@@ -73,85 +123,102 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
     protected Object decode(ChannelHandlerContext channelHandlerContext, Channel channel, ChannelBuffer channelBuffer) throws Exception {
 
         // 协议头必须满足不小于24
-        if (channelBuffer.readableBytes() < 24) return null;
+        if (channelBuffer.readableBytes() < HEADER_LENGTH) return null;
 
-        // get the header
-        channelBuffer.markReaderIndex();
-        ChannelBuffer headerBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 24);
-        channelBuffer.readBytes(headerBuffer);
-
-        short magic = headerBuffer.readUnsignedByte();
+        // 直接在输入缓冲区上解析协议头，不拷贝
+        final int header = channelBuffer.readerIndex();
+        short magic = channelBuffer.getUnsignedByte(header);
 
         // magic 值应该为 0x80
         if (magic != 0x80) {
-            headerBuffer.resetReaderIndex();
-
             throw new MalformedCommandException("binary request payload is invalid, magic byte incorrect");
         }
 
         //解析二进制协议头
-        short opcode = headerBuffer.readUnsignedByte();
-        short keyLength = headerBuffer.readShort();
-        short extraLength = headerBuffer.readUnsignedByte();
-        short dataType = headerBuffer.readUnsignedByte();
-        short reserved = headerBuffer.readShort();
-        int totalBodyLength = headerBuffer.readInt();
-        int opaque = headerBuffer.readInt();
-        long cas = headerBuffer.readLong();
-
-        // 读取内容
-        if (channelBuffer.readableBytes() < totalBodyLength) {
-            channelBuffer.resetReaderIndex();
+        short opcode = channelBuffer.getUnsignedByte(header + 1);
+        int keyLength = channelBuffer.getUnsignedShort(header + 2);
+        short extraLength = channelBuffer.getUnsignedByte(header + 4);
+        int totalBodyLength = channelBuffer.getInt(header + 8);
+        int opaque = channelBuffer.getInt(header + 12);
+        long cas = channelBuffer.getLong(header + 16);
+
+        if (totalBodyLength < keyLength + extraLength) {
+            throw new MalformedCommandException("binary request body is shorter than its key and extras");
+        }
+
+        // 等待完整的请求体
+        if (channelBuffer.readableBytes() < HEADER_LENGTH + totalBodyLength) {
             return null;
         }
+        channelBuffer.skipBytes(HEADER_LENGTH + totalBodyLength);
 
         // 将命令请求转换成handler处理的模型
-        BinaryOp bcmd = BinaryOp.values()[opcode];
+        BinaryOp bcmd = BinaryOp.forCode(opcode);
+        if (bcmd == null) {
+            throw new UnknownCommandException("unknown binary opcode: " + opcode);
+        }
 
         Op cmdType = bcmd.correspondingOp;
+        // 带cas的Set就是CAS
+        if (cmdType == Op.SET && cas != 0) {
+            cmdType = Op.CAS;
+        }
         CommandMessage cmdMessage = CommandMessage.command(cmdType);
         cmdMessage.noreply = bcmd.noreply;
         cmdMessage.cas_key = cas;
         cmdMessage.opaque = opaque;
         cmdMessage.addKeyToResponse = bcmd.addKeyToResponse;
 
-        // 获得额外的内容
-        ChannelBuffer extrasBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, extraLength);
-        channelBuffer.readBytes(extrasBuffer);
+        // extras, key, value 都是输入缓冲区的切片，只有存储的时候才按需要拷贝一次
+        final int extras = header + HEADER_LENGTH;
+        final int key = extras + extraLength;
+        final int value = key + keyLength;
+        final int valueLength = totalBodyLength - keyLength - extraLength;
 
         // 获得key模型
         if (keyLength != 0) {
-            ChannelBuffer keyBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, keyLength);
-            channelBuffer.readBytes(keyBuffer);
-
-            ArrayList<Key> keys = new ArrayList<Key>();
-            keys.add(new Key(keyBuffer.copy()));
-
-            cmdMessage.keys = keys;
-
-            if (cmdType == Op.SET)
-
-            {
-                //过期时间
-                long expire = ((short) (extrasBuffer.capacity() != 0 ?
-                        extrasBuffer.readUnsignedShort() :
-                        0)) * 1000;
-                //标记
-                short flags = (short) (extrasBuffer.capacity() != 0 ?
-                        extrasBuffer.readUnsignedShort() :
-                        0);
-
-                // 内容
-                int size = totalBodyLength - keyLength - extraLength;
-
-                cmdMessage.element = new LocalCacheElement(new Key(keyBuffer.slice()), flags,
-                        expire != 0 && expire < CacheElement.THIRTY_DAYS ?
-                                LocalCacheElement.Now() + expire :
-                                expire, 0L);
-                ChannelBuffer data = ChannelBuffers.buffer(size);
-                channelBuffer.readBytes(data);
-                cmdMessage.element.setData(data);
+            cmdMessage.setKey(channelBuffer.slice(key, keyLength));
+        } else if (cmdType != null && cmdType != Op.FLUSH_ALL && cmdType != Op.VERSION && cmdType != Op.STATS
+                && cmdType != Op.QUIT) {
+            throw new MalformedCommandException("binary request has no key");
+        }
+
+        if (cmdType == null) {
+            return cmdMessage;
+        }
+        switch (cmdType) {
+            case SET:
+            case CAS:
+            case ADD:
+            case REPLACE:
+            case APPEND:
+            case PREPEND: {
+                // extras: 4字节标记 + 4字节过期时间，append和prepend没有extras
+                int flags = extraLength >= 4 ? channelBuffer.getInt(extras) : 0;
+                long expire = Clock.expiryTime(extraLength >= 8 ? channelBuffer.getInt(extras + 4) : 0);
+
+                cmdMessage.element = new LocalCacheElement((Key) cmdMessage.keys.get(0), flags, expire, 0L);
+                cmdMessage.element.setData(channelBuffer.slice(value, valueLength));
+                break;
             }
+            case INCR:
+            case DECR:
+                // extras: 8字节增量 + 8字节初始值 + 4字节过期时间
+                if (extraLength < 20) {
+                    throw new MalformedCommandException("binary incr/decr request needs 20 bytes of extras");
+                }
+                cmdMessage.incrAmount = channelBuffer.getLong(extras);
+                cmdMessage.incrInitial = channelBuffer.getLong(extras + 8);
+                cmdMessage.incrExpiry = channelBuffer.getInt(extras + 16);
+                break;
+            case TOUCH:
+            case GAT:
+            case FLUSH_ALL:
+                // extras: 4字节过期时间，flush可以没有
+                cmdMessage.time = extraLength >= 4 ? channelBuffer.getInt(extras) : 0;
+                break;
+            default:
+                break;
         }
 
         return cmdMessage;
@@ -2,6 +2,8 @@ package com.alipay.zixiao.protocol.binary;
 
 import com.alipay.zixiao.cache.Cache;
 import com.alipay.zixiao.protocol.MemcachedCommandHandler;
+import com.alipay.zixiao.protocol.TrafficStatsHandler;
+import com.alipay.zixiao.protocol.WriteCoalescingHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
@@ -9,17 +11,30 @@ import org.jboss.netty.channel.group.DefaultChannelGroup;
 
 public class MemcachedBinaryPipelineFactory implements ChannelPipelineFactory {
 
-    private final MemcachedBinaryCommandDecoder decoder =  new MemcachedBinaryCommandDecoder();
     private final MemcachedCommandHandler memcachedCommandHandler;
+    private final TrafficStatsHandler trafficStatsHandler;
     private final MemcachedBinaryResponseEncoder memcachedBinaryResponseEncoder = new MemcachedBinaryResponseEncoder();
+    private final WriteCoalescingHandler writeCoalescingHandler;
 
     public MemcachedBinaryPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, DefaultChannelGroup channelGroup) {
+        this(cache, version, verbose, idleTime, new WriteCoalescingHandler(), channelGroup);
+    }
+
+    /**
+     * @param writeCoalescing merges the responses to the requests of one network read into a single write
+     */
+    public MemcachedBinaryPipelineFactory(Cache cache, String version, boolean verbose, int idleTime,
+                                          WriteCoalescingHandler writeCoalescing, DefaultChannelGroup channelGroup) {
+        writeCoalescingHandler = writeCoalescing;
         memcachedCommandHandler = new MemcachedCommandHandler(cache, verbose, idleTime, channelGroup);
+        trafficStatsHandler = new TrafficStatsHandler(cache.getStats());
     }
 
     public ChannelPipeline getPipeline() throws Exception {
         return Channels.pipeline(
-                decoder,
+                trafficStatsHandler,
+                writeCoalescingHandler,
+                new MemcachedBinaryCommandDecoder(),
                 memcachedCommandHandler,
                 memcachedBinaryResponseEncoder
         );
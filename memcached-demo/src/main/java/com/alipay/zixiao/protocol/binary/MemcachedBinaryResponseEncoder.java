@@ -11,7 +11,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteOrder;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * 二进制编码
@@ -19,10 +23,10 @@ import java.util.concurrent.ConcurrentHashMap;
 @ChannelHandler.Sharable
 public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement> extends SimpleChannelUpstreamHandler {
 
-    private ConcurrentHashMap<Integer, ChannelBuffer> corkedBuffers = new ConcurrentHashMap<Integer, ChannelBuffer>();
-
     final Logger logger = LoggerFactory.getLogger(MemcachedBinaryResponseEncoder.class);
 
+    private static final Charset USASCII = Charset.forName("US-ASCII");
+
     public static enum ResponseCode {
         OK(0x0000),
         KEYNF(0x0001),
@@ -42,26 +46,51 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
     public ResponseCode getStatusCode(ResponseMessage command) {
         Op cmd = command.cmd.op;
-        if (cmd == Op.GET || cmd == Op.GETS) {
+        if (cmd == null) {
             return ResponseCode.OK;
-        } else if (cmd == Op.SET || cmd == Op.CAS) {
-            switch (command.response) {
-                case EXISTS:
-                    return ResponseCode.KEYEXISTS;
-                case NOT_FOUND:
-                    return ResponseCode.KEYNF;
-                case NOT_STORED:
-                    return ResponseCode.NOT_STORED;
-                case STORED:
-                    return ResponseCode.OK;
-            }
-        } else if (cmd == Op.DELETE) {
-            switch (command.deleteResponse) {
-                case DELETED:
-                    return ResponseCode.OK;
-                case NOT_FOUND:
-                    return ResponseCode.KEYNF;
-            }
+        }
+        switch (cmd) {
+            case GET:
+            case GETS:
+            case GAT:
+                return command.elements != null && command.elements.length != 0 && command.elements[0] != null
+                        ? ResponseCode.OK : ResponseCode.KEYNF;
+            case SET:
+            case CAS:
+            case ADD:
+            case REPLACE:
+            case APPEND:
+            case PREPEND:
+            case TOUCH:
+                switch (command.response) {
+                    case EXISTS:
+                        return ResponseCode.KEYEXISTS;
+                    case NOT_FOUND:
+                        // append/prepend到不存在的key在二进制协议里是NOT_STORED
+                        return cmd == Op.APPEND || cmd == Op.PREPEND ? ResponseCode.NOT_STORED : ResponseCode.KEYNF;
+                    case NOT_STORED:
+                        // add失败说明key已经存在，replace失败说明key不存在
+                        return cmd == Op.ADD ? ResponseCode.KEYEXISTS : cmd == Op.REPLACE ? ResponseCode.KEYNF : ResponseCode.NOT_STORED;
+                    case STORED:
+                        return ResponseCode.OK;
+                }
+                break;
+            case DELETE:
+                switch (command.deleteResponse) {
+                    case DELETED:
+                        return ResponseCode.OK;
+                    case NOT_FOUND:
+                        return ResponseCode.KEYNF;
+                }
+                break;
+            case INCR:
+            case DECR:
+                return command.incrDecrResponse != null ? ResponseCode.OK : ResponseCode.KEYNF;
+            case FLUSH_ALL:
+            case VERSION:
+            case STATS:
+            case QUIT:
+                return ResponseCode.OK;
         }
         return ResponseCode.UNKNOWN;
     }
@@ -112,6 +141,7 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
         try {
             throw e.getCause();
         } catch (UnknownCommandException unknownCommand) {
+            flushQuiet(ctx, ctx.getChannel());
             if (ctx.getChannel().isOpen())
                 ctx.getChannel().write(constructHeader(MemcachedBinaryCommandDecoder.BinaryOp.Noop, null, null, null, (short)0x0081, 0, 0));
         } catch (Throwable err) {
@@ -125,102 +155,173 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
     @SuppressWarnings("unchecked")
     public void messageReceived(ChannelHandlerContext channelHandlerContext, MessageEvent messageEvent) throws Exception {
         ResponseMessage<CACHE_ELEMENT> command = (ResponseMessage<CACHE_ELEMENT>) messageEvent.getMessage();
-        Object additional = messageEvent.getMessage();
+        Op op = command.cmd.op;
 
         MemcachedBinaryCommandDecoder.BinaryOp bcmd = MemcachedBinaryCommandDecoder.BinaryOp.forCommandMessage(command.cmd);
 
+        if (op == Op.QUIT) {
+            flushQuiet(channelHandlerContext, messageEvent.getChannel());
+            quit(messageEvent.getChannel(), bcmd, command.cmd.opaque);
+            return;
+        }
+        if (op == Op.STATS) {
+            flushQuiet(channelHandlerContext, messageEvent.getChannel());
+            writeStats(messageEvent.getChannel(), bcmd, command);
+            return;
+        }
+
+        CacheElement found = command.elements != null && command.elements.length != 0 ? command.elements[0] : null;
+        ResponseCode status = getStatusCode(command);
+
         ChannelBuffer extrasBuffer = null;
 
         // 写入key
         ChannelBuffer keyBuffer = null;
         if (bcmd.addKeyToResponse && command.cmd.keys != null && command.cmd.keys.size() != 0) {
-            keyBuffer = ChannelBuffers.wrappedBuffer(command.cmd.keys.get(0).bytes);
+            keyBuffer = (found != null ? found.getKey() : command.cmd.keys.get(0)).buffer();
         }
 
         // 写入内容
         ChannelBuffer valueBuffer = null;
-        if (command.elements != null) {
-            extrasBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 4);
-            CacheElement element = command.elements[0];
-            extrasBuffer.writeShort((short) (element != null ? element.getExpire() : 0));
-            extrasBuffer.writeShort((short) (element != null ? element.getFlags() : 0));
-
-            if ((command.cmd.op == Op.GET || command.cmd.op == Op.GETS)) {
-                if (element != null) {
-                    valueBuffer = ChannelBuffers.wrappedBuffer(element.getData());
-                } else {
-                    valueBuffer = ChannelBuffers.buffer(0);
-                }
-            }
-        }
         long casUnique = 0;
-        if (command.elements != null && command.elements.length != 0 && command.elements[0] != null) {
-            casUnique = command.elements[0].getCasUnique();
+        if (found != null) {
+            // get的响应extras只有4字节的标记
+            extrasBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 4);
+            extrasBuffer.writeInt(found.getFlags());
+            valueBuffer = ChannelBuffers.wrappedBuffer(found.getData());
+            casUnique = found.getCasUnique();
+        } else if ((op == Op.INCR || op == Op.DECR) && command.incrDecrResponse != null) {
+            // 计数器的值是8字节无符号整数
+            valueBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 8);
+            valueBuffer.writeLong(command.incrDecrResponse);
+        } else if (op == Op.VERSION && command.version != null) {
+            valueBuffer = ChannelBuffers.copiedBuffer(command.version, USASCII);
+        } else if (status == ResponseCode.OK && command.cmd.element != null) {
+            // 存储成功，返回新的cas
+            casUnique = command.cmd.element.getCasUnique();
         }
 
         ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer,
-                getStatusCode(command).code, command.cmd.opaque, casUnique);
+                status.code, command.cmd.opaque, casUnique);
 
-        // 写入其他内容
         if (bcmd.noreply) {
-            int totalCapacity =
-                    headerBuffer.capacity() + (extrasBuffer != null ? extrasBuffer.capacity() : 0)
-                    + (keyBuffer != null ? keyBuffer.capacity() : 0) + (valueBuffer != null ?
-                            valueBuffer.capacity() :
-                            0);
-
-            ChannelBuffer corkedResponse = cork(command.cmd.opaque, totalCapacity);
-
-            corkedResponse.writeBytes(headerBuffer);
-            if (extrasBuffer != null)
-                corkedResponse.writeBytes(extrasBuffer);
-            if (keyBuffer != null)
-                corkedResponse.writeBytes(keyBuffer);
-            if (valueBuffer != null)
-                corkedResponse.writeBytes(valueBuffer);
+            // 静默命令只在取到值或者出错的时候应答，get未命中也不应答
+            if (status == ResponseCode.OK ? found == null : status == ResponseCode.KEYNF && isGet(op)) {
+                return;
+            }
+            quietResponses(channelHandlerContext).add(command.elements, headerBuffer, extrasBuffer, keyBuffer, valueBuffer);
         } else {
-            if (corkedBuffers.containsKey(command.cmd.opaque))
-                uncork(command.cmd.opaque, messageEvent.getChannel());
+            // 非静默命令(包括Noop)先把攒着的响应写出去
+            flushQuiet(channelHandlerContext, messageEvent.getChannel());
+            writePayload(messageEvent, command, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
+        }
+
+    }
+
+    private static boolean isGet(Op op) {
+        return op == Op.GET || op == Op.GETS || op == Op.GAT;
+    }
+
+    /**
+     * 每个连接自己的静默响应，保存在这个handler在该连接pipeline里的context上
+     */
+    private QuietResponseAggregator quietResponses(ChannelHandlerContext ctx) {
+        QuietResponseAggregator aggregator = (QuietResponseAggregator) ctx.getAttachment();
+        if (aggregator == null) {
+            aggregator = new QuietResponseAggregator();
+            ctx.setAttachment(aggregator);
+        }
+        return aggregator;
+    }
 
-            writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
+    /**
+     * 写出这个连接上攒着的静默响应，比如UDP的一个数据报处理完、后面不会再有命令的时候
+     *
+     * @param ctx the context of this encoder in the pipeline of the connection
+     */
+    public void flushQuietResponses(ChannelHandlerContext ctx) {
+        flushQuiet(ctx, ctx.getChannel());
+    }
+
+    private void flushQuiet(ChannelHandlerContext ctx, Channel channel) {
+        QuietResponseAggregator aggregator = (QuietResponseAggregator) ctx.getAttachment();
+        if (aggregator != null && !aggregator.isEmpty()) {
+            ChannelBuffer batch = aggregator.drain();
+            CacheElement[] pinned = aggregator.drainPinned();
+            if (channel.isOpen()) {
+                channel.write(batch).addListener(ResponseMessage.releasing(pinned));
+            } else {
+                ResponseMessage.release(pinned);
+            }
         }
+    }
 
+    /**
+     * 连接关闭的时候还没写出的静默响应不会再写，释放它们引用的元素
+     */
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        QuietResponseAggregator aggregator = (QuietResponseAggregator) ctx.getAttachment();
+        if (aggregator != null) {
+            aggregator.drain();
+            ResponseMessage.release(aggregator.drainPinned());
+        }
+        super.channelClosed(ctx, e);
     }
 
-    private ChannelBuffer cork(int opaque, int totalCapacity) {
-        if (corkedBuffers.containsKey(opaque)) {
-            ChannelBuffer corkedResponse = corkedBuffers.get(opaque);
-            ChannelBuffer oldBuffer = corkedResponse;
-            corkedResponse = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, totalCapacity + corkedResponse.capacity());
-            corkedResponse.writeBytes(oldBuffer);
-            oldBuffer.clear();
-
-            corkedBuffers.remove(opaque);
-            corkedBuffers.put(opaque, corkedResponse);
-            return corkedResponse;
-        } else {
-            ChannelBuffer buffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, totalCapacity);
-            corkedBuffers.put(opaque, buffer);
-            return buffer;
+    /**
+     * 每个统计项一个响应包，最后用一个key为空的响应包结束
+     */
+    private void writeStats(Channel channel, MemcachedBinaryCommandDecoder.BinaryOp bcmd, ResponseMessage<CACHE_ELEMENT> command) {
+        if (!channel.isOpen()) {
+            return;
         }
+        List<ChannelBuffer> packets = new ArrayList<ChannelBuffer>();
+        if (command.stats != null) {
+            for (Map.Entry<String, Set<String>> stat : command.stats.entrySet()) {
+                ChannelBuffer keyBuffer = ChannelBuffers.copiedBuffer(stat.getKey(), USASCII);
+                for (String value : stat.getValue()) {
+                    ChannelBuffer valueBuffer = ChannelBuffers.copiedBuffer(value, USASCII);
+                    packets.add(constructHeader(bcmd, null, keyBuffer, valueBuffer, ResponseCode.OK.code, command.cmd.opaque, 0));
+                    packets.add(keyBuffer.duplicate());
+                    packets.add(valueBuffer);
+                }
+            }
+        }
+        packets.add(constructHeader(bcmd, null, null, null, ResponseCode.OK.code, command.cmd.opaque, 0));
+        channel.write(ChannelBuffers.wrappedBuffer(packets.toArray(new ChannelBuffer[packets.size()])));
     }
 
-    private void uncork(int opaque, Channel channel) {
-        ChannelBuffer corkedBuffer = corkedBuffers.get(opaque);
-        assert corkedBuffer !=  null;
-        channel.write(corkedBuffer);
-        corkedBuffers.remove(opaque);
+    /**
+     * Quit先应答再关闭连接，QuitQ直接关闭
+     */
+    private void quit(Channel channel, MemcachedBinaryCommandDecoder.BinaryOp bcmd, int opaque) {
+        if (!bcmd.noreply && channel.isOpen()) {
+            channel.write(constructHeader(bcmd, null, null, null, ResponseCode.OK.code, opaque, 0))
+                    .addListener(ChannelFutureListener.CLOSE);
+        } else {
+            channel.close();
+        }
     }
 
-    private void writePayload(MessageEvent messageEvent, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, ChannelBuffer headerBuffer) {
+    /**
+     * 一个响应的各部分合成一个composite buffer，一次写出
+     */
+    private void writePayload(MessageEvent messageEvent, ResponseMessage<CACHE_ELEMENT> command, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, ChannelBuffer headerBuffer) {
         if (messageEvent.getChannel().isOpen()) {
-            messageEvent.getChannel().write(headerBuffer);
-            if (extrasBuffer != null)
-                messageEvent.getChannel().write(extrasBuffer);
-            if (keyBuffer != null)
-                messageEvent.getChannel().write(keyBuffer);
-            if (valueBuffer != null)
-                messageEvent.getChannel().write(valueBuffer);
+            command.releaseElementsWhenWritten(messageEvent.getChannel().write(response(headerBuffer, extrasBuffer, keyBuffer, valueBuffer)));
+        } else {
+            command.releaseElements();
+        }
+    }
+
+    private static ChannelBuffer response(ChannelBuffer headerBuffer, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer) {
+        if (extrasBuffer == null && keyBuffer == null && valueBuffer == null) {
+            return headerBuffer;
         }
+        return ChannelBuffers.wrappedBuffer(headerBuffer,
+                extrasBuffer != null ? extrasBuffer : ChannelBuffers.EMPTY_BUFFER,
+                keyBuffer != null ? keyBuffer : ChannelBuffers.EMPTY_BUFFER,
+                valueBuffer != null ? valueBuffer : ChannelBuffers.EMPTY_BUFFER);
     }
 }
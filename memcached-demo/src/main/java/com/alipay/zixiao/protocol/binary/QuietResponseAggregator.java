@@ -0,0 +1,63 @@
+package com.alipay.zixiao.protocol.binary;
+
+import com.alipay.zixiao.cache.CacheElement;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个连接上静默命令(GetQ/GetKQ/SetQ/DeleteQ...)的响应，攒到下一个非静默命令或者Noop的时候一起写出
+ * <p/>
+ * The responses are kept as the list of their buffers and handed out as one composite buffer, so a batch of n
+ * responses costs O(n) bytes instead of being copied into an ever growing buffer. An instance belongs to a single
+ * channel and is only used by its I/O thread, so it is not synchronized. The cache elements whose data is part of a
+ * pending response stay pinned until the batch holding them is written.
+ */
+final class QuietResponseAggregator {
+
+    private final List<ChannelBuffer> parts = new ArrayList<ChannelBuffer>();
+    private final List<CacheElement> pinned = new ArrayList<CacheElement>();
+
+    /**
+     * @param elements the elements the response refers to, released once the response is written; may be null
+     * @param buffers  the buffers of one response, in order; null buffers are skipped
+     */
+    void add(CacheElement[] elements, ChannelBuffer... buffers) {
+        if (elements != null) {
+            for (CacheElement element : elements) {
+                if (element != null) {
+                    pinned.add(element);
+                }
+            }
+        }
+        for (ChannelBuffer buffer : buffers) {
+            if (buffer != null) {
+                parts.add(buffer);
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return parts.isEmpty();
+    }
+
+    /**
+     * @return the elements of the pending responses, to be released once {@link #drain()} is written
+     */
+    CacheElement[] drainPinned() {
+        CacheElement[] elements = pinned.toArray(new CacheElement[pinned.size()]);
+        pinned.clear();
+        return elements;
+    }
+
+    /**
+     * @return all pending responses as a single buffer, which is then forgotten by the aggregator
+     */
+    ChannelBuffer drain() {
+        ChannelBuffer batch = ChannelBuffers.wrappedBuffer(parts.toArray(new ChannelBuffer[parts.size()]));
+        parts.clear();
+        return batch;
+    }
+}
@@ -1,6 +1,5 @@
 package com.alipay.zixiao.protocol.text;
 
-import com.alipay.zixiao.cache.CacheElement;
 import com.alipay.zixiao.cache.Key;
 import com.alipay.zixiao.cache.LocalCacheElement;
 import com.alipay.zixiao.protocol.CommandMessage;
@@ -11,6 +10,7 @@ import com.alipay.zixiao.protocol.exceptions.InvalidProtocolStateException;
 import com.alipay.zixiao.protocol.exceptions.MalformedCommandException;
 import com.alipay.zixiao.protocol.exceptions.UnknownCommandException;
 import com.alipay.zixiao.util.BufferUtils;
+import com.alipay.zixiao.util.Clock;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferIndexFinder;
 import org.jboss.netty.buffer.ChannelBuffers;
@@ -169,9 +169,9 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                 //
                 int size = BufferUtils.atoi(parts.get(4));
                 //获得过期时间
-                long expire = BufferUtils.atoi(parts.get(3)) * 1000;
+                long expire = Clock.expiryTime(BufferUtils.atoi(parts.get(3)));
                 int flags = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                cmd.element = new LocalCacheElement(new Key(parts.get(1).slice()), flags, expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire, 0L);
+                cmd.element = new LocalCacheElement(new Key(parts.get(1)), flags, expire, 0L);
 
                 // 填充cas和noreply
                 if (numParts > 5) {
@@ -2,6 +2,8 @@ package com.alipay.zixiao.protocol.text;
 
 import com.alipay.zixiao.cache.Cache;
 import com.alipay.zixiao.protocol.MemcachedCommandHandler;
+import com.alipay.zixiao.protocol.TrafficStatsHandler;
+import com.alipay.zixiao.protocol.WriteCoalescingHandler;
 import com.alipay.zixiao.protocol.SessionStatus;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
@@ -21,13 +23,37 @@ public final class MemcachedPipelineFactory implements ChannelPipelineFactory {
     private int     idleTime;
 
     private int frameSize;
+    private boolean singlePassParser;
     private DefaultChannelGroup channelGroup;
     private final MemcachedResponseEncoder memcachedResponseEncoder = new MemcachedResponseEncoder();
 
     private final MemcachedCommandHandler memcachedCommandHandler;
+    private final TrafficStatsHandler trafficStatsHandler;
+    private final WriteCoalescingHandler writeCoalescingHandler;
 
 
     public MemcachedPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, int frameSize, DefaultChannelGroup channelGroup) {
+        this(cache, version, verbose, idleTime, frameSize, false, channelGroup);
+    }
+
+    /**
+     * @param singlePassParser whether to parse commands with the allocation-free {@link SinglePassCommandDecoder}
+     *                         instead of the tokenizing {@link MemcachedCommandDecoder}
+     */
+    public MemcachedPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, int frameSize,
+                                    boolean singlePassParser, DefaultChannelGroup channelGroup) {
+        this(cache, version, verbose, idleTime, frameSize, singlePassParser, new WriteCoalescingHandler(), channelGroup);
+    }
+
+    /**
+     * @param writeCoalescing merges the responses to the commands of one network read, e.g. a batch of pipelined
+     *                        sets, into a single write
+     */
+    public MemcachedPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, int frameSize,
+                                    boolean singlePassParser, WriteCoalescingHandler writeCoalescing,
+                                    DefaultChannelGroup channelGroup) {
+        this.writeCoalescingHandler = writeCoalescing;
+        this.singlePassParser = singlePassParser;
         this.cache = cache;
         this.version = version;
         this.verbose = verbose;
@@ -35,13 +61,16 @@ public final class MemcachedPipelineFactory implements ChannelPipelineFactory {
         this.frameSize = frameSize;
         this.channelGroup = channelGroup;
         memcachedCommandHandler = new MemcachedCommandHandler(this.cache, this.verbose, this.idleTime, this.channelGroup);
+        trafficStatsHandler = new TrafficStatsHandler(cache.getStats());
     }
 
     public final ChannelPipeline getPipeline() throws Exception {
         SessionStatus status = new SessionStatus().ready();
 
         return Channels.pipeline(
-                new MemcachedCommandDecoder(status),
+                trafficStatsHandler,
+                writeCoalescingHandler,
+                singlePassParser ? new SinglePassCommandDecoder(status) : new MemcachedCommandDecoder(status),
                 memcachedCommandHandler,
                 memcachedResponseEncoder);
     }
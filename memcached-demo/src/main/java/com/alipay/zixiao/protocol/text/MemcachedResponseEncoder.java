@@ -76,7 +76,7 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
                 for (CacheElement result : results) {
                     if (result != null) {
                         buffers[i++] = VALUE;
-                        buffers[i++] = result.getKey().bytes;
+                        buffers[i++] = result.getKey().buffer();
                         buffers[i++] = SPACE;
                         buffers[i++] = BufferUtils.itoa(result.getFlags());
                         buffers[i++] = SPACE;
@@ -92,7 +92,7 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
                 }
                 buffers[i] = END;
 
-                Channels.write(channel, ChannelBuffers.wrappedBuffer(buffers));
+                command.releaseElementsWhenWritten(Channels.write(channel, ChannelBuffers.wrappedBuffer(buffers)));
                 break;
             case SET:
             case CAS:
@@ -0,0 +1,226 @@
+package com.alipay.zixiao.protocol.text;
+
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.protocol.CommandMessage;
+import com.alipay.zixiao.protocol.Op;
+import com.alipay.zixiao.protocol.SessionStatus;
+import com.alipay.zixiao.protocol.exceptions.IncorrectlyTerminatedPayloadException;
+import com.alipay.zixiao.protocol.exceptions.InvalidProtocolStateException;
+import com.alipay.zixiao.protocol.exceptions.MalformedCommandException;
+import com.alipay.zixiao.protocol.exceptions.UnknownCommandException;
+import com.alipay.zixiao.util.Clock;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+/**
+ * A text protocol decoder which parses each command line in a single pass over the readable bytes, without
+ * tokenizing it into slices first.
+ * <p/>
+ * The command is dispatched on its first bytes and numeric arguments are parsed straight into primitives of a
+ * command message which is reused for every command of the channel; a get of a single key allocates nothing but
+ * the key. Reusing the message relies on the pipeline handling each command synchronously, before the next one is
+ * decoded, which is how the memcached pipelines are built (there is no executor between decoder and handler).
+ */
+public final class SinglePassCommandDecoder extends FrameDecoder {
+
+    private static final byte[] NOREPLY = "noreply".getBytes();
+
+    private final SessionStatus status;
+    private final CommandMessage<LocalCacheElement> cmd = CommandMessage.command(null);
+
+    /** The token bounds of the line being parsed, as absolute indexes into the buffer. */
+    private int tokenStart;
+    private int tokenEnd;
+
+    public SinglePassCommandDecoder(SessionStatus status) {
+        this.status = status;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (status.state == SessionStatus.State.READY) {
+            final int start = buffer.readerIndex();
+            final int lf = buffer.indexOf(start, buffer.writerIndex(), (byte) '\n');
+            if (lf < 0) {
+                return null;
+            }
+            final int end = (lf > start && buffer.getByte(lf - 1) == '\r') ? lf - 1 : lf;
+            buffer.readerIndex(lf + 1);
+            return processLine(buffer, start, end);
+        } else if (status.state == SessionStatus.State.WAITING_FOR_DATA) {
+            if (buffer.readableBytes() < status.bytesNeeded + 2) {
+                return null;
+            }
+            final int dataEnd = buffer.readerIndex() + status.bytesNeeded;
+            if (buffer.getByte(dataEnd) != '\r' || buffer.getByte(dataEnd + 1) != '\n') {
+                status.ready();
+                throw new IncorrectlyTerminatedPayloadException("payload not terminated correctly");
+            }
+            CommandMessage command = status.cmd;
+            command.element.setData(buffer.slice(buffer.readerIndex(), status.bytesNeeded));
+            buffer.readerIndex(dataEnd + 2);
+            status.ready();
+            return command;
+        }
+        throw new InvalidProtocolStateException("invalid protocol state");
+    }
+
+    /**
+     * Parses the command line between start (inclusive) and end (exclusive).
+     */
+    private Object processLine(ChannelBuffer buffer, int start, int end) throws UnknownCommandException,
+            MalformedCommandException {
+        tokenEnd = start;
+        if (!nextToken(buffer, end)) {
+            throw new UnknownCommandException("empty command");
+        }
+        final Op op = findOp(buffer, tokenStart, tokenEnd - tokenStart);
+        if (op == null) {
+            throw new UnknownCommandException("unknown operation: " + buffer.toString(tokenStart, tokenEnd - tokenStart, MemcachedPipelineFactory.USASCII));
+        }
+        cmd.reset(op);
+
+        switch (op) {
+            case GET:
+            case GETS:
+                while (nextToken(buffer, end)) {
+                    cmd.keys.add(new Key(buffer, tokenStart, tokenEnd - tokenStart));
+                }
+                if (cmd.keys.isEmpty()) {
+                    throw new MalformedCommandException("no key given");
+                }
+                return cmd;
+
+            case DELETE:
+                if (!nextToken(buffer, end)) {
+                    throw new MalformedCommandException("no key given");
+                }
+                cmd.keys.add(new Key(buffer, tokenStart, tokenEnd - tokenStart));
+                if (nextToken(buffer, end)) {
+                    if (isNoreply(buffer)) {
+                        cmd.noreply = true;
+                    } else {
+                        cmd.time = (int) parseLong(buffer);
+                        cmd.noreply = nextToken(buffer, end) && isNoreply(buffer);
+                    }
+                }
+                return cmd;
+
+            case SET:
+            case CAS:
+                if (!nextToken(buffer, end)) {
+                    throw new MalformedCommandException("invalid command length");
+                }
+                final Key key = new Key(buffer, tokenStart, tokenEnd - tokenStart);
+                final int flags = (int) nextLong(buffer, end);
+                final long exptime = nextLong(buffer, end);
+                final int size = (int) nextLong(buffer, end);
+                if (size < 0) {
+                    throw new MalformedCommandException("invalid data length");
+                }
+                if (op == Op.CAS) {
+                    cmd.cas_key = nextLong(buffer, end);
+                }
+                cmd.noreply = nextToken(buffer, end) && isNoreply(buffer);
+                cmd.element = new LocalCacheElement(key, flags, Clock.expiryTime(exptime), 0L);
+
+                // wait for the data block before handing the command on
+                status.needMore(size, cmd);
+                return null;
+
+            default:
+                throw new UnknownCommandException("unknown command: " + op);
+        }
+    }
+
+    /**
+     * Dispatches on the length and first bytes of the command name.
+     */
+    private static Op findOp(ChannelBuffer buffer, int index, int length) {
+        switch (length) {
+            case 3:
+                if (matches(buffer, index, 'g', 'e', 't')) return Op.GET;
+                if (matches(buffer, index, 's', 'e', 't')) return Op.SET;
+                if (matches(buffer, index, 'c', 'a', 's')) return Op.CAS;
+                return null;
+            case 4:
+                if (matches(buffer, index, 'g', 'e', 't') && buffer.getByte(index + 3) == 's') return Op.GETS;
+                return null;
+            case 6:
+                if (matches(buffer, index, 'd', 'e', 'l') && matches(buffer, index + 3, 'e', 't', 'e')) return Op.DELETE;
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean matches(ChannelBuffer buffer, int index, char a, char b, char c) {
+        return buffer.getByte(index) == a && buffer.getByte(index + 1) == b && buffer.getByte(index + 2) == c;
+    }
+
+    /**
+     * Advances to the next space separated token of the line.
+     *
+     * @return false if the line has no more tokens
+     */
+    private boolean nextToken(ChannelBuffer buffer, int end) {
+        int i = tokenEnd;
+        while (i < end && buffer.getByte(i) == ' ') {
+            i++;
+        }
+        if (i == end) {
+            return false;
+        }
+        tokenStart = i;
+        while (i < end && buffer.getByte(i) != ' ') {
+            i++;
+        }
+        tokenEnd = i;
+        return true;
+    }
+
+    private long nextLong(ChannelBuffer buffer, int end) throws MalformedCommandException {
+        if (!nextToken(buffer, end)) {
+            throw new MalformedCommandException("invalid command length");
+        }
+        return parseLong(buffer);
+    }
+
+    /**
+     * Parses the current token as a decimal number.
+     */
+    private long parseLong(ChannelBuffer buffer) throws MalformedCommandException {
+        int i = tokenStart;
+        final boolean negative = buffer.getByte(i) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == tokenEnd) {
+            throw new MalformedCommandException("invalid number");
+        }
+        long value = 0;
+        for (; i < tokenEnd; i++) {
+            final int digit = buffer.getByte(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new MalformedCommandException("invalid number");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private boolean isNoreply(ChannelBuffer buffer) {
+        if (tokenEnd - tokenStart != NOREPLY.length) {
+            return false;
+        }
+        for (int i = 0; i < NOREPLY.length; i++) {
+            if (buffer.getByte(tokenStart + i) != NOREPLY[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,193 @@
+package com.alipay.zixiao.protocol.udp;
+
+import com.alipay.zixiao.cache.Cache;
+import com.alipay.zixiao.cache.StatsRegistry;
+import com.alipay.zixiao.protocol.MemcachedCommandHandler;
+import com.alipay.zixiao.protocol.SessionStatus;
+import com.alipay.zixiao.protocol.binary.MemcachedBinaryCommandDecoder;
+import com.alipay.zixiao.protocol.binary.MemcachedBinaryResponseEncoder;
+import com.alipay.zixiao.protocol.text.MemcachedCommandDecoder;
+import com.alipay.zixiao.protocol.text.MemcachedResponseEncoder;
+import com.alipay.zixiao.protocol.text.SinglePassCommandDecoder;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * memcached的UDP协议：每个数据报前面有8字节的帧头，依次是请求id、序号、数据报总数和保留字段，各2字节
+ * <p/>
+ * A request must fit into a single datagram. Its payload is run through the same decoder, command handler and
+ * encoder as on TCP, inside an embedded pipeline, and the response is split into datagrams of at most
+ * {@link #MAX_DATAGRAM_SIZE} bytes which all carry the request id, their sequence number and the datagram count.
+ * The protocol is detected per request from the first payload byte, as memcached does. Binary quiet responses a
+ * datagram leaves pending are written at its end, since no later command of the request can flush them.
+ */
+@ChannelHandler.Sharable
+public final class MemcachedUdpHandler extends SimpleChannelUpstreamHandler {
+
+    final Logger logger = LoggerFactory.getLogger(MemcachedUdpHandler.class);
+
+    public static final int HEADER_LENGTH = 8;
+
+    /**
+     * memcached的UDP响应每个数据报最多1400字节(包括帧头)，避免IP分片
+     */
+    public static final int MAX_DATAGRAM_SIZE = 1400;
+
+    private static final int BINARY_MAGIC = 0x80;
+
+    private final Cache cache;
+    private final boolean singlePassParser;
+    private final MemcachedCommandHandler commandHandler;
+    private final MemcachedResponseEncoder textEncoder = new MemcachedResponseEncoder();
+    private final MemcachedBinaryResponseEncoder binaryEncoder = new MemcachedBinaryResponseEncoder();
+
+    public MemcachedUdpHandler(Cache cache, boolean verbose, boolean singlePassParser) {
+        this.cache = cache;
+        this.singlePassParser = singlePassParser;
+        // 嵌入的pipeline不会把连接事件传给handler，这个channel group用不到
+        this.commandHandler = new MemcachedCommandHandler(cache, verbose, 0, new DefaultChannelGroup("memcachedUdp"));
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        ChannelBuffer datagram = (ChannelBuffer) e.getMessage();
+        cache.getStats().add(StatsRegistry.Stat.BYTES_READ, datagram.readableBytes());
+        if (datagram.readableBytes() < HEADER_LENGTH) {
+            return;
+        }
+
+        final int start = datagram.readerIndex();
+        final int requestId = datagram.getUnsignedShort(start);
+        final int datagramCount = datagram.getUnsignedShort(start + 4);
+        if (datagramCount != 1) {
+            // 和memcached一样只接受一个数据报的请求
+            logger.debug("dropping a request of " + datagramCount + " datagrams");
+            return;
+        }
+        ChannelBuffer request = datagram.slice(start + HEADER_LENGTH, datagram.readableBytes() - HEADER_LENGTH);
+        if (!request.readable()) {
+            return;
+        }
+
+        ChannelBuffer response = execute(request);
+        if (response.readable()) {
+            send(ctx, e.getRemoteAddress(), requestId, response);
+        }
+    }
+
+    /**
+     * 在嵌入的pipeline里执行请求，收集编码器写出的响应
+     */
+    private ChannelBuffer execute(ChannelBuffer request) {
+        final boolean binary = request.getUnsignedByte(request.readerIndex()) == BINARY_MAGIC;
+        DatagramEmbedder embedder;
+        if (binary) {
+            embedder = new DatagramEmbedder(DetachedSession.INSTANCE, new MemcachedBinaryCommandDecoder(),
+                    commandHandler, binaryEncoder);
+        } else {
+            SessionStatus status = new SessionStatus().ready();
+            embedder = new DatagramEmbedder(DetachedSession.INSTANCE,
+                    singlePassParser ? new SinglePassCommandDecoder(status) : new MemcachedCommandDecoder(status),
+                    commandHandler, textEncoder);
+        }
+        embedder.offer(request);
+        if (binary) {
+            // 没有以Noop结尾的静默命令(比如单独一个GetQ)的响应还攒在编码器里，持有着缓存元素
+            binaryEncoder.flushQuietResponses(embedder.context(binaryEncoder));
+        }
+
+        List<ChannelBuffer> written = new ArrayList<ChannelBuffer>();
+        for (Object product : embedder.pollAll()) {
+            if (product instanceof ChannelBuffer) {
+                written.add((ChannelBuffer) product);
+            }
+        }
+        return ChannelBuffers.wrappedBuffer(written.toArray(new ChannelBuffer[written.size()]));
+    }
+
+    /**
+     * 把响应切成多个数据报发出
+     */
+    private void send(ChannelHandlerContext ctx, SocketAddress remote, int requestId, ChannelBuffer response) {
+        final int payloadSize = MAX_DATAGRAM_SIZE - HEADER_LENGTH;
+        final int count = (response.readableBytes() + payloadSize - 1) / payloadSize;
+        if (count > 0xFFFF) {
+            logger.warn("response of " + response.readableBytes() + " bytes is too large for UDP");
+            return;
+        }
+        for (int sequence = 0; sequence < count; sequence++) {
+            int length = Math.min(payloadSize, response.readableBytes());
+            ChannelBuffer header = ChannelBuffers.buffer(HEADER_LENGTH);
+            header.writeShort(requestId);
+            header.writeShort(sequence);
+            header.writeShort(count);
+            header.writeShort(0);
+            ChannelBuffer datagram = ChannelBuffers.wrappedBuffer(header, response.readSlice(length));
+            cache.getStats().add(StatsRegistry.Stat.BYTES_WRITTEN, datagram.readableBytes());
+            ctx.getChannel().write(datagram, remote);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+        // 一个坏的数据报不能关掉整个UDP监听
+        logger.error("error handling a datagram", e.getCause());
+    }
+
+    /**
+     * 一个数据报的嵌入pipeline，可以取到其中handler的context
+     */
+    private static final class DatagramEmbedder extends DecoderEmbedder<Object> {
+        DatagramEmbedder(ChannelUpstreamHandler... handlers) {
+            super(handlers);
+        }
+
+        ChannelHandlerContext context(ChannelHandler handler) {
+            return getChannel().getPipeline().getContext(handler);
+        }
+    }
+
+    /**
+     * 每个请求一个嵌入的pipeline，它的打开和关闭不是真正的连接，不传给后面的handler，以免计入连接数。
+     * 嵌入的pipeline不会完成写的future，这里拷贝一份响应以后完成它，编码器才会释放响应引用的缓存元素
+     */
+    @ChannelHandler.Sharable
+    private static final class DetachedSession extends SimpleChannelUpstreamHandler implements ChannelDownstreamHandler {
+        static final DetachedSession INSTANCE = new DetachedSession();
+
+        @Override
+        public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+            if (!(e instanceof ChannelStateEvent)) {
+                ctx.sendUpstream(e);
+            }
+        }
+
+        public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+            if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof ChannelBuffer) {
+                ChannelBuffer response = (ChannelBuffer) ((MessageEvent) e).getMessage();
+                Channels.write(ctx, Channels.future(ctx.getChannel()), ChannelBuffers.copiedBuffer(response));
+                e.getFuture().setSuccess();
+            } else {
+                ctx.sendDownstream(e);
+            }
+        }
+    }
+}
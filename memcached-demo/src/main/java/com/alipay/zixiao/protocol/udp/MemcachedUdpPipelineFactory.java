@@ -0,0 +1,22 @@
+package com.alipay.zixiao.protocol.udp;
+
+import com.alipay.zixiao.cache.Cache;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+
+/**
+ * UDP监听的pipeline，所有数据报都由同一个handler处理
+ */
+public final class MemcachedUdpPipelineFactory implements ChannelPipelineFactory {
+
+    private final MemcachedUdpHandler udpHandler;
+
+    public MemcachedUdpPipelineFactory(Cache cache, boolean verbose, boolean singlePassParser) {
+        udpHandler = new MemcachedUdpHandler(cache, verbose, singlePassParser);
+    }
+
+    public ChannelPipeline getPipeline() throws Exception {
+        return Channels.pipeline(udpHandler);
+    }
+}
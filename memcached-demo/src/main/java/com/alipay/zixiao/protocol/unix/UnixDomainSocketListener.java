@@ -0,0 +1,329 @@
+package com.alipay.zixiao.protocol.unix;
+
+import com.alipay.zixiao.util.NamedThreadFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在unix domain socket上提供服务，用于和应用部署在同一台机器上的情况，省掉本机TCP的开销
+ * <p/>
+ * Netty 3 has no unix domain socket transport, so connections are accepted and read with the JDK's
+ * {@code UNIX} socket channels (Java 16+, looked up reflectively) on a thread per connection. The bytes of each
+ * connection are fed into its own instance of the regular pipeline, built by the same pipeline factory as for TCP
+ * and run in an embedded channel; the buffers the pipeline writes are sent back with one gathering write per read.
+ */
+public final class UnixDomainSocketListener {
+
+    final Logger logger = LoggerFactory.getLogger(UnixDomainSocketListener.class);
+
+    /**
+     * 默认只有属主可以连接
+     */
+    public static final String DEFAULT_PERMISSIONS = "rw-------";
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int STOP_TIMEOUT_SECONDS = 10;
+
+    private static final Method OPEN_SERVER = findOpenServer();
+    private static final Method ADDRESS_OF = findAddressOf();
+    private static final ProtocolFamily UNIX = findUnixFamily();
+
+    private final File path;
+    private final String permissions;
+    private final ChannelPipelineFactory pipelineFactory;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new NamedThreadFactory("memcached-unix", true));
+    private final Set<SocketChannel> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<SocketChannel, Boolean>());
+
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    /**
+     * @param path            the path of the socket file, an existing file is replaced
+     * @param permissions     the permissions of the socket file, e.g. "rw-rw----"; clients need write permission
+     * @param pipelineFactory the factory of the pipeline serving each connection
+     */
+    public UnixDomainSocketListener(File path, String permissions, ChannelPipelineFactory pipelineFactory) {
+        this.path = path;
+        this.permissions = permissions;
+        this.pipelineFactory = pipelineFactory;
+    }
+
+    private static Method findOpenServer() {
+        try {
+            return ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Method findAddressOf() {
+        try {
+            return Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static ProtocolFamily findUnixFamily() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether this JVM supports unix domain sockets (Java 16 or later)
+     */
+    public static boolean isSupported() {
+        return OPEN_SERVER != null && ADDRESS_OF != null && UNIX != null;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    public synchronized void start() throws IOException {
+        if (!isSupported()) {
+            throw new IOException("unix domain sockets need Java 16 or later");
+        }
+        // 上次没有清理掉的socket文件会导致绑定失败
+        Files.deleteIfExists(path.toPath());
+        try {
+            serverChannel = (ServerSocketChannel) OPEN_SERVER.invoke(null, UNIX);
+            serverChannel.bind((SocketAddress) ADDRESS_OF.invoke(null, path.toPath()));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("cannot bind unix domain socket " + path, e);
+        }
+        if (permissions != null) {
+            Files.setPosixFilePermissions(path.toPath(), PosixFilePermissions.fromString(permissions));
+        }
+        running = true;
+        executor.execute(new Runnable() {
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * 关闭监听和所有连接，删除socket文件
+     */
+    public synchronized void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.warn("error closing unix domain socket " + path, e);
+        }
+        for (SocketChannel connection : connections) {
+            closeQuietly(connection);
+        }
+        executor.shutdown();
+        // 连接线程结束的时候关闭各自的pipeline，连接才会从channel group里移除
+        try {
+            if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("unix domain socket connections did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            Files.deleteIfExists(path.toPath());
+        } catch (IOException e) {
+            logger.warn("cannot delete unix domain socket " + path, e);
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final SocketChannel connection = serverChannel.accept();
+                connections.add(connection);
+                executor.execute(new Runnable() {
+                    public void run() {
+                        serve(connection);
+                    }
+                });
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("error accepting on unix domain socket " + path, e);
+                }
+                return;
+            }
+        }
+    }
+
+    private void serve(SocketChannel connection) {
+        Bridge bridge = new Bridge();
+        DecoderEmbedder<Object> embedder;
+        try {
+            embedder = new DecoderEmbedder<Object>(handlers(bridge));
+        } catch (Exception e) {
+            logger.error("cannot create the pipeline", e);
+            closeQuietly(connection);
+            connections.remove(connection);
+            return;
+        }
+
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try {
+            while (!bridge.closed && connection.read(in) >= 0) {
+                in.flip();
+                // 解码出来的key和value是输入的切片，每次读都用新的缓冲区
+                embedder.offer(ChannelBuffers.copiedBuffer(in));
+                in.clear();
+                bridge.flushTo(connection);
+                // 丢掉没有被编码器处理的上行消息
+                embedder.pollAll();
+            }
+        } catch (Exception e) {
+            if (running) {
+                logger.debug("unix domain socket connection failed", e);
+            }
+        } finally {
+            closeQuietly(connection);
+            connections.remove(connection);
+            bridge.discard();
+            try {
+                embedder.finish();
+            } catch (RuntimeException e) {
+                logger.debug("error closing the pipeline", e);
+            }
+        }
+    }
+
+    /**
+     * 连接自己的pipeline，最前面是把写出的数据交给socket的bridge
+     */
+    private ChannelUpstreamHandler[] handlers(Bridge bridge) throws Exception {
+        ChannelPipeline pipeline = pipelineFactory.getPipeline();
+        List<ChannelUpstreamHandler> handlers = new ArrayList<ChannelUpstreamHandler>();
+        handlers.add(bridge);
+        for (ChannelHandler handler : pipeline.toMap().values()) {
+            if (!(handler instanceof ChannelUpstreamHandler)) {
+                throw new IllegalArgumentException("unsupported downstream only handler " + handler);
+            }
+            handlers.add((ChannelUpstreamHandler) handler);
+        }
+        return handlers.toArray(new ChannelUpstreamHandler[handlers.size()]);
+    }
+
+    private static void closeQuietly(SocketChannel connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * 收集pipeline写出的缓冲区，读处理完以后一次写到socket上；pipeline请求关闭的时候结束连接
+     */
+    private static final class Bridge extends SimpleChannelHandler {
+        final List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>();
+        final List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+        volatile boolean closed;
+        private ChannelHandlerContext ctx;
+
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            this.ctx = ctx;
+            ctx.sendUpstream(e);
+        }
+
+        @Override
+        public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            buffers.add((ChannelBuffer) e.getMessage());
+            futures.add(e.getFuture());
+        }
+
+        @Override
+        public void closeRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            closed = true;
+            e.getFuture().setSuccess();
+        }
+
+        /**
+         * 连接已经关闭，没写出去的数据作废，让写的发起方知道
+         */
+        void discard() {
+            ClosedChannelException closed = new ClosedChannelException();
+            for (ChannelFuture future : futures) {
+                future.setFailure(closed);
+            }
+            buffers.clear();
+            futures.clear();
+        }
+
+        void flushTo(SocketChannel connection) throws IOException {
+            if (buffers.isEmpty()) {
+                return;
+            }
+            ChannelBuffer batch = ChannelBuffers.wrappedBuffer(buffers.toArray(new ChannelBuffer[buffers.size()]));
+            List<ChannelFuture> written = new ArrayList<ChannelFuture>(futures);
+            buffers.clear();
+            futures.clear();
+
+            final long amount = batch.readableBytes();
+            ByteBuffer[] out = batch.toByteBuffers();
+            try {
+                long remaining = amount;
+                while (remaining > 0) {
+                    remaining -= connection.write(out);
+                }
+            } catch (IOException e) {
+                for (ChannelFuture future : written) {
+                    future.setFailure(e);
+                }
+                throw e;
+            }
+            for (ChannelFuture future : written) {
+                future.setSuccess();
+            }
+            if (ctx != null) {
+                Channels.fireWriteComplete(ctx.getChannel(), amount);
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.alipay.zixiao.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按大小分级的byte[]池，存储元素的key和value，减少每次写入分配新数组带来的young gc
+ * <p/>
+ * Requests are rounded up to a power of two between {@link #MIN_CHUNK_SIZE} and {@link #MAX_CHUNK_SIZE}; larger
+ * requests get an exact, unpooled array. Every allocation returns a new {@link Chunk} with a reference count of
+ * one, and the array goes back to the free list of its size class when the count drops to zero. Only the arrays
+ * are recycled, never the chunks, so a reader holding a stale chunk can not pin an array that was reused since:
+ * its {@link Chunk#retain()} simply fails. A chunk that is never released is not a correctness problem, its array
+ * is garbage collected instead of reused; {@link #setLeakDetection(boolean) leak detection} finds those for tests.
+ * <p/>
+ * Every set, replace and delete goes through the pool from every I/O thread, so nothing on that path takes a lock:
+ * the free lists are lock-free queues, bounded by a count per class, and the statistics are {@link LongAdder}s.
+ */
+public final class BufferPool {
+
+    public static final int MIN_CHUNK_SIZE = 64;
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * 默认最多缓存64M空闲的数组
+     */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * 每个大小级别空闲列表的最大长度，限制小数组级别的队列本身占用的内存
+     */
+    private static final int MAX_FREE_PER_CLASS = 4096;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_CHUNK_SIZE) - MIN_SHIFT + 1;
+
+    private final ConcurrentLinkedQueue<byte[]>[] free;
+    private final AtomicInteger[]                 freeCount;
+    private final int[]                           maxFree;
+
+    private final LongAdder hits         = new LongAdder();
+    private final LongAdder misses       = new LongAdder();
+    private final LongAdder chunksInUse  = new LongAdder();
+    private final LongAdder bytesInUse   = new LongAdder();
+    private final LongAdder bytesPooled  = new LongAdder();
+
+    private volatile boolean leakDetection;
+    private final Map<Chunk, Throwable> live = new ConcurrentHashMap<Chunk, Throwable>();
+
+    public BufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    /**
+     * @param maxPooledBytes the maximum number of bytes kept in free arrays, split evenly over the size classes
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(long maxPooledBytes) {
+        free = new ConcurrentLinkedQueue[CLASS_COUNT];
+        freeCount = new AtomicInteger[CLASS_COUNT];
+        maxFree = new int[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            long perClass = maxPooledBytes / CLASS_COUNT / classSize(i);
+            free[i] = new ConcurrentLinkedQueue<byte[]>();
+            freeCount[i] = new AtomicInteger();
+            maxFree[i] = (int) Math.max(1, Math.min(MAX_FREE_PER_CLASS, perClass));
+        }
+    }
+
+    private static int classSize(int index) {
+        return 1 << (index + MIN_SHIFT);
+    }
+
+    /**
+     * @return the index of the smallest size class holding size bytes, or -1 if it is too large to be pooled
+     */
+    private static int classIndex(int size) {
+        if (size > MAX_CHUNK_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_CHUNK_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * 分配一块至少size字节的内存，引用计数为1
+     *
+     * @param size the number of bytes needed; the array of the chunk may be larger
+     */
+    public Chunk allocate(int size) {
+        final int index = classIndex(size);
+        byte[] array = index < 0 ? null : free[index].poll();
+        if (array != null) {
+            freeCount[index].decrementAndGet();
+            hits.increment();
+            bytesPooled.add(-array.length);
+        } else {
+            misses.increment();
+            array = new byte[index < 0 ? size : classSize(index)];
+        }
+        Chunk chunk = new Chunk(this, array);
+        chunksInUse.increment();
+        bytesInUse.add(array.length);
+        if (leakDetection) {
+            live.put(chunk, new Throwable("chunk of " + size + " bytes allocated here"));
+        }
+        return chunk;
+    }
+
+    private void recycle(Chunk chunk) {
+        chunksInUse.decrement();
+        bytesInUse.add(-chunk.array.length);
+        if (leakDetection) {
+            live.remove(chunk);
+        }
+        final int index = classIndex(chunk.array.length);
+        // 只回收正好是某个级别大小的数组，超大的直接丢给gc
+        if (index < 0 || classSize(index) != chunk.array.length) {
+            return;
+        }
+        // 空闲列表满了也丢给gc；先占位再入队，并发的时候也不会超过上限
+        if (freeCount[index].incrementAndGet() > maxFree[index]) {
+            freeCount[index].decrementAndGet();
+            return;
+        }
+        free[index].offer(chunk.array);
+        bytesPooled.add(chunk.array.length);
+    }
+
+    /**
+     * 打开以后记录每个还没有释放的chunk的分配位置，只用于测试
+     */
+    public void setLeakDetection(boolean enabled) {
+        leakDetection = enabled;
+        if (!enabled) {
+            live.clear();
+        }
+    }
+
+    /**
+     * @return the allocation traces of the chunks allocated since leak detection was enabled and not released yet
+     */
+    public List<Throwable> leaks() {
+        return new ArrayList<Throwable>(live.values());
+    }
+
+    /**
+     * @return the number of chunks allocated and not released yet
+     */
+    public long getChunksInUse() {
+        return chunksInUse.sum();
+    }
+
+    /**
+     * @return the size of the arrays of the chunks in use
+     */
+    public long getBytesInUse() {
+        return bytesInUse.sum();
+    }
+
+    /**
+     * @return the size of the free arrays waiting to be reused
+     */
+    public long getBytesPooled() {
+        return bytesPooled.sum();
+    }
+
+    /**
+     * @return the number of allocations served from a free array
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of allocations which created a new array
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * 池里分配的一块内存和它的引用计数
+     */
+    public static final class Chunk {
+        private static final AtomicIntegerFieldUpdater<Chunk> REF_CNT =
+                AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "refCnt");
+
+        private final BufferPool pool;
+        private final byte[] array;
+        private volatile int refCnt = 1;
+
+        Chunk(BufferPool pool, byte[] array) {
+            this.pool = pool;
+            this.array = array;
+        }
+
+        public byte[] array() {
+            return array;
+        }
+
+        /**
+         * 增加一个引用
+         *
+         * @return false if the chunk was released already, its array must not be used anymore
+         */
+        public boolean retain() {
+            for (; ;) {
+                final int count = refCnt;
+                if (count == 0) {
+                    return false;
+                }
+                if (REF_CNT.compareAndSet(this, count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 释放一个引用，最后一个引用释放的时候数组回到池里
+         *
+         * @throws IllegalStateException if the chunk was released already
+         */
+        public void release() {
+            for (; ;) {
+                final int count = refCnt;
+                if (count == 0) {
+                    throw new IllegalStateException("chunk released more often than retained");
+                }
+                if (REF_CNT.compareAndSet(this, count, count - 1)) {
+                    if (count == 1) {
+                        pool.recycle(this);
+                    }
+                    return;
+                }
+            }
+        }
+
+        public int refCnt() {
+            return refCnt;
+        }
+    }
+}
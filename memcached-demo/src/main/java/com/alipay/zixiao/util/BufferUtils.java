@@ -144,6 +144,40 @@ public class BufferUtils {
         return negative ? result : -result;
     }
 
+    /**
+     * Parses the readable bytes as an unsigned 64 bit decimal, as memcached keeps its counters.
+     * @return the value, negative if it is 2^63 or more
+     */
+    public static long atoul(ChannelBuffer s)
+            throws NumberFormatException
+    {
+        final int start = s.readerIndex(), len = s.readableBytes();
+        if (len == 0) {
+            throw new NumberFormatException();
+        }
+        long result = 0;
+        for (int i = 0; i < len; i++) {
+            int digit = Character.digit(s.getByte(start + i), 10);
+            if (digit < 0) {
+                throw new NumberFormatException();
+            }
+            // result * 10 + digit must stay below 2^64
+            if (Long.compareUnsigned(result, Long.divideUnsigned(-1L - digit, 10)) > 0) {
+                throw new NumberFormatException();
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    /**
+     * @param i an unsigned 64 bit number
+     * @return its decimal representation
+     */
+    public static ChannelBuffer ultoa(long i) {
+        return i >= 0 ? ltoa(i) : ChannelBuffers.copiedBuffer(Long.toUnsignedString(i).getBytes());
+    }
+
     /** Blatant copy of Integer.toString, but returning a byte array instead of a String, as
      *  string charset decoding/encoding was killing us on performance.
      * @param i integer to convert
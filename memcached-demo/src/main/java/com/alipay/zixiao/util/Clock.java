@@ -0,0 +1,80 @@
+package com.alipay.zixiao.util;
+
+/**
+ * 全局共享的粗粒度时钟。后台线程按固定精度刷新一个volatile的时间戳，
+ * 读时间只是一次volatile读，不再在每个请求里调用System.currentTimeMillis()
+ * <p/>
+ * All expiry, blocking and uptime logic works in absolute milliseconds since the epoch as read from this clock.
+ */
+public final class Clock {
+
+    public static final long DEFAULT_RESOLUTION_MILLIS = 10;
+
+    /**
+     * memcached协议里小于等于30天的过期时间是相对时间，大于30天的是unix时间戳(秒)
+     */
+    public static final long RELATIVE_EXPTIME_LIMIT = 60 * 60 * 24 * 30;
+
+    private static volatile long now = System.currentTimeMillis();
+    private static volatile long resolution = DEFAULT_RESOLUTION_MILLIS;
+
+    static {
+        Thread ticker = new Thread(new Runnable() {
+            public void run() {
+                for (; ;) {
+                    try {
+                        Thread.sleep(resolution);
+                    } catch (InterruptedException e) {
+                        // keep ticking, the clock lives as long as the JVM
+                    }
+                    now = System.currentTimeMillis();
+                }
+            }
+        }, "memcached-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private Clock() {
+    }
+
+    /**
+     * @return the current time in milliseconds since the epoch, accurate to the clock's resolution
+     */
+    public static long now() {
+        return now;
+    }
+
+    public static long getResolution() {
+        return resolution;
+    }
+
+    /**
+     * 设置时钟的刷新精度
+     *
+     * @param millis how often the timestamp is refreshed, in milliseconds
+     */
+    public static void setResolution(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("resolution must be positive");
+        }
+        resolution = millis;
+    }
+
+    /**
+     * Converts a memcached exptime to an absolute expiry time on this clock.
+     *
+     * @param exptime 0 for never, up to 30 days a number of seconds from now, otherwise a unix time in seconds;
+     *                negative values expire immediately
+     * @return the expiry time in milliseconds since the epoch, or 0 for never
+     */
+    public static long expiryTime(long exptime) {
+        if (exptime == 0) {
+            return 0;
+        }
+        if (exptime < 0) {
+            return now - 1;
+        }
+        return exptime <= RELATIVE_EXPTIME_LIMIT ? now + exptime * 1000 : exptime * 1000;
+    }
+}
@@ -0,0 +1,37 @@
+package com.alipay.zixiao.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按"前缀-序号"命名线程的ThreadFactory，方便在jstack和监控里区分线程
+ */
+public final class NamedThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final boolean daemon;
+    private final ThreadFactory delegate;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    public NamedThreadFactory(String prefix, boolean daemon) {
+        this(prefix, daemon, null);
+    }
+
+    /**
+     * @param prefix   the name prefix, threads are named prefix-1, prefix-2, ...
+     * @param daemon   whether the threads are daemon threads
+     * @param delegate creates the threads before they are named, e.g. to pin them to a CPU; may be null
+     */
+    public NamedThreadFactory(String prefix, boolean daemon, ThreadFactory delegate) {
+        this.prefix = prefix;
+        this.daemon = daemon;
+        this.delegate = delegate;
+    }
+
+    public Thread newThread(Runnable r) {
+        Thread thread = delegate != null ? delegate.newThread(r) : new Thread(r);
+        thread.setName(prefix + "-" + sequence.incrementAndGet());
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
@@ -0,0 +1,94 @@
+package com.alipay.zixiao.util;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+/**
+ * 给netty的NIO监听socket打开SO_REUSEPORT，多个监听socket绑定同一个地址，由内核在它们之间分配新连接
+ * <p/>
+ * SO_REUSEPORT is only part of the JDK since Java 9 and Netty 3 doesn't expose the underlying
+ * {@link java.nio.channels.ServerSocketChannel}, so both are looked up reflectively; {@link #isSupported()} tells
+ * whether that worked on this JVM and operating system.
+ */
+public final class ReusePort {
+
+    private static final SocketOption<Boolean> SO_REUSEPORT = findOption();
+    private static final Field SERVER_SOCKET = findServerSocket();
+
+    private ReusePort() {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findOption() {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            java.nio.channels.ServerSocketChannel probe = java.nio.channels.ServerSocketChannel.open();
+            try {
+                return probe.supportedOptions().contains(option) ? option : null;
+            } finally {
+                probe.close();
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Field findServerSocket() {
+        try {
+            Field field = Class.forName("org.jboss.netty.channel.socket.nio.NioServerSocketChannel").getDeclaredField("socket");
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether SO_REUSEPORT can be set on the listening sockets of the NIO transport
+     */
+    public static boolean isSupported() {
+        return SO_REUSEPORT != null && SERVER_SOCKET != null;
+    }
+
+    /**
+     * 必须在监听socket绑定之前调用
+     *
+     * @param serverChannel an unbound server channel of the netty NIO transport
+     */
+    public static void enable(Channel serverChannel) throws IOException {
+        if (!isSupported()) {
+            throw new IOException("SO_REUSEPORT is not supported");
+        }
+        try {
+            ((NetworkChannel) SERVER_SOCKET.get(serverChannel)).setOption(SO_REUSEPORT, true);
+        } catch (IllegalAccessException e) {
+            throw new IOException("cannot access the server socket", e);
+        }
+    }
+
+    /**
+     * @return a handler for {@link org.jboss.netty.bootstrap.ServerBootstrap#setParentHandler}, which enables
+     *         SO_REUSEPORT when the listening channel is opened, before the bootstrap binds it
+     */
+    public static ChannelHandler parentHandler() {
+        return new ParentHandler();
+    }
+
+    @ChannelHandler.Sharable
+    private static final class ParentHandler extends SimpleChannelUpstreamHandler {
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            enable(e.getChannel());
+            ctx.sendUpstream(e);
+        }
+    }
+}
@@ -34,13 +34,14 @@ public abstract class AbstractCacheTest {
 
 
     public static enum ProtocolMode {
-        TEXT, BINARY
+        TEXT, TEXT_SINGLE_PASS, BINARY
     }
 
     @Parameterized.Parameters
     public static Collection blockSizeValues() {
         return Arrays.asList(new Object[][] {
                 {  ProtocolMode.TEXT },
+                {  ProtocolMode.TEXT_SINGLE_PASS },
                 {  ProtocolMode.BINARY }
 
         });
@@ -55,6 +56,7 @@ public abstract class AbstractCacheTest {
 
         daemon.setCache(new CacheImpl(cacheStorage));
         daemon.setBinary(protocolMode == ProtocolMode.BINARY);
+        daemon.setSinglePassParser(protocolMode == ProtocolMode.TEXT_SINGLE_PASS);
         
         port = AvailablePortFinder.getNextAvailable();
         daemon.setAddr(new InetSocketAddress(port));
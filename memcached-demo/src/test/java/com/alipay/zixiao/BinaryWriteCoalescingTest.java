@@ -0,0 +1,105 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.protocol.MemcachedCommandHandler;
+import com.alipay.zixiao.protocol.WriteCoalescingHandler;
+import com.alipay.zixiao.protocol.binary.MemcachedBinaryCommandDecoder;
+import com.alipay.zixiao.protocol.binary.MemcachedBinaryCommandDecoder.BinaryOp;
+import com.alipay.zixiao.protocol.binary.MemcachedBinaryResponseEncoder;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.alipay.zixiao.CacheTestSupport.binaryRequest;
+import static com.alipay.zixiao.CacheTestSupport.cache;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 测试二进制协议下每个响应、每次读各只写一次，包括静默命令攒下的响应
+ */
+public class BinaryWriteCoalescingTest {
+
+    private DecoderEmbedder<ChannelBuffer> embedder;
+
+    @Before
+    public void setUp() {
+        embedder = new DecoderEmbedder<ChannelBuffer>(
+                new WriteCoalescingHandler(),
+                new MemcachedBinaryCommandDecoder(),
+                new MemcachedCommandHandler(cache(), false, 0, new DefaultChannelGroup()),
+                new MemcachedBinaryResponseEncoder());
+    }
+
+    /**
+     * @return the opaques of the response packets in the buffer, in order
+     */
+    private static List<Integer> opaques(ChannelBuffer written) {
+        List<Integer> opaques = new ArrayList<Integer>();
+        while (written.readable()) {
+            assertEquals(0x81, written.getUnsignedByte(written.readerIndex()));
+            int bodyLength = written.getInt(written.readerIndex() + 8);
+            opaques.add(written.getInt(written.readerIndex() + 12));
+            written.skipBytes(24 + bodyLength);
+        }
+        return opaques;
+    }
+
+    @Test
+    public void testResponsesOfOneReadAreWrittenOnce() {
+        embedder.offer(ChannelBuffers.wrappedBuffer(
+                binaryRequest(BinaryOp.Set, "a", "1", 1),
+                binaryRequest(BinaryOp.Get, "a", null, 2),
+                binaryRequest(BinaryOp.GetK, "missing", null, 3)));
+
+        assertEquals(Arrays.asList(1, 2, 3), opaques(embedder.poll()));
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void testEachReadIsWrittenOnce() {
+        embedder.offer(binaryRequest(BinaryOp.Set, "a", "1", 1));
+        embedder.offer(binaryRequest(BinaryOp.Get, "a", null, 2));
+
+        // 带flags、key和value的get响应也是一次写
+        assertEquals(Arrays.asList(1), opaques(embedder.poll()));
+        assertEquals(Arrays.asList(2), opaques(embedder.poll()));
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void testQuietBatchIsWrittenWithTheNoop() {
+        embedder.offer(ChannelBuffers.wrappedBuffer(
+                binaryRequest(BinaryOp.SetQ, "a", "1", 1),
+                binaryRequest(BinaryOp.SetQ, "b", "2", 2),
+                binaryRequest(BinaryOp.GetKQ, "a", null, 3),
+                binaryRequest(BinaryOp.GetKQ, "missing", null, 4),
+                binaryRequest(BinaryOp.GetKQ, "b", null, 5),
+                binaryRequest(BinaryOp.Noop, null, null, 6)));
+
+        // 静默的set和未命中不应答，其余的和Noop的应答一起写出
+        assertEquals(Arrays.asList(3, 5, 6), opaques(embedder.poll()));
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void testQuietBatchSpanningReadsIsWrittenOnce() {
+        embedder.offer(ChannelBuffers.wrappedBuffer(
+                binaryRequest(BinaryOp.SetQ, "a", "1", 1),
+                binaryRequest(BinaryOp.GetKQ, "a", null, 2)));
+        // 静默响应攒到下一个非静默命令
+        assertNull(embedder.poll());
+
+        embedder.offer(ChannelBuffers.wrappedBuffer(
+                binaryRequest(BinaryOp.GetKQ, "a", null, 3),
+                binaryRequest(BinaryOp.Noop, null, null, 4)));
+        assertEquals(Arrays.asList(2, 3, 4), opaques(embedder.poll()));
+        assertNull(embedder.poll());
+    }
+}
@@ -0,0 +1,229 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.Cache;
+import com.alipay.zixiao.cache.CacheImpl;
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.MaintenanceScheduler;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import com.alipay.zixiao.cache.storage.CacheStorage;
+import com.alipay.zixiao.util.BufferPool;
+import net.spy.memcached.AddrUtil;
+import net.spy.memcached.MemcachedClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+import static com.alipay.zixiao.CacheTestSupport.ASCII;
+import static com.alipay.zixiao.CacheTestSupport.element;
+import static com.alipay.zixiao.CacheTestSupport.key;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 内存池测试：数组的复用，以及元素被替换、删除、淘汰以后内存回到池里
+ */
+public class BufferPoolTest {
+
+    private BufferPool pool;
+    private CacheImpl cache;
+
+    // 存储的方法被调用时插入的一次写入，模拟并发的修改
+    private volatile String   interleavedMethod;
+    private volatile boolean  interleavedAfter;
+    private volatile Runnable interleavedWrite;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        pool = new BufferPool();
+        pool.setLeakDetection(true);
+        final CacheStorage<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap
+                .create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, 10, 4 * 1024 * 1024);
+        CacheStorage<Key, LocalCacheElement> interleaving = (CacheStorage<Key, LocalCacheElement>) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{CacheStorage.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        final Runnable write = interleavedWrite;
+                        if ((write == null) || !method.getName().equals(interleavedMethod)) {
+                            return method.invoke(storage, args);
+                        }
+                        interleavedWrite = null;
+                        if (!interleavedAfter) {
+                            write.run();
+                        }
+                        final Object result = method.invoke(storage, args);
+                        if (interleavedAfter) {
+                            write.run();
+                        }
+                        return result;
+                    }
+                });
+        cache = new CacheImpl(interleaving, MaintenanceScheduler.DEFAULT_PERIOD_MILLIS, MaintenanceScheduler.DEFAULT_BUDGET, pool);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    @Test
+    public void testArraysAreReused() {
+        BufferPool.Chunk chunk = pool.allocate(100);
+        byte[] array = chunk.array();
+        assertEquals(128, array.length);
+        chunk.release();
+        assertFalse(chunk.retain());
+        try {
+            chunk.release();
+            fail("a released chunk must not be released again");
+        } catch (IllegalStateException expected) {
+        }
+
+        assertSame(array, pool.allocate(120).array());
+        assertEquals(1, pool.getHits());
+        assertEquals(2 * 1024 * 1024, pool.allocate(2 * 1024 * 1024).array().length);
+    }
+
+    /**
+     * 替换、追加、计数、删除、淘汰和flush以后，所有内存都回到池里
+     */
+    @Test
+    public void testElementsAreReleased() {
+        cache.set(element("key", "value"));
+        cache.set(element("key", "other"));
+        cache.append(element("key", "-tail"));
+        cache.set(element("counter", "1"));
+        assertEquals(Long.valueOf(6), cache.get_add(key("counter"), 5, true));
+        cache.touch(key("counter"), 0).release();
+        assertEquals(Cache.StoreResponse.NOT_STORED, cache.add(element("key", "ignored")));
+        assertEquals(Cache.DeleteResponse.DELETED, cache.delete(key("counter"), 0));
+        // 超过10个元素以后开始淘汰
+        for (int i = 0; i < 20; i++) {
+            cache.set(element("key" + i, "value" + i));
+        }
+
+        LocalCacheElement[] found = cache.get(key("key19"), key("missing"));
+        assertEquals("value19", found[0].getData().toString(ASCII));
+        // 读取者持有的旧value在替换以后仍然有效，释放以后才回到池里
+        cache.set(element("key19", "replaced"));
+        assertEquals("value19", found[0].getData().toString(ASCII));
+        assertEquals(cache.getCurrentItems() + 1, pool.getChunksInUse());
+        found[0].release();
+        assertEquals(cache.getCurrentItems(), pool.getChunksInUse());
+        assertEquals(Collections.singleton(String.valueOf(cache.getCurrentItems())),
+                cache.stat(null).get("pool_chunks_in_use"));
+
+        cache.flush_all();
+        assertEquals(0, pool.getChunksInUse());
+        assertTrue(pool.leaks().isEmpty());
+        assertTrue(pool.getBytesPooled() > 0);
+    }
+
+    /**
+     * touch读到元素以后、替换之前有set：重新读取，旧元素共享的内存只释放一次
+     */
+    @Test
+    public void testTouchRacingSet() {
+        cache.set(element("key", "first"));
+        interleave("replace", false, new Runnable() {
+            public void run() {
+                cache.set(element("key", "second"));
+            }
+        });
+        LocalCacheElement touched = cache.touch(key("key"), 0);
+        assertEquals("second", touched.getData().toString(ASCII));
+        touched.release();
+        assertReleased();
+    }
+
+    /**
+     * append和计数读到的元素刚好被set替换并释放：重新读取而不是失败
+     */
+    @Test
+    public void testAppendAndIncrRacingSet() {
+        cache.set(element("key", "first"));
+        interleave("get", true, new Runnable() {
+            public void run() {
+                cache.set(element("key", "second"));
+            }
+        });
+        assertEquals(Cache.StoreResponse.STORED, cache.append(element("key", "-tail")));
+        interleave("get", true, new Runnable() {
+            public void run() {
+                cache.set(element("key", "third"));
+            }
+        });
+        assertEquals(Cache.StoreResponse.STORED, cache.prepend(element("key", "head-")));
+        LocalCacheElement found = cache.get(key("key"))[0];
+        assertEquals("head-third", found.getData().toString(ASCII));
+        found.release();
+
+        cache.set(element("counter", "1"));
+        interleave("get", true, new Runnable() {
+            public void run() {
+                cache.set(element("counter", "10"));
+            }
+        });
+        assertEquals(Long.valueOf(15), cache.get_add(key("counter"), 5, true));
+        // 替换失败的时候在新的值上重新计算
+        interleave("replace", false, new Runnable() {
+            public void run() {
+                cache.get_add(key("counter"), 1, true);
+            }
+        });
+        assertEquals(Long.valueOf(21), cache.get_add(key("counter"), 5, true));
+        assertReleased();
+    }
+
+    private void interleave(String method, boolean after, Runnable write) {
+        interleavedMethod = method;
+        interleavedAfter = after;
+        interleavedWrite = write;
+    }
+
+    private void assertReleased() {
+        assertEquals(cache.getCurrentItems(), pool.getChunksInUse());
+        cache.flush_all();
+        assertEquals(0, pool.getChunksInUse());
+        assertTrue(pool.leaks().isEmpty());
+    }
+
+    /**
+     * 网络层在响应写完以后释放取出的元素
+     */
+    @Test
+    public void testServerReleasesAfterWrite() throws Exception {
+        MemCacheServer<LocalCacheElement> daemon = new MemCacheServer<LocalCacheElement>();
+        daemon.setCache(cache);
+        int port = AvailablePortFinder.getNextAvailable();
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.start();
+        MemcachedClient client = new MemcachedClient(AddrUtil.getAddresses("localhost:" + port));
+        try {
+            client.set("key", 0, "value").get();
+            for (int i = 0; i < 10; i++) {
+                assertEquals("value", client.get("key"));
+            }
+            client.set("key", 0, "other").get();
+            assertEquals("other", client.get("key"));
+
+            // 写完成的回调在I/O线程上，稍等一下
+            for (int i = 0; i < 100 && pool.getChunksInUse() != 1; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, pool.getChunksInUse());
+        } finally {
+            client.shutdown();
+            daemon.stop();
+        }
+    }
+}
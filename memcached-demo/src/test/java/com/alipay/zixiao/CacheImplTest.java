@@ -0,0 +1,134 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.AbstractCache;
+import com.alipay.zixiao.cache.Cache;
+import com.alipay.zixiao.cache.CacheImpl;
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static com.alipay.zixiao.CacheTestSupport.ASCII;
+import static com.alipay.zixiao.CacheTestSupport.element;
+import static com.alipay.zixiao.CacheTestSupport.key;
+import static com.alipay.zixiao.CacheTestSupport.value;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 缓存过期和延期删除测试
+ */
+public class CacheImplTest {
+
+    private CacheImpl cache;
+
+    @Before
+    public void setup() {
+        cache = new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 4 * 1024 * 1024));
+    }
+
+    @After
+    public void teardown() throws Exception {
+        cache.close();
+    }
+
+    /**
+     * 过期的元素由时间轮主动清理，不需要再被访问
+     */
+    @Test
+    public void testExpiredItemsAreReclaimed() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            cache.set(element("short" + i, "value", AbstractCache.Now() + 200));
+        }
+        cache.set(element("forever", "value", 0));
+        cache.set(element("long", "value", AbstractCache.Now() + 60000));
+        assertEquals(102, cache.getCurrentItems());
+
+        waitForItems(2, 5000);
+        assertEquals(2, cache.getCurrentItems());
+        assertNotNull(value(cache, "forever"));
+        assertNotNull(value(cache, "long"));
+    }
+
+    /**
+     * 延期删除在到期前挡住读，到期后删除
+     */
+    @Test
+    public void testDelayedDelete() throws InterruptedException {
+        cache.set(element("foo", "value", 0));
+        assertEquals(Cache.DeleteResponse.DELETED, cache.delete(key("foo"), 1));
+        assertNull(value(cache, "foo"));
+        assertEquals(Cache.StoreResponse.NOT_STORED, cache.add(element("foo", "value", 0)));
+
+        waitForItems(0, 5000);
+        assertEquals(Cache.StoreResponse.STORED, cache.add(element("foo", "value", 0)));
+    }
+
+    /**
+     * 覆盖写之后旧的定时器不会删除新的值
+     */
+    @Test
+    public void testOverwriteCancelsExpiry() throws InterruptedException {
+        cache.set(element("foo", "value", AbstractCache.Now() + 100));
+        cache.set(element("foo", "value", 0));
+        Thread.sleep(500);
+        assertNotNull(value(cache, "foo"));
+    }
+
+    /**
+     * 每次维护最多清理预算数量的元素，剩下的留到下一次
+     */
+    @Test
+    public void testMaintenanceBudget() throws Exception {
+        CacheImpl budgeted = new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 4 * 1024 * 1024), 60000, 10);
+        try {
+            for (int i = 0; i < 25; i++) {
+                budgeted.set(element("key" + i, "value", AbstractCache.Now() + 50));
+            }
+            Thread.sleep(300);
+
+            budgeted.asyncEventPing();
+            assertEquals(15, budgeted.getCurrentItems());
+            budgeted.asyncEventPing();
+            budgeted.asyncEventPing();
+            assertEquals(0, budgeted.getCurrentItems());
+            assertEquals(Collections.singleton("25"), budgeted.stat(null).get("expired_reclaimed"));
+            assertEquals(Collections.singleton("2"), budgeted.stat(null).get("maintenance_budget_exhausted"));
+        } finally {
+            budgeted.close();
+        }
+    }
+
+    /**
+     * 存储持有的元素不能引用网络层会被复用的缓冲区
+     */
+    @Test
+    public void testStoredElementIsDetachedFromReadBuffer() {
+        ChannelBuffer read = ChannelBuffers.wrappedBuffer("foobar".getBytes());
+        LocalCacheElement element = new LocalCacheElement(new Key(read.slice(0, 3)), 0, 0, 0L);
+        element.setData(read.slice(3, 3));
+        cache.set(element);
+
+        read.setBytes(0, "xxxxxx".getBytes());
+
+        LocalCacheElement stored = cache.get(key("foo"))[0];
+        assertNotNull(stored);
+        assertEquals("bar", stored.getData().toString(ASCII));
+    }
+
+    private void waitForItems(long items, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (cache.getCurrentItems() != items && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+}
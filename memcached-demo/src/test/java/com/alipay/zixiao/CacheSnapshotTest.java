@@ -0,0 +1,132 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.CacheImpl;
+import com.alipay.zixiao.cache.CacheSnapshot;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.ShardedCache;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import com.alipay.zixiao.util.Clock;
+import net.spy.memcached.AddrUtil;
+import net.spy.memcached.MemcachedClient;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+
+import static com.alipay.zixiao.CacheTestSupport.cache;
+import static com.alipay.zixiao.CacheTestSupport.cas;
+import static com.alipay.zixiao.CacheTestSupport.element;
+import static com.alipay.zixiao.CacheTestSupport.key;
+import static com.alipay.zixiao.CacheTestSupport.value;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 快照的写入和并行加载
+ */
+public class CacheSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 分片缓存的快照可以加载到分片数不同的缓存里，过期的元素被跳过，cas保留
+     */
+    @Test
+    public void testWriteAndLoad() throws Exception {
+        File directory = folder.newFolder("snapshots");
+        ShardedCache source = ShardedCache.create(4, ConcurrentLinkedHashMap.EvictionPolicy.LRU, 100000, 64 * 1024 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            source.set(element("key" + i, "value" + i, 0));
+        }
+        source.set(element("ttl", "lives", Clock.now() + 60000));
+        source.set(element("gone", "soon", Clock.now() + 200));
+        long cas = cas(source, "key5");
+
+        CacheSnapshot snapshot = new CacheSnapshot(source, directory, 4);
+        assertEquals(10002, snapshot.write());
+        // 第二次写入替换掉第一次的快照
+        assertEquals(10002, snapshot.write());
+        assertEquals(1, directory.listFiles().length);
+        source.close();
+        Thread.sleep(300);
+
+        CacheImpl target = cache();
+        assertEquals(10001, new CacheSnapshot(target, directory, 4).load(4));
+        assertEquals("value9999", value(target, "key9999"));
+        assertEquals(cas, cas(target, "key5"));
+        assertEquals("lives", value(target, "ttl"));
+        assertNull(value(target, "gone"));
+        target.set(element("new", "value", 0));
+        assertTrue(cas(target, "new") > cas);
+        target.close();
+    }
+
+    /**
+     * 校验和不对的块以及后面的数据被丢弃，其它段不受影响
+     */
+    @Test
+    public void testSkipsCorruptBlocks() throws Exception {
+        File directory = folder.newFolder("snapshots");
+        CacheImpl source = cache();
+        for (int i = 0; i < 100; i++) {
+            source.set(element("key" + i, "value" + i, 0));
+        }
+        assertEquals(100, new CacheSnapshot(source, directory, 2).write());
+        source.close();
+
+        File segment = new File(directory.listFiles()[0], "segment-000.dat");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(file.length() - 20);
+            file.write(~file.read());
+        } finally {
+            file.close();
+        }
+
+        CacheImpl target = cache();
+        int loaded = new CacheSnapshot(target, directory, 2).load(2);
+        assertTrue(loaded > 0 && loaded < 100);
+        assertEquals(loaded, target.getCurrentItems());
+        target.close();
+    }
+
+    /**
+     * 服务器停止时写快照，启动时加载
+     */
+    @Test
+    public void testServerRestart() throws Exception {
+        File directory = folder.newFolder("snapshots");
+        int port = AvailablePortFinder.getNextAvailable();
+
+        MemCacheServer<LocalCacheElement> daemon = server(directory, port);
+        MemcachedClient client = new MemcachedClient(AddrUtil.getAddresses("localhost:" + port));
+        try {
+            client.set("foo", 0, "bar").get();
+        } finally {
+            client.shutdown();
+            daemon.stop();
+        }
+
+        daemon = server(directory, port);
+        client = new MemcachedClient(AddrUtil.getAddresses("localhost:" + port));
+        try {
+            assertEquals("bar", client.get("foo"));
+        } finally {
+            client.shutdown();
+            daemon.stop();
+        }
+    }
+
+    private static MemCacheServer<LocalCacheElement> server(File directory, int port) {
+        MemCacheServer<LocalCacheElement> daemon = new MemCacheServer<LocalCacheElement>(cache());
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.setSnapshotDirectory(directory);
+        daemon.start();
+        return daemon;
+    }
+}
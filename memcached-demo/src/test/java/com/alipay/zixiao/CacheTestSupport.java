@@ -0,0 +1,105 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.Cache;
+import com.alipay.zixiao.cache.CacheImpl;
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import com.alipay.zixiao.protocol.binary.MemcachedBinaryCommandDecoder.BinaryOp;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.charset.Charset;
+
+/**
+ * 测试共用的key、元素、缓存和二进制请求
+ */
+final class CacheTestSupport {
+
+    static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private CacheTestSupport() {
+    }
+
+    static Key key(String key) {
+        return new Key(key.getBytes(ASCII));
+    }
+
+    static LocalCacheElement element(String key, String value) {
+        return element(key(key), value, 0, 0L);
+    }
+
+    static LocalCacheElement element(String key, String value, long expire) {
+        return element(key(key), value, expire, 0L);
+    }
+
+    static LocalCacheElement element(Key key, String value, long expire, long cas) {
+        LocalCacheElement element = new LocalCacheElement(key, 0, expire, cas);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes(ASCII)));
+        return element;
+    }
+
+    /**
+     * @return a cache over an LRU map with room for 100000 elements and 64 MB
+     */
+    static CacheImpl cache() {
+        return new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                ConcurrentLinkedHashMap.EvictionPolicy.LRU, 100000, 64 * 1024 * 1024));
+    }
+
+    /**
+     * 读出value并释放元素
+     *
+     * @return the value, or null in case of cache miss
+     */
+    static String value(Cache<LocalCacheElement> cache, String key) {
+        LocalCacheElement element = cache.get(key(key))[0];
+        if (element == null) {
+            return null;
+        }
+        try {
+            return element.getData().toString(ASCII);
+        } finally {
+            element.release();
+        }
+    }
+
+    /**
+     * 读出cas并释放元素
+     */
+    static long cas(Cache<LocalCacheElement> cache, String key) {
+        LocalCacheElement element = cache.get(key(key))[0];
+        try {
+            return element.getCasUnique();
+        } finally {
+            element.release();
+        }
+    }
+
+    /**
+     * 一个二进制协议的请求包；有value的时候带上set的extras
+     */
+    static ChannelBuffer binaryRequest(BinaryOp op, String key, String value, int opaque) {
+        byte[] keyBytes = key == null ? new byte[0] : key.getBytes(ASCII);
+        byte[] valueBytes = value == null ? new byte[0] : value.getBytes(ASCII);
+        // set带8字节的extras: flags和过期时间
+        int extras = value == null ? 0 : 8;
+        ChannelBuffer buffer = ChannelBuffers.buffer(24 + extras + keyBytes.length + valueBytes.length);
+        buffer.writeByte(0x80);
+        buffer.writeByte(op.code);
+        buffer.writeShort(keyBytes.length);
+        buffer.writeByte(extras);
+        buffer.writeByte(0);
+        buffer.writeShort(0);
+        buffer.writeInt(extras + keyBytes.length + valueBytes.length);
+        buffer.writeInt(opaque);
+        buffer.writeLong(0);
+        if (extras != 0) {
+            buffer.writeInt(0);
+            buffer.writeInt(0);
+        }
+        buffer.writeBytes(keyBytes);
+        buffer.writeBytes(valueBytes);
+        return buffer;
+    }
+}
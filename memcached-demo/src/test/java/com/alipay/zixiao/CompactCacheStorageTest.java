@@ -0,0 +1,202 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.CacheImpl;
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.storage.CompactCacheStorage;
+import com.alipay.zixiao.util.Clock;
+import net.spy.memcached.AddrUtil;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.alipay.zixiao.CacheTestSupport.element;
+import static com.alipay.zixiao.CacheTestSupport.key;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 开放寻址索引的slab存储测试
+ */
+public class CompactCacheStorageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPutGetReplaceRemove() throws Exception {
+        CompactCacheStorage storage = new CompactCacheStorage(4 * 1024 * 1024);
+        Key key = key("foo");
+        LocalCacheElement first = element(key, "bar", 0, 1L);
+
+        assertNull(storage.put(key, first));
+        assertEquals(first, storage.get(key));
+        assertEquals(first, storage.putIfAbsent(key, element(key, "other", 0, 3L)));
+
+        LocalCacheElement second = element(key, "baz", 0, 2L);
+        assertFalse(storage.replace(key, second, second));
+        assertTrue(storage.replace(key, storage.get(key), second));
+        assertEquals("baz", storage.get(key).getData().toString("UTF-8"));
+        assertFalse(storage.remove(key, first));
+
+        assertEquals(second, storage.remove(key));
+        assertNull(storage.get(key));
+        assertNull(storage.replace(key, first));
+        assertEquals(0, storage.size());
+        assertEquals(0, storage.getMemoryUsed());
+        storage.close();
+    }
+
+    /**
+     * 大量插入和删除以后，探测序列不能断，索引每个元素的开销小于32字节
+     */
+    @Test
+    public void testIndexStaysConsistent() {
+        CompactCacheStorage storage = new CompactCacheStorage(64 * 1024 * 1024, 1024 * 1024, 64, 1.25, 4);
+        for (int i = 0; i < 100000; i++) {
+            Key key = key("key" + i);
+            storage.put(key, element(key, "v" + i, 0, i));
+        }
+        assertEquals(100000, storage.size());
+        assertTrue(storage.getIndexMemoryUsed() / storage.size() < 32);
+
+        for (int i = 0; i < 100000; i += 2) {
+            assertEquals("v" + i, storage.remove(key("key" + i)).getData().toString("UTF-8"));
+        }
+        for (int i = 1; i < 100000; i += 2) {
+            assertEquals("v" + i, storage.get(key("key" + i)).getData().toString("UTF-8"));
+            assertNull(storage.get(key("key" + (i - 1))));
+        }
+
+        Set<Key> keys = new HashSet<Key>(storage.keySet());
+        assertEquals(50000, keys.size());
+        assertTrue(keys.contains(key("key99999")));
+
+        storage.clear();
+        assertEquals(0, storage.size());
+        assertEquals(0, storage.getMemoryUsed());
+    }
+
+    /**
+     * 紧凑格式里小元素的元数据只有十几个字节，一个键值各一字节、带过期时间的元素放得进16字节的chunk
+     */
+    @Test
+    public void testSmallItemsFitSmallChunks() throws Exception {
+        CompactCacheStorage storage = new CompactCacheStorage(4 * 1024 * 1024, 1024 * 1024, 16, 1.25, 4);
+        Key key = key("k");
+        LocalCacheElement small = element(key, "v", Clock.now() + 60000, 1000L);
+        storage.put(key, small);
+        assertEquals(16, storage.getMemoryUsed());
+        assertEquals(small, storage.get(key));
+
+        // 负的flags、占位的block时间和大的cas都要原样读回来
+        Key other = key("other");
+        LocalCacheElement blocked = new LocalCacheElement(other, -1, 0, Long.MAX_VALUE);
+        blocked.setData(ChannelBuffers.wrappedBuffer(new byte[20000]));
+        blocked.block(Clock.now() + 1000);
+        storage.put(other, blocked);
+        assertEquals(blocked, storage.get(other));
+        assertEquals(small, storage.get(key));
+        storage.close();
+    }
+
+    /**
+     * 内存用满后淘汰旧的数据，并从索引里删掉
+     */
+    @Test
+    public void testEvictsWhenFull() throws Exception {
+        CompactCacheStorage storage = new CompactCacheStorage(64 * 1024, 16 * 1024, 64, 1.25, 64);
+        for (int i = 0; i < 10000; i++) {
+            Key key = key("key" + i);
+            storage.put(key, element(key, "value" + i, 0, i));
+        }
+
+        assertTrue(storage.size() < 10000);
+        assertEquals(storage.size(), storage.keySet().size());
+        int found = 0;
+        for (Key ignored : storage.keySet()) {
+            found++;
+        }
+        assertEquals(storage.size(), found);
+        assertTrue(storage.getMemoryUsed() <= storage.getMemoryCapacity());
+        assertEquals("value9999", storage.get(key("key9999")).getData().toString("UTF-8"));
+        storage.close();
+    }
+
+    /**
+     * 正常停机以后重启，映射文件里的数据直接恢复，不用冷启动
+     */
+    @Test
+    public void testWarmRestart() throws Exception {
+        File directory = folder.newFolder("slabs");
+        int port = AvailablePortFinder.getNextAvailable();
+
+        MemCacheServer<LocalCacheElement> daemon = server(directory, port);
+        MemcachedClient client = new MemcachedClient(AddrUtil.getAddresses("localhost:" + port));
+        long cas;
+        try {
+            for (int i = 0; i < 1000; i++) {
+                client.set("key" + i, 0, "value" + i).get();
+            }
+            client.set("short", 1, "expires").get();
+            client.delete("key0").get();
+            cas = client.gets("key1").getCas();
+        } finally {
+            client.shutdown();
+            daemon.stop();
+        }
+        Thread.sleep(1100);
+
+        daemon = server(directory, port);
+        client = new MemcachedClient(AddrUtil.getAddresses("localhost:" + port));
+        try {
+            assertEquals(999, daemon.getCache().getCurrentItems());
+            assertEquals("value999", client.get("key999"));
+            assertNull(client.get("key0"));
+            assertNull(client.get("short"));
+            CASValue<Object> restored = client.gets("key1");
+            assertEquals(cas, restored.getCas());
+            // 恢复以后新的cas要比所有恢复的都大
+            client.set("key2", 0, "new").get();
+            assertTrue(client.gets("key2").getCas() > cas);
+        } finally {
+            client.shutdown();
+            daemon.stop();
+        }
+    }
+
+    /**
+     * 没有正常关闭的文件不可信，丢弃以后从空的缓存开始
+     */
+    @Test
+    public void testDiscardsAfterCrash() throws Exception {
+        File directory = folder.newFolder("slabs");
+        CompactCacheStorage storage = new CompactCacheStorage(directory, 4 * 1024 * 1024);
+        storage.open();
+        Key key = key("foo");
+        storage.put(key, element(key, "bar", 0, 1L));
+
+        CompactCacheStorage restarted = new CompactCacheStorage(directory, 4 * 1024 * 1024);
+        assertEquals(0, restarted.open());
+        assertNull(restarted.get(key));
+        restarted.close();
+    }
+
+    private static MemCacheServer<LocalCacheElement> server(File directory, int port) {
+        MemCacheServer<LocalCacheElement> daemon = new MemCacheServer<LocalCacheElement>();
+        daemon.setCache(new CacheImpl(new CompactCacheStorage(directory, 8 * 1024 * 1024)));
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.start();
+        return daemon;
+    }
+}
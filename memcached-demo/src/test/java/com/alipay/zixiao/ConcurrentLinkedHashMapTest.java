@@ -0,0 +1,104 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import com.alipay.zixiao.cache.hash.SizedItem;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 存储map的淘汰策略测试
+ */
+public class ConcurrentLinkedHashMapTest {
+
+    /**
+     * 缓冲的LRU在淘汰前回放读记录
+     */
+    @Test
+    public void testBufferedLruReplaysReadsBeforeEviction() {
+        ConcurrentLinkedHashMap<String, Item> map = ConcurrentLinkedHashMap
+                .create(ConcurrentLinkedHashMap.EvictionPolicy.BUFFERED_LRU, 3, Long.MAX_VALUE);
+        map.put("a", new Item(1));
+        map.put("b", new Item(1));
+        map.put("c", new Item(1));
+
+        map.get("a");
+        map.put("d", new Item(1));
+
+        assertEquals(3, map.size());
+        assertTrue(map.containsKey("a"));
+        assertFalse(map.containsKey("b"));
+    }
+
+    /**
+     * 大量读不会阻塞也不会丢失数据
+     */
+    @Test
+    public void testBufferedLruConcurrentReads() throws InterruptedException {
+        final ConcurrentLinkedHashMap<Integer, Item> map = ConcurrentLinkedHashMap
+                .create(ConcurrentLinkedHashMap.EvictionPolicy.BUFFERED_LRU, 100, Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            map.put(i, new Item(1));
+        }
+
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        map.get(i % 100);
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(100, map.size());
+        assertEquals(100, map.getMemoryUsed());
+    }
+
+    /**
+     * TinyLFU在一次性扫描下保留热点数据
+     */
+    @Test
+    public void testTinyLfuResistsScan() {
+        ConcurrentLinkedHashMap<Integer, Item> map = ConcurrentLinkedHashMap
+                .create(ConcurrentLinkedHashMap.EvictionPolicy.TINY_LFU, 100, Long.MAX_VALUE);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (map.get(i) == null) {
+                    map.put(i, new Item(1));
+                }
+            }
+        }
+        for (int i = 1000; i < 3000; i++) {
+            map.put(i, new Item(1));
+        }
+
+        int retained = 0;
+        for (int i = 0; i < 50; i++) {
+            if (map.containsKey(i)) {
+                retained++;
+            }
+        }
+        assertEquals(100, map.size());
+        assertTrue("hot entries flushed by scan: " + retained, retained >= 45);
+    }
+
+    static final class Item implements SizedItem {
+        private final int size;
+
+        Item(int size) {
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.Cache;
+import com.alipay.zixiao.cache.CacheImpl;
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import com.alipay.zixiao.cache.storage.CacheStorage;
+import com.alipay.zixiao.client.EmbeddedClient;
+import net.spy.memcached.AddrUtil;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 进程内客户端测试，和网络客户端共享同一份数据和统计
+ */
+public class EmbeddedClientTest {
+
+    private MemCacheServer<LocalCacheElement> daemon;
+    private CacheImpl cache;
+    private EmbeddedClient client;
+
+    @Before
+    public void setUp() {
+        CacheStorage<Key, LocalCacheElement> cacheStorage = ConcurrentLinkedHashMap
+                .create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, AbstractCacheTest.MAX_SIZE, 4 * 1024 * 1024);
+        cache = new CacheImpl(cacheStorage);
+        client = new EmbeddedClient(cache);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (daemon != null && daemon.isRunning()) {
+            daemon.stop();
+        } else {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testGetsAndCas() {
+        assertEquals(Cache.StoreResponse.STORED, client.set("key", "value".getBytes(), 7, 0));
+        EmbeddedClient.Item item = client.gets("key");
+        assertArrayEquals("value".getBytes(), item.getValue());
+        assertEquals(7, item.getFlags());
+
+        assertEquals(Cache.StoreResponse.STORED, client.cas("key", item.getCas(), ByteBuffer.wrap("other".getBytes()), 0, 0));
+        assertEquals(Cache.StoreResponse.EXISTS, client.cas("key", item.getCas(), "stale".getBytes(), 0, 0));
+        assertEquals(ByteBuffer.wrap("other".getBytes()), client.getBuffer("key"));
+
+        assertTrue(client.delete("key"));
+        assertFalse(client.delete("key"));
+        assertNull(client.get("key"));
+        assertEquals(Cache.StoreResponse.NOT_FOUND, client.cas("key", item.getCas(), "value".getBytes(), 0, 0));
+    }
+
+    /**
+     * 存储时拷贝value，调用方之后修改数组不影响缓存
+     */
+    @Test
+    public void testValueIsCopiedOnStore() {
+        byte[] value = "value".getBytes();
+        client.set("key", value);
+        value[0] = 'X';
+        assertArrayEquals("value".getBytes(), client.get("key"));
+    }
+
+    @Test
+    public void testGetMulti() {
+        client.set("a", "1".getBytes());
+        client.set("c", "3".getBytes());
+        Map<String, EmbeddedClient.Item> items = client.getMulti("a", "b", "c");
+        assertEquals(Arrays.asList("a", "c"), Arrays.asList(items.keySet().toArray()));
+        assertArrayEquals("3".getBytes(), items.get("c").getValue());
+        assertEquals(3, cache.getGetCmds());
+        assertEquals(1, cache.getGetMisses());
+    }
+
+    /**
+     * 网络客户端能看到进程内写入的数据，反之亦然
+     */
+    @Test
+    public void testSharesStorageWithRemoteClients() throws Exception {
+        daemon = new MemCacheServer<LocalCacheElement>();
+        daemon.setCache(cache);
+        int port = AvailablePortFinder.getNextAvailable();
+        daemon.setAddr(new InetSocketAddress("localhost", port));
+        daemon.start();
+
+        MemcachedClient remote = new MemcachedClient(AddrUtil.getAddresses("localhost:" + port));
+        try {
+            client.set("embedded", "value".getBytes(), 0, 0);
+            assertEquals("value", new String(remote.get("embedded", new RawTranscoder())));
+
+            remote.set("remote", 0, "abc".getBytes(), new RawTranscoder()).get();
+            assertArrayEquals("abc".getBytes(), client.get("remote"));
+        } finally {
+            remote.shutdown();
+        }
+        assertEquals(2, cache.getSetCmds());
+    }
+
+    /**
+     * 原样传递字节的transcoder
+     */
+    private static final class RawTranscoder implements Transcoder<byte[]> {
+        public boolean asyncDecode(CachedData d) {
+            return false;
+        }
+
+        public CachedData encode(byte[] o) {
+            return new CachedData(0, o, getMaxSize());
+        }
+
+        public byte[] decode(CachedData d) {
+            return d.getData();
+        }
+
+        public int getMaxSize() {
+            return CachedData.MAX_SIZE;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.Key;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * key的相等和hash只取决于内容，和来源缓冲区的位置无关
+ */
+public class KeyTest {
+
+    @Test
+    public void testEqualsIgnoresSource() {
+        ChannelBuffer read = ChannelBuffers.wrappedBuffer("get foo\r\n".getBytes());
+        read.readerIndex(4);
+        Key fromSlice = new Key(read.slice(4, 3));
+        Key fromIndex = new Key(read, 4, 3);
+        Key fromArray = new Key("foo".getBytes());
+
+        assertEquals(fromArray, fromSlice);
+        assertEquals(fromArray, fromIndex);
+        assertEquals(fromArray.hashCode(), fromIndex.hashCode());
+        // 比较不修改缓冲区，key也不再引用它
+        assertEquals(4, read.readerIndex());
+        read.setBytes(4, "bar".getBytes());
+        assertEquals("foo", fromIndex.toString());
+        assertFalse(fromArray.equals(new Key("fo".getBytes())));
+    }
+
+    /**
+     * 相似的key的hash要分散开
+     */
+    @Test
+    public void testHashIsWellMixed() {
+        Set<Integer> lowBits = new HashSet<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            lowBits.add(new Key(("key" + i).getBytes()).hashCode() & 0xFF);
+        }
+        assertTrue(lowBits.size() > 200);
+    }
+}
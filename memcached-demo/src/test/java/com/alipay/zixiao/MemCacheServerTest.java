@@ -5,6 +5,7 @@ import net.spy.memcached.CASResponse;
 import net.spy.memcached.CASValue;
 import net.spy.memcached.MemcachedClient;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.ComparisonFailure;
 import org.junit.Test;
@@ -14,12 +15,16 @@ import org.junit.runners.Parameterized;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -114,6 +119,72 @@ public class MemCacheServerTest extends AbstractCacheTest {
 
 
 
+    /**
+     *  测试批量get，二进制协议用静默的get加上Noop实现
+     */
+    @Test
+    public void testGetBulk() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(singleClient.set(KEY + i, TWO_WEEKS, VALUE + i).get());
+        }
+        Map<String, Object> found = singleClient.getBulk(KEY + 0, KEY + 1, "missing", KEY + 99);
+        assertEquals(3, found.size());
+        assertEquals(VALUE + 0, found.get(KEY + 0));
+        assertEquals(VALUE + 99, found.get(KEY + 99));
+    }
+
+    /**
+     *  测试统计计数
+     */
+    @Test
+    public void testStats() throws Exception {
+        assertTrue(singleClient.set(KEY, TWO_WEEKS, VALUE).get());
+        assertEquals(VALUE, singleClient.get(KEY));
+        assertNull(singleClient.get("missing"));
+
+        assertEquals(1, cache.getGetHits());
+        assertEquals(1, cache.getGetMisses());
+        assertEquals(2, cache.getGetCmds());
+        assertEquals(1, cache.getSetCmds());
+
+        Map<String, Set<String>> stats = cache.stat(null);
+        assertTrue(Long.parseLong(stats.get("bytes_read").iterator().next()) > 0);
+        assertTrue(Long.parseLong(stats.get("curr_connections").iterator().next()) >= 1);
+        assertEquals(Collections.singleton("1"), stats.get("total_items"));
+    }
+
+    /**
+     *  测试二进制协议的其他命令
+     */
+    @Test
+    public void testBinaryCommands() throws Exception {
+        Assume.assumeTrue(getProtocolMode() == ProtocolMode.BINARY);
+
+        assertTrue(singleClient.add(KEY, TWO_WEEKS, VALUE).get());
+        assertFalse(singleClient.add(KEY, TWO_WEEKS, VALUE).get());
+        assertFalse(singleClient.replace("missing", TWO_WEEKS, VALUE).get());
+        assertTrue(singleClient.append(KEY, "Tail").get());
+        assertEquals(VALUE + "Tail", singleClient.get(KEY));
+
+        assertEquals(10, singleClient.incr("counter", 1, 10, 0));
+        assertEquals(11, singleClient.incr("counter", 1, 10, 0));
+        assertEquals(6, singleClient.decr("counter", 5));
+
+        // 计数器和增量都是64位的
+        assertEquals(3000000000L, singleClient.incr("large", 1, 3000000000L, 0));
+        assertEquals(7000000000L, singleClient.incr("large", 4000000000L));
+        assertEquals(Long.MAX_VALUE, singleClient.incr("large", Long.MAX_VALUE - 7000000000L));
+        assertEquals(0, singleClient.decr("large", Long.parseUnsignedLong("12000000000000000000")));
+
+        assertTrue(singleClient.touch(KEY, TWO_WEEKS).get());
+        assertFalse(singleClient.touch("missing", TWO_WEEKS).get());
+        CASValue<Object> touched = singleClient.getAndTouch(KEY, TWO_WEEKS);
+        assertEquals(VALUE + "Tail", touched.getValue());
+
+        assertEquals(MemCacheServer.memcachedVersion, singleClient.getVersions().get(address));
+        assertEquals("3", singleClient.getStats().get(address).get("cmd_touch"));
+    }
+
     /**
      *  测试JAVA POJO对象
      */
@@ -0,0 +1,71 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.CacheImpl;
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.StatsRegistry;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import com.alipay.zixiao.cache.storage.CacheStorage;
+import com.alipay.zixiao.util.ReusePort;
+import net.spy.memcached.MemcachedClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 测试多个SO_REUSEPORT监听socket和自定义的线程模型
+ */
+public class MultiAcceptorTest {
+
+    private MemCacheServer<LocalCacheElement> daemon;
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() throws Exception {
+        daemon = new MemCacheServer<LocalCacheElement>();
+        CacheStorage<Key, LocalCacheElement> cacheStorage = ConcurrentLinkedHashMap
+                .create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, AbstractCacheTest.MAX_SIZE, 4 * 1024 * 1024);
+        daemon.setCache(new CacheImpl(cacheStorage));
+        address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        daemon.setAddr(address);
+        daemon.setAcceptorCount(4);
+        daemon.setWorkerCount(2);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (daemon.isRunning()) {
+            daemon.stop();
+        }
+    }
+
+    @Test
+    public void testConnectionsAreServed() throws Exception {
+        List<MemcachedClient> clients = new ArrayList<MemcachedClient>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                MemcachedClient client = new MemcachedClient(Arrays.asList(address));
+                clients.add(client);
+                assertTrue(client.set("key" + i, 0, "value" + i).get());
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                assertEquals("value" + i, clients.get((i + 1) % clients.size()).get("key" + i));
+            }
+        } finally {
+            for (MemcachedClient client : clients) {
+                client.shutdown();
+            }
+        }
+        assertEquals(8L, daemon.getCache().getStats().get(StatsRegistry.Stat.TOTAL_CONNECTIONS));
+        assertTrue(ReusePort.isSupported() || !System.getProperty("os.name").startsWith("Linux"));
+    }
+}
@@ -0,0 +1,93 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.Cache;
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.ShardedCache;
+import com.alipay.zixiao.cache.StatsRegistry;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static com.alipay.zixiao.CacheTestSupport.ASCII;
+import static com.alipay.zixiao.CacheTestSupport.element;
+import static com.alipay.zixiao.CacheTestSupport.key;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 分片缓存测试
+ */
+public class ShardedCacheTest {
+
+    private ShardedCache cache;
+
+    @Before
+    public void setup() {
+        cache = ShardedCache.create(4, ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 4 * 1024 * 1024);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        cache.close();
+    }
+
+    /**
+     * 多个key的get分到各个分片上，结果按key的顺序返回
+     */
+    @Test
+    public void testMultiGetKeepsKeyOrder() {
+        Key[] keys = new Key[101];
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Cache.StoreResponse.STORED, cache.set(element("key" + i, "value" + i)));
+            keys[i] = key("key" + i);
+        }
+        keys[100] = key("missing");
+
+        LocalCacheElement[] found = cache.get(keys);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, found[i].getData().toString(ASCII));
+        }
+        assertNull(found[100]);
+        assertEquals(100, cache.getCurrentItems());
+    }
+
+    /**
+     * 统计是所有分片的和
+     */
+    @Test
+    public void testStatsAreSummedOverShards() {
+        for (int i = 0; i < 20; i++) {
+            cache.set(element("key" + i, "value"));
+            cache.get(key("key" + i));
+        }
+        cache.get(key("missing"));
+        assertEquals(Cache.DeleteResponse.DELETED, cache.delete(key("key0"), 0));
+
+        assertEquals(20, cache.getSetCmds());
+        assertEquals(21, cache.getGetCmds());
+        assertEquals(20, cache.getGetHits());
+        assertEquals(1, cache.getGetMisses());
+        assertEquals(Collections.singleton("19"), cache.stat(null).get("cur_items"));
+        assertEquals(Collections.singleton("4"), cache.stat(null).get("shards"));
+    }
+
+    /**
+     * flush_all清空每个分片，但只计一次
+     */
+    @Test
+    public void testFlushAllIsCountedOnce() {
+        for (int i = 0; i < 20; i++) {
+            cache.set(element("key" + i, "value"));
+        }
+        assertTrue(cache.flush_all());
+
+        assertEquals(0, cache.getCurrentItems());
+        assertEquals(1, cache.getStats().get(StatsRegistry.Stat.CMD_FLUSH));
+        assertEquals(Collections.singleton("1"), cache.stat(null).get("cmd_flush"));
+    }
+}
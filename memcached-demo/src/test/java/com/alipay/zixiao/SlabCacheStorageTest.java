@@ -0,0 +1,63 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.storage.SlabCacheStorage;
+import org.junit.Test;
+
+import static com.alipay.zixiao.CacheTestSupport.element;
+import static com.alipay.zixiao.CacheTestSupport.key;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 堆外slab存储测试
+ */
+public class SlabCacheStorageTest {
+
+    /**
+     * 写入后能读回相同的数据，替换和删除后释放内存
+     */
+    @Test
+    public void testPutGetReplaceRemove() {
+        SlabCacheStorage storage = new SlabCacheStorage(4 * 1024 * 1024);
+        Key key = key("foo");
+        LocalCacheElement first = element(key, "bar", 0, 1L);
+
+        assertNull(storage.put(key, first));
+        assertEquals(first, storage.get(key));
+        assertTrue(storage.getMemoryUsed() > 0);
+
+        LocalCacheElement second = element(key, "baz", 0, 2L);
+        assertFalse(storage.replace(key, second, second));
+        assertTrue(storage.replace(key, storage.get(key), second));
+        assertEquals("baz", storage.get(key).getData().toString("UTF-8"));
+        assertEquals(2L, storage.get(key).getCasUnique());
+
+        assertEquals(second, storage.remove(key));
+        assertNull(storage.get(key));
+        assertEquals(0, storage.size());
+        assertEquals(0, storage.getMemoryUsed());
+        storage.close();
+    }
+
+    /**
+     * 内存用满后淘汰旧的数据而不是失败
+     */
+    @Test
+    public void testEvictsWhenFull() {
+        SlabCacheStorage storage = new SlabCacheStorage(64 * 1024, 16 * 1024, 64, 1.25);
+        for (int i = 0; i < 10000; i++) {
+            Key key = key("key" + i);
+            storage.put(key, element(key, "value" + i, 0, i));
+        }
+
+        assertTrue(storage.size() < 10000);
+        assertTrue(storage.getMemoryUsed() <= storage.getMemoryCapacity());
+        Key last = key("key9999");
+        assertEquals("value9999", storage.get(last).getData().toString("UTF-8"));
+        storage.close();
+    }
+}
@@ -0,0 +1,178 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.Cache;
+import com.alipay.zixiao.cache.CacheImpl;
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import com.alipay.zixiao.cache.storage.CacheStorage;
+import com.alipay.zixiao.protocol.WriteCoalescingHandler;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.ServerSocketChannelConfig;
+import org.jboss.netty.channel.socket.SocketChannelConfig;
+import org.jboss.netty.util.ThreadNameDeterminer;
+import org.jboss.netty.util.ThreadRenamingRunnable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+
+import static com.alipay.zixiao.CacheTestSupport.ASCII;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 测试I/O线程数、线程名和socket参数
+ */
+public class ThreadModelTest {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final List<Thread>  ioThreads = new CopyOnWriteArrayList<Thread>();
+    private final List<Channel> accepted = new CopyOnWriteArrayList<Channel>();
+
+    private MemCacheServer<LocalCacheElement> daemon;
+    private InetSocketAddress address;
+    private ThreadNameDeterminer determiner;
+
+    @Before
+    public void setUp() throws Exception {
+        determiner = ThreadRenamingRunnable.getThreadNameDeterminer();
+        daemon = new MemCacheServer<LocalCacheElement>() {
+            @Override
+            protected ChannelPipelineFactory createMemcachedPipelineFactory(
+                    Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize,
+                    boolean singlePassParser, WriteCoalescingHandler writeCoalescing, DefaultChannelGroup allChannels) {
+                final ChannelPipelineFactory factory = super.createMemcachedPipelineFactory(cache, memcachedVersion,
+                        verbose, idleTime, receiveBufferSize, singlePassParser, writeCoalescing, allChannels);
+                return new ChannelPipelineFactory() {
+                    public ChannelPipeline getPipeline() throws Exception {
+                        ChannelPipeline pipeline = factory.getPipeline();
+                        pipeline.addFirst("accepted", new SimpleChannelUpstreamHandler() {
+                            @Override
+                            public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+                                accepted.add(e.getChannel());
+                                ctx.sendUpstream(e);
+                            }
+                        });
+                        return pipeline;
+                    }
+                };
+            }
+        };
+        CacheStorage<Key, LocalCacheElement> cacheStorage = ConcurrentLinkedHashMap
+                .create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, AbstractCacheTest.MAX_SIZE, 4 * 1024 * 1024);
+        daemon.setCache(new CacheImpl(cacheStorage));
+        address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        daemon.setAddr(address);
+        daemon.setWorkerCount(2);
+        daemon.setWorkerThreadFactory(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                ioThreads.add(thread);
+                return thread;
+            }
+        });
+        daemon.setKeepThreadNames(true);
+        daemon.setReuseAddress(false);
+        daemon.setSendBufferSize(BUFFER_SIZE);
+        daemon.setReceiveBufferSize(BUFFER_SIZE);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (daemon.isRunning()) {
+            daemon.stop();
+        }
+        ThreadRenamingRunnable.setThreadNameDeterminer(determiner);
+    }
+
+    /**
+     * 连上若干个客户端，每个都存一个key并等到响应，这时连接已经交给了I/O线程
+     */
+    private List<Socket> connect(int clients) throws Exception {
+        List<Socket> sockets = new ArrayList<Socket>();
+        for (int i = 0; i < clients; i++) {
+            Socket socket = new Socket(address.getAddress(), address.getPort());
+            sockets.add(socket);
+            OutputStream out = socket.getOutputStream();
+            out.write(("set key" + i + " 0 0 1\r\nx\r\n").getBytes(ASCII));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ASCII));
+            assertEquals("STORED", in.readLine());
+        }
+        return sockets;
+    }
+
+    private static void close(List<Socket> sockets) throws Exception {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testConnectionsShareTheWorkerThreads() throws Exception {
+        List<Socket> sockets = connect(6);
+        try {
+            assertEquals(6, accepted.size());
+            assertEquals(2, ioThreads.size());
+        } finally {
+            close(sockets);
+        }
+    }
+
+    @Test
+    public void testThreadsAreNamedByTheFactory() throws Exception {
+        assertSame(ThreadNameDeterminer.CURRENT, ThreadRenamingRunnable.getThreadNameDeterminer());
+        List<Socket> sockets = connect(2);
+        try {
+            // I/O循环正在运行，netty没有改掉线程工厂起的名字
+            List<String> names = new ArrayList<String>();
+            for (Thread thread : ioThreads) {
+                assertTrue(thread.isAlive());
+                names.add(thread.getName());
+            }
+            assertEquals(2, names.size());
+            assertTrue(names.toString(), names.contains("memcached-io-1"));
+            assertTrue(names.toString(), names.contains("memcached-io-2"));
+        } finally {
+            close(sockets);
+        }
+    }
+
+    @Test
+    public void testSocketOptions() throws Exception {
+        List<Socket> sockets = connect(1);
+        try {
+            SocketChannelConfig child = (SocketChannelConfig) accepted.get(0).getConfig();
+            assertTrue(child.isTcpNoDelay());
+            // 内核可能把缓冲区放大(linux翻倍)，但不会比设置的小
+            assertTrue(child.getSendBufferSize() >= BUFFER_SIZE);
+            assertTrue(child.getReceiveBufferSize() >= BUFFER_SIZE);
+
+            ServerSocketChannelConfig parent = (ServerSocketChannelConfig) accepted.get(0).getParent().getConfig();
+            assertFalse(parent.isReuseAddress());
+            assertEquals(MemCacheServer.DEFAULT_BACKLOG, parent.getBacklog());
+        } finally {
+            close(sockets);
+        }
+    }
+}
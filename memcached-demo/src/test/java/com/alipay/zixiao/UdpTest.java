@@ -0,0 +1,158 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.CacheImpl;
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import com.alipay.zixiao.cache.storage.CacheStorage;
+import com.alipay.zixiao.protocol.binary.MemcachedBinaryCommandDecoder.BinaryOp;
+import com.alipay.zixiao.protocol.udp.MemcachedUdpHandler;
+import com.alipay.zixiao.util.BufferPool;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.alipay.zixiao.CacheTestSupport.ASCII;
+import static com.alipay.zixiao.CacheTestSupport.binaryRequest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在本机上测试UDP协议
+ */
+public class UdpTest {
+
+    private MemCacheServer<LocalCacheElement> daemon;
+    private InetSocketAddress udpAddress;
+    private DatagramSocket socket;
+
+    @Before
+    public void setUp() throws Exception {
+        daemon = new MemCacheServer<LocalCacheElement>();
+        CacheStorage<Key, LocalCacheElement> cacheStorage = ConcurrentLinkedHashMap
+                .create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, AbstractCacheTest.MAX_SIZE, 4 * 1024 * 1024);
+        daemon.setCache(new CacheImpl(cacheStorage));
+        daemon.setAddr(new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable()));
+        udpAddress = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        daemon.setUdpAddr(udpAddress);
+        daemon.start();
+
+        socket = new DatagramSocket();
+        socket.setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown() {
+        socket.close();
+        if (daemon.isRunning()) {
+            daemon.stop();
+        }
+    }
+
+    @Test
+    public void testSetAndGet() throws Exception {
+        assertEquals("STORED\r\n", request(1, "set key 0 0 5\r\nvalue\r\n"));
+        assertEquals("VALUE key 0 5\r\nvalue\r\nEND\r\n", request(2, "get key\r\n"));
+        assertEquals("END\r\n", request(3, "get missing\r\n"));
+    }
+
+    /**
+     * 大的响应拆成多个数据报，按序号拼回去
+     */
+    @Test
+    public void testLargeResponseIsSplit() throws Exception {
+        char[] value = new char[4000];
+        Arrays.fill(value, 'x');
+        String data = new String(value);
+        assertEquals("STORED\r\n", request(7, "set big 0 0 4000\r\n" + data + "\r\n"));
+        assertEquals("VALUE big 0 4000\r\n" + data + "\r\nEND\r\n", request(8, "get big\r\n"));
+    }
+
+    /**
+     * 一个数据报里只有一个GetQ，后面没有Noop：命中的响应也要在数据报处理完的时候发出，不能攒在那里占着元素
+     */
+    @Test
+    public void testBinaryQuietGetWithoutNoop() throws Exception {
+        ChannelBuffer set = binaryRequest(BinaryOp.Set, "key", "value", 1);
+        ChannelBuffer stored = ChannelBuffers.wrappedBuffer(request(1, set.array()));
+        assertEquals(0x81, stored.getUnsignedByte(0));
+        assertEquals(0, stored.getShort(6));
+        assertEquals(1, stored.getInt(12));
+        BufferPool pool = ((CacheImpl) daemon.getCache()).getBufferPool();
+        long chunks = pool.getChunksInUse();
+
+        ChannelBuffer getQ = binaryRequest(BinaryOp.GetQ, "key", null, 2);
+        ChannelBuffer hit = ChannelBuffers.wrappedBuffer(request(2, getQ.array()));
+        assertEquals(0, hit.getShort(6));
+        assertEquals(2, hit.getInt(12));
+        int extras = hit.getUnsignedByte(4);
+        int bodyLength = hit.getInt(8);
+        assertEquals("value", hit.toString(24 + extras, bodyLength - extras, ASCII));
+        assertEquals(24 + bodyLength, hit.readableBytes());
+        // 响应引用的元素已经释放，只剩存储里那一份
+        assertEquals(chunks, pool.getChunksInUse());
+    }
+
+    /**
+     * 一个数据报里的静默未命中不应答，命中的和它们一起发出
+     */
+    @Test
+    public void testBinaryQuietBatchInOneDatagram() throws Exception {
+        request(1, binaryRequest(BinaryOp.Set, "a", "1", 1).array());
+        ChannelBuffer batch = ChannelBuffers.wrappedBuffer(
+                binaryRequest(BinaryOp.GetKQ, "missing", null, 2),
+                binaryRequest(BinaryOp.GetKQ, "a", null, 3));
+        byte[] payload = new byte[batch.readableBytes()];
+        batch.readBytes(payload);
+        ChannelBuffer responses = ChannelBuffers.wrappedBuffer(request(2, payload));
+        assertEquals(3, responses.getInt(12));
+        assertEquals(24 + responses.getInt(8), responses.readableBytes());
+    }
+
+    private String request(int requestId, String command) throws Exception {
+        return new String(request(requestId, command.getBytes("US-ASCII")), "US-ASCII");
+    }
+
+    /**
+     * 发送一个请求，收齐所有数据报以后按序号拼出响应
+     */
+    private byte[] request(int requestId, byte[] command) throws Exception {
+        ByteBuffer out = ByteBuffer.allocate(MemcachedUdpHandler.HEADER_LENGTH + command.length);
+        out.putShort((short) requestId).putShort((short) 0).putShort((short) 1).putShort((short) 0);
+        out.put(command);
+        socket.send(new DatagramPacket(out.array(), out.position(), udpAddress));
+
+        byte[][] parts = null;
+        int received = 0;
+        do {
+            DatagramPacket packet = new DatagramPacket(new byte[MemcachedUdpHandler.MAX_DATAGRAM_SIZE], MemcachedUdpHandler.MAX_DATAGRAM_SIZE);
+            socket.receive(packet);
+            ByteBuffer in = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+            assertEquals(requestId, in.getShort());
+            int sequence = in.getShort();
+            int count = in.getShort();
+            in.getShort();
+            if (parts == null) {
+                parts = new byte[count][];
+            }
+            parts[sequence] = Arrays.copyOfRange(packet.getData(), MemcachedUdpHandler.HEADER_LENGTH, packet.getLength());
+            received++;
+        } while (received < parts.length);
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            assertTrue(part.length <= MemcachedUdpHandler.MAX_DATAGRAM_SIZE - MemcachedUdpHandler.HEADER_LENGTH);
+            response.write(part);
+        }
+        return response.toByteArray();
+    }
+}
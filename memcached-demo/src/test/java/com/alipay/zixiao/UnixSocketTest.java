@@ -0,0 +1,105 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.CacheImpl;
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import com.alipay.zixiao.cache.storage.CacheStorage;
+import com.alipay.zixiao.protocol.unix.UnixDomainSocketListener;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在unix domain socket上测试文本协议，只在Java 16以上运行
+ */
+public class UnixSocketTest {
+
+    private MemCacheServer<LocalCacheElement> daemon;
+    private File socketFile;
+    private SocketChannel client;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(UnixDomainSocketListener.isSupported());
+
+        socketFile = new File(Files.createTempDirectory("memcached").toFile(), "memcached.sock");
+        daemon = new MemCacheServer<LocalCacheElement>();
+        CacheStorage<Key, LocalCacheElement> cacheStorage = ConcurrentLinkedHashMap
+                .create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, AbstractCacheTest.MAX_SIZE, 4 * 1024 * 1024);
+        daemon.setCache(new CacheImpl(cacheStorage));
+        // 只监听unix domain socket
+        daemon.setUnixSocketPath(socketFile);
+        daemon.setUnixSocketPermissions("rw-rw----");
+        daemon.start();
+
+        client = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class)
+                .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        client.connect((SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                .getMethod("of", Path.class).invoke(null, socketFile.toPath()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        if (daemon != null && daemon.isRunning()) {
+            daemon.stop();
+        }
+        if (socketFile != null) {
+            socketFile.getParentFile().delete();
+        }
+    }
+
+    @Test
+    public void testSetAndGet() throws Exception {
+        assertEquals("STORED\r\n", request("set key 0 0 5\r\nvalue\r\n", "STORED\r\n"));
+        assertEquals("VALUE key 0 5\r\nvalue\r\nEND\r\n", request("get key\r\n", "END\r\n"));
+        assertEquals("END\r\n", request("get missing\r\n", "END\r\n"));
+    }
+
+    /**
+     * socket文件按配置设置权限，stop的时候删除
+     */
+    @Test
+    public void testPermissionsAndCleanup() throws Exception {
+        assertEquals("rw-rw----", PosixFilePermissions.toString(Files.getPosixFilePermissions(socketFile.toPath())));
+        daemon.stop();
+        assertFalse(socketFile.exists());
+    }
+
+    /**
+     * 发送一个请求，读到以terminator结尾的响应为止
+     */
+    private String request(String command, String terminator) throws Exception {
+        ByteBuffer out = ByteBuffer.wrap(command.getBytes("US-ASCII"));
+        while (out.hasRemaining()) {
+            client.write(out);
+        }
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        ByteBuffer in = ByteBuffer.allocate(1024);
+        while (!response.toString("US-ASCII").endsWith(terminator)) {
+            in.clear();
+            assertTrue(client.read(in) > 0);
+            response.write(in.array(), 0, in.position());
+        }
+        return response.toString("US-ASCII");
+    }
+}
@@ -0,0 +1,272 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.cache.Cache;
+import com.alipay.zixiao.cache.CacheImpl;
+import com.alipay.zixiao.cache.CacheSnapshot;
+import com.alipay.zixiao.cache.Key;
+import com.alipay.zixiao.cache.LocalCacheElement;
+import com.alipay.zixiao.cache.WriteAheadLog;
+import com.alipay.zixiao.cache.hash.ConcurrentLinkedHashMap;
+import com.alipay.zixiao.cache.storage.CacheStorage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.alipay.zixiao.CacheTestSupport.cas;
+import static com.alipay.zixiao.CacheTestSupport.element;
+import static com.alipay.zixiao.CacheTestSupport.key;
+import static com.alipay.zixiao.CacheTestSupport.value;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 预写日志：崩溃后重放、残缺的尾部记录和后台压缩
+ */
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 每次修改都刷盘，不关闭直接用同一个目录再打开，相当于进程崩溃以后重启
+     */
+    @Test
+    public void testReplayAfterCrash() throws Exception {
+        File directory = folder.newFolder("wal");
+        final CacheImpl crashed = cache(new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.ALWAYS));
+
+        // 多个线程同时写，日志按组提交
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            writers.add(new Thread() {
+                public void run() {
+                    for (int i = 0; i < 250; i++) {
+                        crashed.set(element("t" + thread + "-" + i, "v" + i));
+                    }
+                }
+            });
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        crashed.set(element("text", "middle"));
+        crashed.append(element("text", "-end"));
+        crashed.prepend(element("text", "start-"));
+        crashed.set(element("counter", "10"));
+        crashed.get_add(key("counter"), 5, true);
+        crashed.delete(key("t0-0"), 0);
+        long cas = cas(crashed, "t1-1");
+        assertEquals(Cache.StoreResponse.STORED, crashed.cas(cas, element("t1-1", "swapped")));
+
+        CacheImpl restarted = cache(new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.ALWAYS));
+        assertEquals(1001, restarted.getCurrentItems());
+        assertEquals("v249", value(restarted, "t3-249"));
+        assertEquals("start-middle-end", value(restarted, "text"));
+        assertEquals("15", value(restarted, "counter"));
+        assertEquals("swapped", value(restarted, "t1-1"));
+        assertNull(value(restarted, "t0-0"));
+
+        // 重放以后新的cas比日志里的都大
+        restarted.set(element("after", "restart"));
+        assertTrue(cas(restarted, "after") > cas(crashed, "t1-1"));
+        restarted.close();
+        crashed.close();
+    }
+
+    /**
+     * 两个写者交错：一个写者拿到序号以后、写入存储之前，另一个写者修改了同一个key。重放出来的必须和内存里一样
+     */
+    @Test
+    public void testInterleavedWriters() throws Exception {
+        File directory = folder.newFolder("wal");
+        final CacheImpl[] live = new CacheImpl[1];
+        final String[] interleavedMethod = new String[1];
+        final List<Thread> others = new ArrayList<Thread>();
+        final CacheStorage<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(
+                ConcurrentLinkedHashMap.EvictionPolicy.LRU, 1000, 1024 * 1024);
+        @SuppressWarnings("unchecked")
+        CacheStorage<Key, LocalCacheElement> interleaving = (CacheStorage<Key, LocalCacheElement>) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{CacheStorage.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals(interleavedMethod[0])) {
+                            interleavedMethod[0] = null;
+                            final Key key = (Key) args[0];
+                            // 另一个写者在这里写同一个key：它应该等这次修改完成，最多等它一会儿
+                            Thread other = new Thread() {
+                                public void run() {
+                                    live[0].set(element(key.toString(), "second"));
+                                }
+                            };
+                            others.add(other);
+                            other.start();
+                            other.join(200);
+                        }
+                        return method.invoke(storage, args);
+                    }
+                });
+        live[0] = cache(interleaving, new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.ALWAYS));
+
+        interleavedMethod[0] = "put";
+        live[0].set(element("race", "first"));
+        live[0].set(element("gone", "first"));
+        interleavedMethod[0] = "remove";
+        live[0].delete(key("gone"), 0);
+        for (Thread other : others) {
+            other.join();
+        }
+
+        CacheImpl restarted = cache(new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.ALWAYS));
+        for (String key : new String[]{"race", "gone"}) {
+            assertEquals(key, value(live[0], key), value(restarted, key));
+        }
+        restarted.close();
+        live[0].close();
+    }
+
+    /**
+     * touch紧跟着set：两条记录的cas相同，日志里的顺序必须和存储里一样，重启以后还是touch设置的过期时间
+     */
+    @Test
+    public void testTouchRightAfterSet() throws Exception {
+        File directory = folder.newFolder("wal");
+        final CacheImpl cache = cache(new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.ALWAYS));
+        final int keys = 500;
+        final long expire = System.currentTimeMillis() + 3600 * 1000L;
+        Thread toucher = new Thread() {
+            public void run() {
+                for (int i = 0; i < keys; i++) {
+                    LocalCacheElement touched;
+                    while ((touched = cache.touch(key("key" + i), expire + i)) == null) {
+                        Thread.yield();
+                    }
+                    touched.release();
+                }
+            }
+        };
+        toucher.start();
+        for (int i = 0; i < keys; i++) {
+            cache.set(element("key" + i, "value"));
+        }
+        toucher.join();
+
+        CacheImpl restarted = cache(new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.ALWAYS));
+        for (int i = 0; i < keys; i++) {
+            LocalCacheElement element = restarted.get(key("key" + i))[0];
+            try {
+                assertEquals("key" + i, expire + i, element.getExpire());
+            } finally {
+                element.release();
+            }
+        }
+        restarted.close();
+        cache.close();
+    }
+
+    /**
+     * 同时有快照和预写日志：启动时只重放日志，快照之后删掉的key不会从快照里恢复出来
+     */
+    @Test
+    public void testSnapshotIsNotLoadedOverTheLog() throws Exception {
+        File directory = folder.newFolder("wal");
+        File snapshots = folder.newFolder("snapshots");
+        CacheImpl crashed = cache(new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.ALWAYS));
+        crashed.set(element("kept", "value"));
+        crashed.set(element("deleted", "value"));
+        new CacheSnapshot(crashed, snapshots, 2).write();
+        crashed.delete(key("deleted"), 0);
+
+        CacheImpl cache = CacheTestSupport.cache();
+        cache.setWriteAheadLog(new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.ALWAYS));
+        MemCacheServer<LocalCacheElement> daemon = new MemCacheServer<LocalCacheElement>(cache);
+        daemon.setSnapshotDirectory(snapshots);
+        daemon.start();
+        try {
+            assertEquals("value", value(cache, "kept"));
+            assertNull(value(cache, "deleted"));
+        } finally {
+            daemon.stop();
+            crashed.close();
+        }
+    }
+
+    /**
+     * 最后一条记录只写了一半，重放到它之前为止；flush_all之前的记录作废
+     */
+    @Test
+    public void testTornTailAndFlush() throws Exception {
+        File directory = folder.newFolder("wal");
+        CacheImpl cache = cache(new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.NEVER));
+        cache.set(element("old", "value"));
+        cache.flush_all();
+        cache.set(element("new", "value"));
+        cache.close();
+
+        File[] segments = directory.listFiles();
+        Arrays.sort(segments);
+        FileOutputStream torn = new FileOutputStream(segments[segments.length - 1], true);
+        try {
+            torn.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+        } finally {
+            torn.close();
+        }
+
+        CacheImpl restarted = cache(new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.INTERVAL));
+        assertEquals(1, restarted.getCurrentItems());
+        assertEquals("value", value(restarted, "new"));
+        assertNull(value(restarted, "old"));
+        restarted.close();
+    }
+
+    /**
+     * 反复覆盖少量key，日志压缩以后只剩活着的数据
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        File directory = folder.newFolder("wal");
+        // 单线程逐条提交，每4KB换一个段
+        CacheImpl cache = cache(new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.ALWAYS, 10, 4096));
+        for (int i = 0; i < 2000; i++) {
+            cache.set(element("key" + (i % 10), "value" + i));
+        }
+        cache.delete(key("key0"), 0);
+        cache.close();
+
+        long bytes = 0;
+        for (File file : directory.listFiles()) {
+            bytes += file.length();
+        }
+        assertTrue("log of " + bytes + " bytes was not compacted", bytes < 2000 * 60 / 4);
+
+        CacheImpl restarted = cache(new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.INTERVAL, 10, 4096));
+        assertEquals(9, restarted.getCurrentItems());
+        assertEquals("value1999", value(restarted, "key9"));
+        assertNull(value(restarted, "key0"));
+        restarted.close();
+    }
+
+    private static CacheImpl cache(WriteAheadLog wal) throws Exception {
+        return cache(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(ConcurrentLinkedHashMap.EvictionPolicy.LRU,
+                100000, 64 * 1024 * 1024), wal);
+    }
+
+    private static CacheImpl cache(CacheStorage<Key, LocalCacheElement> storage, WriteAheadLog wal) throws Exception {
+        CacheImpl cache = new CacheImpl(storage);
+        cache.setWriteAheadLog(wal);
+        cache.open();
+        return cache;
+    }
+}
@@ -0,0 +1,55 @@
+package com.alipay.zixiao;
+
+import com.alipay.zixiao.protocol.WriteCoalescingHandler;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 测试一次读产生的响应合并写出
+ */
+public class WriteCoalescingHandlerTest {
+
+    /**
+     * 每收到一条消息写出三个响应
+     */
+    private static final class ThreeResponses extends SimpleChannelUpstreamHandler {
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            for (int i = 0; i < 3; i++) {
+                Channels.write(ctx.getChannel(), ChannelBuffers.copiedBuffer("STORED" + i + "\r\n", CharsetUtil.US_ASCII));
+            }
+        }
+    }
+
+    @Test
+    public void testResponsesOfOneReadAreWrittenOnce() {
+        DecoderEmbedder<ChannelBuffer> embedder = new DecoderEmbedder<ChannelBuffer>(
+                new WriteCoalescingHandler(), new ThreeResponses());
+        embedder.offer(ChannelBuffers.copiedBuffer("request", CharsetUtil.US_ASCII));
+
+        ChannelBuffer written = embedder.poll();
+        assertEquals("STORED0\r\nSTORED1\r\nSTORED2\r\n", written.toString(CharsetUtil.US_ASCII));
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void testBatchIsWrittenEarlyAtTheCap() {
+        DecoderEmbedder<ChannelBuffer> embedder = new DecoderEmbedder<ChannelBuffer>(
+                new WriteCoalescingHandler(2, 1024), new ThreeResponses());
+        embedder.offer(ChannelBuffers.copiedBuffer("request", CharsetUtil.US_ASCII));
+
+        assertEquals("STORED0\r\nSTORED1\r\n", embedder.poll().toString(CharsetUtil.US_ASCII));
+        assertEquals("STORED2\r\n", embedder.poll().toString(CharsetUtil.US_ASCII));
+        assertNull(embedder.poll());
+    }
+}